@@ -0,0 +1,177 @@
+package example.backend;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.codec.LazyJsonObject;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A {@link Backend} for benchmarking transaction logic in isolation: the logic is run exactly once, against a fixed set
+ * of documents.
+ *
+ * Documents are held as JSON and decoded on every read, and writes are encoded, as a real backend would.  But writes
+ * are then discarded, so every invocation of a benchmark sees the same state.
+ */
+public class FakeBackend implements Backend {
+    private static final BackendResult RESULT = new BackendResult("fake", 1, Duration.ZERO);
+
+    private final Map<String, byte[]> docs = new HashMap<>();
+
+    /**
+     * Total length of all encoded writes.  Accumulated so that the JIT cannot eliminate the encoding.
+     */
+    public long encodedLength;
+
+    public FakeBackend with(String id, JsonObject content) {
+        docs.put(id, encode(content));
+        return this;
+    }
+
+    @Override
+    public BackendResult run(Consumer<BackendContext> logic) {
+        try {
+            logic.accept(new Context());
+        } catch (RuntimeException e) {
+            throw new BackendTransactionFailed(RESULT, e, Collections.emptyList());
+        }
+        return RESULT;
+    }
+
+    @Override
+    public Mono<BackendResult> runReactive(Function<ReactiveBackendContext, Mono<?>> logic) {
+        // As in LocalBackend, the operations complete immediately, so the reactive logic is run to completion inside a
+        // blocking transaction, on a scheduler that permits blocking.
+        return Mono.fromCallable(() -> run(ctx -> logic.apply(new LocalBackend.ReactiveContext(ctx)).block()))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @Override
+    public void upsert(String id, JsonObject content) {
+        docs.put(id, encode(content));
+    }
+
+    @Override
+    public Optional<JsonObject> get(String id) {
+        return Optional.ofNullable(docs.get(id)).map(FakeBackend::decode);
+    }
+
+    @Override
+    public OptionalLong cas(String id) {
+        // The hash of the JSON stands in for a CAS, as it changes whenever the content does
+        byte[] json = docs.get(id);
+        return json == null ? OptionalLong.empty() : OptionalLong.of(Arrays.hashCode(json));
+    }
+
+    @Override
+    public List<String> idsStartingWith(String prefix) {
+        List<String> ids = new ArrayList<>();
+        for (String id : docs.keySet()) {
+            if (id.startsWith(prefix)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public Flux<Document> scan(String... types) {
+        List<String> wanted = Arrays.asList(types);
+        return Flux.fromIterable(docs.entrySet())
+                .filter(doc -> wanted.contains(LazyJsonObject.of(doc.getValue()).getString("type")))
+                .map(doc -> new FakeDocument(doc.getKey(), doc.getValue()));
+    }
+
+    private static byte[] encode(JsonObject content) {
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static JsonObject decode(byte[] json) {
+        return JsonObject.fromJson(new String(json, StandardCharsets.UTF_8));
+    }
+
+    private class Context implements BackendContext {
+        @Override
+        public Document get(String id) {
+            return getOptional(id).orElseThrow(() -> new BackendDocumentNotFound(id));
+        }
+
+        @Override
+        public Optional<Document> getOptional(String id) {
+            byte[] json = docs.get(id);
+            return json == null ? Optional.empty() : Optional.of(new FakeDocument(id, json));
+        }
+
+        @Override
+        public Document insert(String id, JsonObject content) {
+            return write(id, encode(content));
+        }
+
+        @Override
+        public Document insert(String id, byte[] json) {
+            return write(id, json);
+        }
+
+        @Override
+        public Document replace(Document doc, JsonObject content) {
+            return write(doc.id(), encode(content));
+        }
+
+        @Override
+        public Document replace(Document doc, byte[] json) {
+            return write(doc.id(), json);
+        }
+
+        @Override
+        public void remove(Document doc) {
+        }
+
+        private Document write(String id, byte[] json) {
+            encodedLength += json.length;
+            return new FakeDocument(id, json);
+        }
+    }
+
+    private static class FakeDocument implements Document {
+        private final String id;
+        private final byte[] json;
+
+        FakeDocument(String id, byte[] json) {
+            this.id = id;
+            this.json = json;
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public long cas() {
+            return 0;
+        }
+
+        @Override
+        public JsonObject contentAsObject() {
+            return decode(json);
+        }
+
+        @Override
+        public byte[] contentAsBytes() {
+            return json;
+        }
+    }
+}
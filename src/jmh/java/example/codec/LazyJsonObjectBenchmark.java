@@ -0,0 +1,68 @@
+package example.codec;
+
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a full {@link JsonObject} decode and encode with {@link LazyJsonObject}, for the read-modify-write of one
+ * field that a transaction typically does, on a document the size of a real production player document.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyJsonObjectBenchmark {
+    private byte[] json;
+
+    @Setup
+    public void setup() {
+        JsonObject doc = JsonObject.create()
+                .put("experience", 14248)
+                .put("hitpoints", 23832)
+                .put("jsonType", "player")
+                .put("level", 141);
+
+        JsonObject inventory = JsonObject.create();
+        for (int i = 0; i < 100; i ++) {
+            inventory.put("item_" + i, JsonObject.create().put("name", "Item " + i).put("weight", i).put("magic", i % 7 == 0));
+        }
+        doc.put("inventory", inventory);
+
+        JsonArray actions = JsonArray.create();
+        for (int i = 0; i < 64; i ++) {
+            actions.add("00000000-0000-0000-0000-0000000000" + (10 + i));
+        }
+        doc.put("actions", actions);
+
+        json = doc.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] jsonObject() {
+        JsonObject doc = JsonObject.fromJson(new String(json, StandardCharsets.UTF_8));
+        doc.put("experience", doc.getInt("experience") + 91);
+        return doc.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] lazyJsonObject() {
+        LazyJsonObject doc = LazyJsonObject.of(json);
+        doc.put("experience", doc.getInt("experience") + 91);
+        return doc.encode();
+    }
+}
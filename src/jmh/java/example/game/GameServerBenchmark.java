@@ -0,0 +1,81 @@
+package example.game;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.FakeBackend;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work {@link GameServer} does in each transaction attempt - decoding, the game logic, logging and
+ * re-encoding - with the backend itself taken out of the picture.  Every retry repeats this work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameServerBenchmark {
+    private FakeBackend backend;
+    private GameServer gameServer;
+
+    // Every action needs a fresh id, or GameServer would answer it from its record of recent actions
+    private long actionCounter;
+
+    @Setup
+    public void setup() {
+        backend = new FakeBackend()
+                .with("player_jane", JsonObject.create()
+                        .put("experience", 14248)
+                        .put("hitpoints", 23832)
+                        .put("jsonType", "player")
+                        .put("level", 141)
+                        .put("loggedIn", true)
+                        .put("name", "Jane")
+                        .put("uuid", UUID.randomUUID().toString()))
+                .with("monster_template::grue", new MonsterTemplate("Grue", 91, 0.19239324085462631).toContent())
+                .with("a_grue", JsonObject.create()
+                        .put("hitpoints", 4000)
+                        .put("jsonType", "monster")
+                        .put("template", "monster_template::grue")
+                        .put("uuid", UUID.randomUUID().toString()));
+
+        gameServer = new GameServer(backend);
+    }
+
+    private String nextActionUuid() {
+        return "action-" + actionCounter ++;
+    }
+
+    @Benchmark
+    public HitOutcome hitDamagesMonster() {
+        return gameServer.playerHitsMonster(nextActionUuid(), 100, "player_jane", "a_grue");
+    }
+
+    @Benchmark
+    public HitOutcome hitKillsMonster() {
+        return gameServer.playerHitsMonster(nextActionUuid(), 8000, "player_jane", "a_grue");
+    }
+
+    @Benchmark
+    public List<HitOutcome> coalescedHits() {
+        List<GameServer.Hit> hits = new ArrayList<>(10);
+        for (int i = 0; i < 10; i ++) {
+            hits.add(new GameServer.Hit(nextActionUuid(), 100, "player_jane"));
+        }
+        return gameServer.playerHitsMonsterBatch("a_grue", hits);
+    }
+}
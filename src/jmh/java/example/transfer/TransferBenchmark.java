@@ -0,0 +1,60 @@
+package example.transfer;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.FakeBackend;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work {@link TransferExample#transferMoney} does in each transaction attempt, with the backend itself
+ * taken out of the picture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferBenchmark {
+    private FakeBackend backend;
+
+    @Setup
+    public void setup() {
+        backend = new FakeBackend()
+                .with("andy", JsonObject.create()
+                        .put("type", "Customer")
+                        .put("name", "Andy")
+                        .put("balance", 100))
+                .with("beth", JsonObject.create()
+                        .put("type", "Customer")
+                        .put("name", "Beth")
+                        .put("balance", 100));
+    }
+
+    @Benchmark
+    public long transfer() {
+        TransferExample.transferMoney(backend, "andy", "beth", 80);
+        return backend.encodedLength;
+    }
+
+    @Benchmark
+    public void insufficientFunds(Blackhole blackhole) {
+        try {
+            TransferExample.transferMoney(backend, "andy", "beth", 1000);
+        }
+        catch (InsufficientFunds err) {
+            blackhole.consume(err);
+        }
+    }
+}
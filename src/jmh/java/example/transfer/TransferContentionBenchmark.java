@@ -0,0 +1,70 @@
+package example.transfer;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.LocalBackend;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TransferExample#transferMoney} throughput under contention, against a {@link LocalBackend}.  With few
+ * accounts, concurrent transfers mostly conflict and retry; with many, they mostly do not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class TransferContentionBenchmark {
+    @Param({"2", "16", "10000"})
+    public int accounts;
+
+    private LocalBackend backend;
+
+    @Setup
+    public void setup() {
+        // Per-transfer logging would otherwise dominate the results
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(TransferExample.class))
+                .setLevel(ch.qos.logback.classic.Level.WARN);
+
+        backend = new LocalBackend();
+        for (int i = 0; i < accounts; i ++) {
+            backend.upsert(accountId(i), JsonObject.create()
+                    .put("type", "Customer")
+                    .put("balance", 1_000_000));
+        }
+    }
+
+    @Benchmark
+    public TransferStatus transfer() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int from = random.nextInt(accounts);
+        int to = (from + 1 + random.nextInt(accounts - 1)) % accounts;
+
+        try {
+            return TransferExample.transferMoney(backend, accountId(from), accountId(to), 1);
+        }
+        catch (InsufficientFunds err) {
+            return null;
+        }
+    }
+
+    private static String accountId(int index) {
+        return "customer_" + index;
+    }
+}
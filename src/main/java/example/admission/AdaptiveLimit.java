@@ -0,0 +1,227 @@
+package example.admission;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A limit on how many transactions run at once, which adapts to contention using additive increase, multiplicative
+ * decrease (AIMD), as TCP does for congestion.
+ *
+ * Under contention, every extra transaction makes conflicts more likely for all the others.  Each conflict is a retry,
+ * and transactions keep retrying until they time out, while new ones keep arriving - so past a point, adding
+ * concurrency lowers the number of transactions that commit, until they all time out together.  Limiting concurrency
+ * keeps the system short of that point.  The right limit depends on how contended the data is, which changes, so it is
+ * found by feedback rather than configured:
+ *
+ * - Completed transactions are observed in windows of roughly one limit's worth, i.e. about one round trip.
+ * - If a window saw too many retries per transaction, any failures, or latency over the target, the limit is cut by
+ *   a tenth.
+ * - Otherwise, if the window actually used the limit, the limit is raised by one.
+ *
+ * So the limit rises slowly while transactions go through cleanly, and falls quickly once they start getting in each
+ * other's way.  A transaction over the limit waits in a bounded queue for a short time, and is then rejected, so that
+ * callers find out quickly rather than timing out.
+ */
+public class AdaptiveLimit {
+    private static final double DECREASE_FACTOR = 0.9;
+
+    // A limit of zero would never admit anything, and so never adapt
+    private static final int MIN_LIMIT = 1;
+    private static final int MAX_LIMIT = 1000;
+
+    // The limit is cut when transactions retry more than this many times each, on average
+    private static final double RETRY_TOLERANCE = 1.0;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+
+    private double limit;
+    private int maxQueued = 1000;
+    private long queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private long latencyTargetNanos = 0;
+
+    private int inFlight;
+    private int queued;
+    private long rejected;
+
+    // The current window of completed transactions
+    private int windowCompleted;
+    private int windowRetries;
+    private int windowFailures;
+    private long windowLatencyNanos;
+    private boolean windowSaturated;
+
+    /**
+     * @param initialLimit how many transactions may run at once to begin with
+     */
+    public AdaptiveLimit(int initialLimit) {
+        this.limit = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, initialLimit));
+    }
+
+    /**
+     * Transactions over the limit wait up to this long to start, and at most this many wait at once.  Any more are
+     * rejected straight away.  A timeout of zero rejects without waiting.
+     */
+    public AdaptiveLimit withQueue(int maxQueued, Duration timeout) {
+        this.maxQueued = maxQueued;
+        this.queueTimeoutNanos = timeout.toNanos();
+        return this;
+    }
+
+    /**
+     * The limit is also cut when transactions take longer than this, on average.  Zero, the default, ignores latency.
+     */
+    public AdaptiveLimit withLatencyTarget(Duration target) {
+        this.latencyTargetNanos = target.toNanos();
+        return this;
+    }
+
+    /**
+     * Waits for a transaction to be allowed to start.  If this returns true, {@link #release} must be called once the
+     * transaction completes.
+     *
+     * @return false if the transaction is rejected, as the queue is full or it waited too long
+     */
+    public boolean acquire() {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit && queued == 0) {
+                return admit();
+            }
+            if (queued >= maxQueued || queueTimeoutNanos <= 0) {
+                rejected ++;
+                return false;
+            }
+
+            queued ++;
+            try {
+                long remaining = queueTimeoutNanos;
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        rejected ++;
+                        return false;
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+                return admit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejected ++;
+                return false;
+            } finally {
+                queued --;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * As {@link #acquire}, but never waits, so is safe to call from an event loop.
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit) {
+                return admit();
+            }
+            rejected ++;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean admit() {
+        inFlight ++;
+        if (inFlight >= (int) limit) {
+            windowSaturated = true;
+        }
+        return true;
+    }
+
+    /**
+     * Records a completed transaction, and lets the next one start.
+     *
+     * @param attempts how many times the transaction logic ran
+     * @param failed whether the transaction failed in a way that suggests congestion, e.g. it timed out
+     */
+    public void release(int attempts, boolean failed, long latencyNanos) {
+        lock.lock();
+        try {
+            inFlight --;
+
+            windowCompleted ++;
+            windowRetries += Math.max(0, attempts - 1);
+            windowFailures += failed ? 1 : 0;
+            windowLatencyNanos += latencyNanos;
+
+            if (windowCompleted >= Math.max(1, (int) limit)) {
+                adapt();
+            }
+
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adapt() {
+        boolean congested = windowFailures > 0
+                || windowRetries > RETRY_TOLERANCE * windowCompleted
+                || (latencyTargetNanos > 0 && windowLatencyNanos / windowCompleted > latencyTargetNanos);
+
+        if (congested) {
+            limit = Math.max(MIN_LIMIT, limit * DECREASE_FACTOR);
+        }
+        else if (windowSaturated) {
+            // Only raised if the limit is what held transactions back, otherwise it would grow without bound when idle
+            limit = Math.min(MAX_LIMIT, limit + 1);
+        }
+
+        windowCompleted = 0;
+        windowRetries = 0;
+        windowFailures = 0;
+        windowLatencyNanos = 0;
+        windowSaturated = inFlight >= (int) limit;
+    }
+
+    public int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long rejected() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("limit=%d inFlight=%d queued=%d rejected=%d", (int) limit, inFlight, queued, rejected);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package example.admission;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.Backend;
+import example.backend.BackendCommitAmbiguous;
+import example.backend.BackendContext;
+import example.backend.BackendOverloaded;
+import example.backend.BackendResult;
+import example.backend.BackendTransactionFailed;
+import example.backend.Document;
+import example.backend.ReactiveBackendContext;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Wraps a {@link Backend}, admitting transactions through an {@link AdaptiveLimit}.  A transaction that is not
+ * admitted fails fast with {@link BackendOverloaded}, without running any of its logic.
+ *
+ * Only transactions are limited.  Reads and writes outside a transaction do not conflict, so pass straight through.
+ */
+public class AdmissionControlledBackend implements Backend {
+    private final Backend delegate;
+    private final AdaptiveLimit limit;
+
+    public AdmissionControlledBackend(Backend delegate, AdaptiveLimit limit) {
+        this.delegate = delegate;
+        this.limit = limit;
+    }
+
+    public AdaptiveLimit limit() {
+        return limit;
+    }
+
+    @Override
+    public BackendResult run(Consumer<BackendContext> logic) {
+        long start = System.nanoTime();
+        if (!limit.acquire()) {
+            throw rejected(start);
+        }
+
+        BackendResult result = null;
+        boolean congested = false;
+        try {
+            result = delegate.run(logic);
+            return result;
+        } catch (BackendTransactionFailed e) {
+            result = e.result();
+            congested = isCongestion(e);
+            throw e;
+        } finally {
+            limit.release(result == null ? 1 : result.attempts(), congested, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * As {@link #run}, but a transaction over the limit is rejected straight away rather than queued, as waiting would
+     * block the caller's thread.
+     */
+    @Override
+    public Mono<BackendResult> runReactive(Function<ReactiveBackendContext, Mono<?>> logic) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            if (!limit.tryAcquire()) {
+                return Mono.error(rejected(start));
+            }
+
+            AtomicReference<BackendResult> result = new AtomicReference<>();
+            AtomicBoolean congested = new AtomicBoolean();
+
+            return delegate.runReactive(logic)
+                    .doOnNext(result::set)
+                    .doOnError(BackendTransactionFailed.class, err -> {
+                        result.set(err.result());
+                        congested.set(isCongestion(err));
+                    })
+                    // Also runs on cancellation, so the slot is never leaked
+                    .doFinally(signal -> limit.release(result.get() == null ? 1 : result.get().attempts(),
+                            congested.get(), System.nanoTime() - start));
+        });
+    }
+
+    /**
+     * Whether a failure says the backend is congested, as opposed to the transaction logic rejecting the transaction
+     * (e.g. for insufficient funds), which would fail on its first attempt.
+     */
+    private static boolean isCongestion(BackendTransactionFailed e) {
+        return e instanceof BackendCommitAmbiguous || e.result().attempts() > 1;
+    }
+
+    private BackendOverloaded rejected(long start) {
+        return new BackendOverloaded(new BackendResult("rejected", 0, Duration.ofNanos(System.nanoTime() - start)),
+                "Transaction rejected, too many transactions are running (" + limit + ")");
+    }
+
+    @Override
+    public void upsert(String id, JsonObject content) {
+        delegate.upsert(id, content);
+    }
+
+    @Override
+    public Optional<JsonObject> get(String id) {
+        return delegate.get(id);
+    }
+
+    @Override
+    public OptionalLong cas(String id) {
+        return delegate.cas(id);
+    }
+
+    @Override
+    public List<String> idsStartingWith(String prefix) {
+        return delegate.idsStartingWith(prefix);
+    }
+
+    @Override
+    public Flux<Document> scan(String... types) {
+        return delegate.scan(types);
+    }
+}
@@ -0,0 +1,63 @@
+package example.backend;
+
+import com.couchbase.client.java.json.JsonObject;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The transactional document store that the examples run against.
+ *
+ * {@link CouchbaseBackend} is the real thing, a thin layer over Couchbase Distributed Transactions.  {@link LocalBackend}
+ * is an in-process stand-in, so that the server-side logic can be exercised and benchmarked without a cluster.
+ */
+public interface Backend {
+    /**
+     * Runs the logic in a transaction, retrying it as required, and blocks until the transaction has committed.
+     *
+     * @throws BackendCommitAmbiguous if the transaction may or may not have committed
+     * @throws BackendTransactionFailed if the transaction did not commit
+     */
+    BackendResult run(Consumer<BackendContext> logic);
+
+    /**
+     * The non-blocking equivalent of {@link #run}.  Failures are raised as the same exceptions, through the Mono.
+     */
+    Mono<BackendResult> runReactive(Function<ReactiveBackendContext, Mono<?>> logic);
+
+    /**
+     * Non-transactionally writes a document, for setting up sample data.
+     */
+    void upsert(String id, JsonObject content);
+
+    /**
+     * Non-transactionally reads a document.
+     */
+    Optional<JsonObject> get(String id);
+
+    /**
+     * Non-transactionally reads just the CAS of a document, which changes whenever the document is written.  This is
+     * much cheaper than {@link #get}, so is used to check that a cached copy of a document is still current.
+     */
+    OptionalLong cas(String id);
+
+    /**
+     * Non-transactionally lists the ids of all documents whose ids start with the prefix, for background work such as
+     * compaction.  Documents being written by transactions that have not yet committed may or may not be included.
+     */
+    List<String> idsStartingWith(String prefix);
+
+    /**
+     * Non-transactionally streams every document whose "type" field - or "jsonType", as the game documents have - is
+     * one of the given types, for background work such as auditing.  Documents are emitted as they are read, so the
+     * subscriber's demand bounds how many are held in memory.  As with {@link #idsStartingWith}, documents being
+     * written by uncommitted transactions may or may not be seen, and a scan running alongside transactions is not a
+     * consistent snapshot.
+     */
+    Flux<Document> scan(String... types);
+}
@@ -0,0 +1,12 @@
+package example.backend;
+
+import java.util.List;
+
+/**
+ * The transaction reached the point of commit, but it is not known whether the commit succeeded.
+ */
+public class BackendCommitAmbiguous extends BackendTransactionFailed {
+    public BackendCommitAmbiguous(BackendResult result, Throwable cause, List<String> logs) {
+        super(result, cause, logs);
+    }
+}
@@ -0,0 +1,33 @@
+package example.backend;
+
+import com.couchbase.client.java.json.JsonObject;
+
+import java.util.Optional;
+
+/**
+ * The operations available inside a {@link Backend#run} transaction.  Mirrors the Couchbase {@code AttemptContext}.
+ */
+public interface BackendContext {
+    /**
+     * Gets a document, failing the transaction with a {@link BackendDocumentNotFound} if it does not exist.
+     */
+    Document get(String id);
+
+    Optional<Document> getOptional(String id);
+
+    Document insert(String id, JsonObject content);
+
+    /**
+     * Inserts a document that has already been encoded as JSON.
+     */
+    Document insert(String id, byte[] json);
+
+    Document replace(Document doc, JsonObject content);
+
+    /**
+     * Replaces a document with content that has already been encoded as JSON.
+     */
+    Document replace(Document doc, byte[] json);
+
+    void remove(Document doc);
+}
@@ -0,0 +1,11 @@
+package example.backend;
+
+/**
+ * Raised inside a transaction when a required document does not exist.  The logic asked for the document to be
+ * required, so this is a rollback, not a failure.
+ */
+public class BackendDocumentNotFound extends BackendRollback {
+    public BackendDocumentNotFound(String id) {
+        super("Document " + id + " not found");
+    }
+}
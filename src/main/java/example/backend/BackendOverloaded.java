@@ -0,0 +1,24 @@
+package example.backend;
+
+import java.util.Collections;
+
+/**
+ * The transaction was not started, because too many transactions were already running.  Nothing was changed, and the
+ * caller can retry later.
+ *
+ * This is a {@link BackendTransactionFailed}, so code that does not expect it treats it as a transaction that did not
+ * reach commit - which is true - but callers can catch it first to tell rejection apart from failure.
+ */
+public class BackendOverloaded extends BackendTransactionFailed {
+    private final String reason;
+
+    public BackendOverloaded(BackendResult result, String reason) {
+        super(result, null, Collections.singletonList(reason));
+        this.reason = reason;
+    }
+
+    @Override
+    public String getMessage() {
+        return reason;
+    }
+}
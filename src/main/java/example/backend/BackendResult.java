@@ -0,0 +1,34 @@
+package example.backend;
+
+import java.time.Duration;
+
+/**
+ * Details of a transaction, whether or not it committed.
+ */
+public class BackendResult {
+    private final String transactionId;
+    private final int attempts;
+    private final Duration timeTaken;
+
+    public BackendResult(String transactionId, int attempts, Duration timeTaken) {
+        this.transactionId = transactionId;
+        this.attempts = attempts;
+        this.timeTaken = timeTaken;
+    }
+
+    public String transactionId() {
+        return transactionId;
+    }
+
+    /**
+     * How many times the transaction logic was run.  Anything above one is a retry, usually caused by a conflict with
+     * another transaction.
+     */
+    public int attempts() {
+        return attempts;
+    }
+
+    public Duration timeTaken() {
+        return timeTaken;
+    }
+}
@@ -0,0 +1,15 @@
+package example.backend;
+
+/**
+ * Thrown by transaction logic to roll the transaction back for an expected reason, such as a customer not having enough
+ * money.  Nothing is changed, as with any failure, but the transaction has not failed: the logic decided not to go
+ * ahead, so it is not retried, and is counted apart from failures.
+ */
+public class BackendRollback extends RuntimeException {
+    public BackendRollback() {
+    }
+
+    public BackendRollback(String message) {
+        super(message);
+    }
+}
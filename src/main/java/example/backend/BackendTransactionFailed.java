@@ -0,0 +1,29 @@
+package example.backend;
+
+import java.util.List;
+
+/**
+ * The transaction did not commit, and none of its changes are visible.  If the transaction logic threw, that is
+ * available as the {@link #getCause()}.
+ */
+public class BackendTransactionFailed extends RuntimeException {
+    private final BackendResult result;
+    private final List<String> logs;
+
+    public BackendTransactionFailed(BackendResult result, Throwable cause, List<String> logs) {
+        super("Transaction " + result.transactionId() + " failed", cause);
+        this.result = result;
+        this.logs = logs;
+    }
+
+    public BackendResult result() {
+        return result;
+    }
+
+    /**
+     * The backend's log of what happened in the transaction, for human review.
+     */
+    public List<String> logs() {
+        return logs;
+    }
+}
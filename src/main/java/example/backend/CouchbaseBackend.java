@@ -0,0 +1,331 @@
+package example.backend;
+
+import com.couchbase.client.core.deps.com.fasterxml.jackson.databind.util.RawValue;
+import com.couchbase.client.core.error.DocumentNotFoundException;
+import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.ReactiveCollection;
+import com.couchbase.client.java.json.JsonArray;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.client.java.kv.ExistsResult;
+import com.couchbase.client.java.query.QueryOptions;
+import com.couchbase.client.java.query.QueryResult;
+import com.couchbase.client.java.query.QueryScanConsistency;
+import com.couchbase.transactions.AttemptContext;
+import com.couchbase.transactions.AttemptContextReactive;
+import com.couchbase.transactions.TransactionGetResult;
+import com.couchbase.transactions.TransactionDurabilityLevel;
+import com.couchbase.transactions.TransactionResult;
+import com.couchbase.transactions.Transactions;
+import com.couchbase.transactions.error.TransactionCommitAmbiguous;
+import com.couchbase.transactions.error.TransactionFailed;
+import com.couchbase.transactions.log.LogDefer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A {@link Backend} on Couchbase Distributed Transactions, storing all documents in one collection.
+ */
+public class CouchbaseBackend implements Backend {
+    private final Transactions transactions;
+    private final Collection collection;
+    private final ReactiveCollection reactiveCollection;
+    private final Cluster cluster;
+
+    /**
+     * A backend without {@link #idsStartingWith}, which needs the query service.
+     *
+     * @param transactions this is not owned by the backend, and must be closed by the caller
+     */
+    public CouchbaseBackend(Transactions transactions, Collection collection) {
+        this(transactions, collection, null);
+    }
+
+    /**
+     * @param transactions this is not owned by the backend, and must be closed by the caller
+     * @param cluster used for {@link #idsStartingWith}, which also needs a primary index on the bucket
+     */
+    public CouchbaseBackend(Transactions transactions, Collection collection, Cluster cluster) {
+        this.transactions = transactions;
+        this.collection = collection;
+        this.reactiveCollection = collection.reactive();
+        this.cluster = cluster;
+    }
+
+    /**
+     * Parses a durability level as given on the command line: none, majority, majority_and_persist or
+     * persist_to_majority.
+     *
+     * @throws IllegalArgumentException if it is none of those
+     */
+    public static TransactionDurabilityLevel parseDurability(String durability) {
+        switch (durability.toLowerCase()) {
+            case "none":
+                return TransactionDurabilityLevel.NONE;
+            case "majority":
+                return TransactionDurabilityLevel.MAJORITY;
+            case "persist_to_majority":
+                return TransactionDurabilityLevel.PERSIST_TO_MAJORITY;
+            case "majority_and_persist":
+                return TransactionDurabilityLevel.MAJORITY_AND_PERSIST_TO_ACTIVE;
+            default:
+                throw new IllegalArgumentException("Unknown durability setting " + durability);
+        }
+    }
+
+    @Override
+    public BackendResult run(Consumer<BackendContext> logic) {
+        try {
+            TransactionResult result = transactions.run((ctx) -> logic.accept(new Context(ctx)));
+            return toResult(result);
+        } catch (TransactionFailed e) {
+            throw toFailure(e);
+        }
+    }
+
+    @Override
+    public Mono<BackendResult> runReactive(Function<ReactiveBackendContext, Mono<?>> logic) {
+        return transactions.reactive().run((ctx) -> logic.apply(new ReactiveContext(ctx)))
+                .map(CouchbaseBackend::toResult)
+                .onErrorMap(TransactionFailed.class, CouchbaseBackend::toFailure);
+    }
+
+    @Override
+    public void upsert(String id, JsonObject content) {
+        collection.upsert(id, content);
+    }
+
+    @Override
+    public Optional<JsonObject> get(String id) {
+        try {
+            return Optional.of(collection.get(id).contentAsObject());
+        } catch (DocumentNotFoundException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public OptionalLong cas(String id) {
+        ExistsResult result = collection.exists(id);
+        return result.exists() ? OptionalLong.of(result.cas()) : OptionalLong.empty();
+    }
+
+    @Override
+    public List<String> idsStartingWith(String prefix) {
+        if (cluster == null) {
+            throw new UnsupportedOperationException("Listing documents needs the query service - create the backend with a Cluster");
+        }
+
+        // In a LIKE pattern, % and _ are wildcards, so must be escaped in the prefix.  REQUEST_PLUS waits for the index
+        // to catch up with everything written so far.
+        String pattern = prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+        QueryResult result = cluster.query("SELECT RAW META().id FROM `" + collection.bucketName() + "` WHERE META().id LIKE $1",
+                QueryOptions.queryOptions()
+                        .parameters(JsonArray.from(pattern))
+                        .scanConsistency(QueryScanConsistency.REQUEST_PLUS));
+        return result.rowsAs(String.class);
+    }
+
+    @Override
+    public Flux<Document> scan(String... types) {
+        if (cluster == null) {
+            throw new UnsupportedOperationException("Scanning documents needs the query service - create the backend with a Cluster");
+        }
+
+        // The reactive query streams rows with backpressure, rather than buffering the whole result
+        return cluster.reactive()
+                .query("SELECT META(d).id AS id, META(d).cas AS cas, d AS content FROM `" + collection.bucketName()
+                                + "` d WHERE IFMISSING(d.type, d.jsonType) IN $1",
+                        QueryOptions.queryOptions()
+                                .parameters(JsonArray.from(JsonArray.from((Object[]) types)))
+                                .scanConsistency(QueryScanConsistency.REQUEST_PLUS))
+                .flatMapMany(result -> result.rowsAs(JsonObject.class))
+                .map(row -> new ScannedDocument(row.getString("id"), row.getLong("cas"), row.getObject("content")));
+    }
+
+    private static BackendResult toResult(TransactionResult result) {
+        return new BackendResult(result.transactionId(), result.attempts().size(), result.timeTaken());
+    }
+
+    private static BackendTransactionFailed toFailure(TransactionFailed e) {
+        // The log is only formatted on failure, which should be rare
+        List<String> logs = new ArrayList<>();
+        for (LogDefer log : e.result().log().logs()) {
+            logs.add(log.toString());
+        }
+
+        BackendResult result = toResult(e.result());
+
+        // TransactionCommitAmbiguous is a TransactionFailed, so must be checked first
+        if (e instanceof TransactionCommitAmbiguous) {
+            return new BackendCommitAmbiguous(result, e.getCause(), logs);
+        }
+        return new BackendTransactionFailed(result, e.getCause(), logs);
+    }
+
+    private static RawValue raw(byte[] json) {
+        // The transactions library encodes content with the client's Jackson mapper, which writes a RawValue out as it
+        // is, so already-encoded JSON is neither parsed nor re-encoded
+        return new RawValue(new String(json, StandardCharsets.UTF_8));
+    }
+
+    private static TransactionGetResult unwrap(Document doc) {
+        return ((CouchbaseDocument) doc).result;
+    }
+
+    private class Context implements BackendContext {
+        private final AttemptContext ctx;
+
+        Context(AttemptContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public Document get(String id) {
+            return getOptional(id).orElseThrow(() -> new BackendDocumentNotFound(id));
+        }
+
+        @Override
+        public Optional<Document> getOptional(String id) {
+            return ctx.getOptional(collection, id).map(CouchbaseDocument::new);
+        }
+
+        @Override
+        public Document insert(String id, JsonObject content) {
+            return new CouchbaseDocument(ctx.insert(collection, id, content));
+        }
+
+        @Override
+        public Document insert(String id, byte[] json) {
+            return new CouchbaseDocument(ctx.insert(collection, id, raw(json)));
+        }
+
+        @Override
+        public Document replace(Document doc, JsonObject content) {
+            return new CouchbaseDocument(ctx.replace(unwrap(doc), content));
+        }
+
+        @Override
+        public Document replace(Document doc, byte[] json) {
+            return new CouchbaseDocument(ctx.replace(unwrap(doc), raw(json)));
+        }
+
+        @Override
+        public void remove(Document doc) {
+            ctx.remove(unwrap(doc));
+        }
+    }
+
+    private class ReactiveContext implements ReactiveBackendContext {
+        private final AttemptContextReactive ctx;
+
+        ReactiveContext(AttemptContextReactive ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public Mono<Document> get(String id) {
+            return getOptional(id).flatMap(doc -> doc.isPresent()
+                    ? Mono.just(doc.get())
+                    : Mono.error(new BackendDocumentNotFound(id)));
+        }
+
+        @Override
+        public Mono<Optional<Document>> getOptional(String id) {
+            return ctx.getOptional(reactiveCollection, id).map(doc -> doc.map(CouchbaseDocument::new));
+        }
+
+        @Override
+        public Mono<Document> insert(String id, JsonObject content) {
+            return ctx.insert(reactiveCollection, id, content).map(CouchbaseDocument::new);
+        }
+
+        @Override
+        public Mono<Document> insert(String id, byte[] json) {
+            return ctx.insert(reactiveCollection, id, raw(json)).map(CouchbaseDocument::new);
+        }
+
+        @Override
+        public Mono<Document> replace(Document doc, JsonObject content) {
+            return ctx.replace(unwrap(doc), content).map(CouchbaseDocument::new);
+        }
+
+        @Override
+        public Mono<Document> replace(Document doc, byte[] json) {
+            return ctx.replace(unwrap(doc), raw(json)).map(CouchbaseDocument::new);
+        }
+
+        @Override
+        public Mono<Void> remove(Document doc) {
+            return ctx.remove(unwrap(doc));
+        }
+    }
+
+    private static class ScannedDocument implements Document {
+        private final String id;
+        private final long cas;
+        private final JsonObject content;
+
+        ScannedDocument(String id, long cas, JsonObject content) {
+            this.id = id;
+            this.cas = cas;
+            this.content = content;
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public long cas() {
+            return cas;
+        }
+
+        @Override
+        public JsonObject contentAsObject() {
+            return JsonObject.fromJson(content.toString());
+        }
+
+        @Override
+        public byte[] contentAsBytes() {
+            return content.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class CouchbaseDocument implements Document {
+        private final TransactionGetResult result;
+
+        CouchbaseDocument(TransactionGetResult result) {
+            this.result = result;
+        }
+
+        @Override
+        public String id() {
+            return result.id();
+        }
+
+        @Override
+        public long cas() {
+            return result.cas();
+        }
+
+        @Override
+        public JsonObject contentAsObject() {
+            return result.contentAsObject();
+        }
+
+        @Override
+        public byte[] contentAsBytes() {
+            return result.contentAsBytes();
+        }
+    }
+}
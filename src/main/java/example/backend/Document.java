@@ -0,0 +1,23 @@
+package example.backend;
+
+import com.couchbase.client.java.json.JsonObject;
+
+/**
+ * A document read inside a transaction, or streamed by {@link Backend#scan}.
+ */
+public interface Document {
+    String id();
+
+    long cas();
+
+    /**
+     * Decodes the document.  Each call returns a new object, which the caller is free to modify.
+     */
+    JsonObject contentAsObject();
+
+    /**
+     * The document's raw JSON, for decoding lazily with a {@link example.codec.LazyJsonObject}.  This is not a copy, and
+     * must not be modified.
+     */
+    byte[] contentAsBytes();
+}
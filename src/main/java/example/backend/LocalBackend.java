@@ -0,0 +1,421 @@
+package example.backend;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.codec.LazyJsonObject;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * An in-process stand-in for a Couchbase cluster, so that server-side logic can be run and benchmarked offline.
+ *
+ * It is a multi-version store with optimistic concurrency, which behaves like Couchbase transactions where that matters
+ * for performance work.  Each document version has a CAS.  Reads see the latest committed version and never conflict.
+ * Writes are staged until the logic completes, and discarded if it throws, so a failed transaction leaves no trace.  A
+ * write to a document that another transaction has changed since it was read is a write-write conflict: the attempt is
+ * abandoned, and the logic retried after a short backoff, until it commits or the timeout expires.  Conflicts are
+ * checked when a write is staged, and again at commit under per-document locks.  As in Couchbase, each write returns a
+ * new {@link Document} handle, and writing a document again through an older handle fails the transaction.
+ *
+ * For realism, latency can be injected into every operation, and a durability delay into every write and commit.
+ * Conflicts can also be injected at random, from a seeded generator, so contention behaviour can be reproduced without
+ * having to arrange real contention.  Configure these before use.
+ */
+public class LocalBackend implements Backend {
+    private static final int LOCK_STRIPES = 1024;
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(15);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ConcurrentHashMap<String, LocalDocument> docs = new ConcurrentHashMap<>();
+    private final ReentrantLock[] commitLocks = new ReentrantLock[LOCK_STRIPES];
+    private final AtomicLong casCounter = new AtomicLong();
+
+    private long operationLatencyNanos;
+    private long durabilityDelayNanos;
+    private double conflictProbability;
+    private Random conflictRandom = new Random(0);
+    private Duration timeout = DEFAULT_TIMEOUT;
+
+    public LocalBackend() {
+        for (int i = 0; i < commitLocks.length; i ++) {
+            commitLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Adds this much latency to every get, insert, replace and remove, inside or outside a transaction, as a network
+     * round trip would.
+     */
+    public LocalBackend withLatency(Duration latency) {
+        this.operationLatencyNanos = latency.toNanos();
+        return this;
+    }
+
+    /**
+     * Adds this much delay to every transactional write and to every commit, as waiting for durable replication would.
+     * Commits hold their documents' locks for the delay, so it lengthens conflicts as a real durability wait does.
+     */
+    public LocalBackend withDurabilityDelay(Duration delay) {
+        this.durabilityDelayNanos = delay.toNanos();
+        return this;
+    }
+
+    /**
+     * Makes each commit fail with a conflict with this probability, drawn from a generator with this seed.
+     */
+    public LocalBackend withInjectedConflicts(double probability, long seed) {
+        this.conflictProbability = probability;
+        this.conflictRandom = new Random(seed);
+        return this;
+    }
+
+    /**
+     * How long a transaction keeps retrying conflicts before it fails.  15 seconds by default, as in Couchbase.
+     */
+    public LocalBackend withTimeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    @Override
+    public BackendResult run(Consumer<BackendContext> logic) {
+        long start = System.nanoTime();
+        long deadline = start + timeout.toNanos();
+        String transactionId = UUID.randomUUID().toString();
+        List<String> logs = new ArrayList<>();
+        int attempts = 0;
+
+        while (true) {
+            attempts ++;
+            Context ctx = new Context();
+
+            try {
+                logic.accept(ctx);
+                ctx.commit();
+                return new BackendResult(transactionId, attempts, Duration.ofNanos(System.nanoTime() - start));
+            } catch (Conflict e) {
+                logs.add("Attempt " + attempts + ": " + e.getMessage());
+
+                if (System.nanoTime() >= deadline) {
+                    BackendResult result = new BackendResult(transactionId, attempts, Duration.ofNanos(System.nanoTime() - start));
+                    throw new BackendTransactionFailed(result, e, logs);
+                }
+
+                // Exponential backoff with jitter, so conflicting transactions do not keep colliding
+                long backoff = Math.min(MAX_BACKOFF_NANOS, TimeUnit.MICROSECONDS.toNanos(100) << Math.min(attempts, 20));
+                pause(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+            } catch (RuntimeException e) {
+                logs.add("Attempt " + attempts + ": " + e);
+                BackendResult result = new BackendResult(transactionId, attempts, Duration.ofNanos(System.nanoTime() - start));
+                throw new BackendTransactionFailed(result, e, logs);
+            }
+        }
+    }
+
+    @Override
+    public Mono<BackendResult> runReactive(Function<ReactiveBackendContext, Mono<?>> logic) {
+        // The local operations complete immediately, so the reactive logic can be run to completion inside a blocking
+        // transaction.  This is done on a scheduler that permits blocking.
+        return Mono.fromCallable(() -> run(ctx -> logic.apply(new ReactiveContext(ctx)).block()))
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @Override
+    public void upsert(String id, JsonObject content) {
+        pause(operationLatencyNanos);
+        docs.put(id, new LocalDocument(id, casCounter.incrementAndGet(), encode(content)));
+    }
+
+    @Override
+    public Optional<JsonObject> get(String id) {
+        pause(operationLatencyNanos);
+        LocalDocument doc = docs.get(id);
+        return doc == null ? Optional.empty() : Optional.of(doc.contentAsObject());
+    }
+
+    @Override
+    public OptionalLong cas(String id) {
+        pause(operationLatencyNanos);
+        LocalDocument doc = docs.get(id);
+        return doc == null ? OptionalLong.empty() : OptionalLong.of(doc.cas());
+    }
+
+    @Override
+    public List<String> idsStartingWith(String prefix) {
+        List<String> ids = new ArrayList<>();
+        for (String id : docs.keySet()) {
+            if (id.startsWith(prefix)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public Flux<Document> scan(String... types) {
+        List<String> wanted = Arrays.asList(types);
+        return Flux.fromIterable(docs.values())
+                .filter(doc -> wanted.contains(typeOf(LazyJsonObject.of(doc.contentAsBytes()))))
+                .map(doc -> (Document) doc);
+    }
+
+    private static String typeOf(LazyJsonObject content) {
+        String type = content.getString("type");
+        return type != null ? type : content.getString("jsonType");
+    }
+
+    private static void pause(long nanos) {
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    private boolean injectConflict() {
+        if (conflictProbability <= 0) {
+            return false;
+        }
+        synchronized (conflictRandom) {
+            return conflictRandom.nextDouble() < conflictProbability;
+        }
+    }
+
+    private static long casOf(LocalDocument doc) {
+        return doc == null ? 0 : doc.cas();
+    }
+
+    /**
+     * Abandons a transaction attempt, which is then retried.
+     */
+    private static class Conflict extends RuntimeException {
+        Conflict(String message) {
+            // No stack trace - conflicts are routine, and only their message is logged
+            super(message, null, false, false);
+        }
+    }
+
+    // Documents are held as JSON, as a cluster holds them, so readers pay for decoding as they would against a cluster
+    private static byte[] encode(JsonObject content) {
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static JsonObject decode(byte[] json) {
+        return JsonObject.fromJson(new String(json, StandardCharsets.UTF_8));
+    }
+
+    private class Context implements BackendContext {
+        // Staged writes, applied on commit.  A null value is a staged remove.
+        private final Map<String, LocalDocument> staged = new HashMap<>();
+
+        // For each document written, the CAS of the committed version it was based on, or 0 if it did not exist.  Commit
+        // fails if any of them has changed.
+        private final Map<String, Long> basedOn = new HashMap<>();
+
+        @Override
+        public Document get(String id) {
+            return getOptional(id).orElseThrow(() -> new BackendDocumentNotFound(id));
+        }
+
+        @Override
+        public Optional<Document> getOptional(String id) {
+            // Read your own writes
+            if (staged.containsKey(id)) {
+                return Optional.ofNullable(staged.get(id));
+            }
+            pause(operationLatencyNanos);
+            return Optional.ofNullable(docs.get(id));
+        }
+
+        @Override
+        public Document insert(String id, JsonObject content) {
+            return insert(id, encode(content));
+        }
+
+        @Override
+        public Document insert(String id, byte[] json) {
+            if (getOptional(id).isPresent()) {
+                throw new IllegalStateException("Document " + id + " already exists");
+            }
+            return stage(id, json, 0);
+        }
+
+        @Override
+        public Document replace(Document doc, JsonObject content) {
+            return replace(doc, encode(content));
+        }
+
+        @Override
+        public Document replace(Document doc, byte[] json) {
+            return stage(doc.id(), json, doc.cas());
+        }
+
+        @Override
+        public void remove(Document doc) {
+            stage(doc.id(), null, doc.cas());
+        }
+
+        private Document stage(String id, byte[] json, long readCas) {
+            pause(operationLatencyNanos + durabilityDelayNanos);
+
+            // A document this transaction has already written must be written through the handle the last write
+            // returned.  Anything else is a bug in the logic, which retrying would not fix.  It is checked at commit
+            // against its first version.
+            if (staged.containsKey(id)) {
+                if (casOf(staged.get(id)) != readCas) {
+                    throw new IllegalStateException("Document " + id + " was written through a stale handle - use the"
+                            + " Document returned by this transaction's previous write to it");
+                }
+            }
+            else {
+                if (casOf(docs.get(id)) != readCas) {
+                    throw new Conflict("Document " + id + " was changed by another transaction");
+                }
+                basedOn.put(id, readCas);
+            }
+
+            LocalDocument doc = json == null ? null : new LocalDocument(id, casCounter.incrementAndGet(), json);
+            staged.put(id, doc);
+            return doc;
+        }
+
+        void commit() {
+            if (staged.isEmpty()) {
+                return;
+            }
+
+            // Locking stripes in index order means two commits can never deadlock
+            int[] stripes = staged.keySet().stream()
+                    .mapToInt(id -> Math.floorMod(id.hashCode(), LOCK_STRIPES))
+                    .distinct()
+                    .sorted()
+                    .toArray();
+
+            for (int stripe : stripes) {
+                commitLocks[stripe].lock();
+            }
+            try {
+                for (Map.Entry<String, Long> entry : basedOn.entrySet()) {
+                    if (casOf(docs.get(entry.getKey())) != entry.getValue()) {
+                        throw new Conflict("Document " + entry.getKey() + " was changed by another transaction");
+                    }
+                }
+                if (injectConflict()) {
+                    throw new Conflict("Injected conflict");
+                }
+
+                pause(durabilityDelayNanos);
+
+                staged.forEach((id, doc) -> {
+                    if (doc == null) {
+                        docs.remove(id);
+                    }
+                    else {
+                        docs.put(id, doc);
+                    }
+                });
+            } finally {
+                for (int stripe : stripes) {
+                    commitLocks[stripe].unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * The reactive operations, over a blocking context whose operations complete immediately.  Also used by the
+     * benchmarks' FakeBackend.
+     */
+    static class ReactiveContext implements ReactiveBackendContext {
+        private final BackendContext ctx;
+
+        ReactiveContext(BackendContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public Mono<Document> get(String id) {
+            return Mono.fromCallable(() -> ctx.get(id));
+        }
+
+        @Override
+        public Mono<Optional<Document>> getOptional(String id) {
+            return Mono.fromCallable(() -> ctx.getOptional(id));
+        }
+
+        @Override
+        public Mono<Document> insert(String id, JsonObject content) {
+            return Mono.fromCallable(() -> ctx.insert(id, content));
+        }
+
+        @Override
+        public Mono<Document> insert(String id, byte[] json) {
+            return Mono.fromCallable(() -> ctx.insert(id, json));
+        }
+
+        @Override
+        public Mono<Document> replace(Document doc, JsonObject content) {
+            return Mono.fromCallable(() -> ctx.replace(doc, content));
+        }
+
+        @Override
+        public Mono<Document> replace(Document doc, byte[] json) {
+            return Mono.fromCallable(() -> ctx.replace(doc, json));
+        }
+
+        @Override
+        public Mono<Void> remove(Document doc) {
+            return Mono.fromRunnable(() -> ctx.remove(doc));
+        }
+    }
+
+    private static class LocalDocument implements Document {
+        private final String id;
+        private final long cas;
+        private final byte[] json;
+
+        LocalDocument(String id, long cas, byte[] json) {
+            this.id = id;
+            this.cas = cas;
+            this.json = json;
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public long cas() {
+            return cas;
+        }
+
+        @Override
+        public JsonObject contentAsObject() {
+            return decode(json);
+        }
+
+        @Override
+        public byte[] contentAsBytes() {
+            return json;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package example.backend;
+
+import com.couchbase.client.java.json.JsonObject;
+import reactor.core.publisher.Mono;
+
+import java.util.Optional;
+
+/**
+ * The operations available inside a {@link Backend#runReactive} transaction.  Mirrors the Couchbase
+ * {@code AttemptContextReactive}.
+ */
+public interface ReactiveBackendContext {
+    /**
+     * Gets a document, failing the transaction with a {@link BackendDocumentNotFound} if it does not exist.
+     */
+    Mono<Document> get(String id);
+
+    Mono<Optional<Document>> getOptional(String id);
+
+    Mono<Document> insert(String id, JsonObject content);
+
+    Mono<Document> insert(String id, byte[] json);
+
+    Mono<Document> replace(Document doc, JsonObject content);
+
+    Mono<Document> replace(Document doc, byte[] json);
+
+    Mono<Void> remove(Document doc);
+}
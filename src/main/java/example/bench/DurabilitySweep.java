@@ -0,0 +1,513 @@
+package example.bench;
+
+import ch.qos.logback.classic.Level;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.transactions.Transactions;
+import com.couchbase.transactions.config.TransactionConfigBuilder;
+import example.backend.Backend;
+import example.backend.BackendTransactionFailed;
+import example.backend.CouchbaseBackend;
+import example.backend.LocalBackend;
+import example.game.GameServer;
+import example.game.HitOutcome;
+import example.metrics.MeteredBackend;
+import example.metrics.TransactionMetrics;
+import example.transfer.TransferExample;
+import example.transfer.TransferStatus;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what each durability level costs, by running a workload over every combination of durability level,
+ * concurrency and transaction timeout, and writing throughput and latency for each to a CSV file.
+ *
+ * Stronger durability means each write waits for more replicas, or for disk, before the transaction moves on.  That
+ * costs latency, and because documents stay locked by the transaction for longer, it also costs throughput under
+ * contention.  How much depends on the cluster and the workload, so it is worth measuring rather than guessing.  Given
+ * a latency objective, the summary shows the best throughput each level achieved within it.
+ *
+ * Each combination starts from freshly seeded documents and a fixed random seed, so a sweep can be repeated.  Its
+ * documents are removed when it finishes.
+ */
+public class DurabilitySweep {
+    private static final Logger logger = LoggerFactory.getLogger(DurabilitySweep.class);
+
+    // From least to most durable
+    private static final String[] DURABILITY_LEVELS = {"none", "majority", "majority_and_persist", "persist_to_majority"};
+
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("Couchbase Distributed Transactions Durability Sweep").build()
+                .defaultHelp(true)
+                .description("Measures throughput and latency over a matrix of durability levels, concurrency levels and timeouts.");
+        parser.addArgument("-t", "--target")
+                .setDefault("local")
+                .choices("local", "cluster")
+                .help("Run against an in-process stand-in, or a Couchbase cluster");
+        parser.addArgument("-c", "--cluster")
+                .help("Specify Couchbase cluster address (cluster target only)");
+        parser.addArgument("-u", "--username")
+                .help("Specify username of Couchbase user (cluster target only)");
+        parser.addArgument("-p", "--password")
+                .help("Specify password of Couchbase user (cluster target only)");
+        parser.addArgument("-b", "--bucket")
+                .help("Specify name of Couchbase bucket (cluster target only)");
+        parser.addArgument("-w", "--workload")
+                .setDefault("game")
+                .choices("game", "transfer")
+                .help("Hits on monsters through GameServer, or transfers between customers through transferMoney");
+        parser.addArgument("--durability")
+                .setDefault(String.join(",", DURABILITY_LEVELS))
+                .help("Comma-separated durability levels to sweep");
+        parser.addArgument("--concurrency")
+                .setDefault("1,4,16,64")
+                .help("Comma-separated numbers of concurrent transactions to sweep");
+        parser.addArgument("--timeouts")
+                .setDefault("15")
+                .help("Comma-separated transaction timeouts to sweep, in seconds");
+        parser.addArgument("--keys")
+                .setDefault(1000)
+                .type(Integer.class)
+                .help("How many monsters, or customers, the workload spreads over.  Fewer means more contention, down to 1 monster or 2 customers");
+        parser.addArgument("--warmup")
+                .setDefault(5)
+                .type(Integer.class)
+                .help("Seconds to run each combination before measuring");
+        parser.addArgument("--duration")
+                .setDefault(20)
+                .type(Integer.class)
+                .help("Seconds to measure each combination for");
+        parser.addArgument("--seed")
+                .setDefault(42L)
+                .type(Long.class)
+                .help("Random seed, so sweeps are repeatable");
+        parser.addArgument("--slo-p99-ms")
+                .setDefault(0.0)
+                .type(Double.class)
+                .help("If non-zero, the summary shows the best throughput each durability level achieved within this p99 latency");
+        parser.addArgument("--local-latency-us")
+                .setDefault(100)
+                .type(Integer.class)
+                .help("Latency added to every operation (local target only)");
+        parser.addArgument("--local-durability-us")
+                .setDefault(500)
+                .type(Integer.class)
+                .help("Delay per write at majority durability, scaled up for the stronger levels (local target only)");
+        parser.addArgument("-o", "--output")
+                .setDefault("sweep.csv")
+                .help("The CSV file to write");
+
+        try {
+            Namespace ns = parser.parseArgs(args);
+            run(ns);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+        }
+    }
+
+    private static void run(Namespace ns) {
+        boolean local = ns.getString("target").equals("local");
+        if (!local && (ns.getString("cluster") == null || ns.getString("username") == null
+                || ns.getString("password") == null || ns.getString("bucket") == null)) {
+            System.out.println("--cluster, --username, --password and --bucket are required for the cluster target");
+            System.exit(-1);
+        }
+
+        List<String> durabilities = new ArrayList<>();
+        for (String durability : ns.getString("durability").split(",")) {
+            // Validates the name up front, rather than part way through a sweep
+            CouchbaseBackend.parseDurability(durability.trim());
+            durabilities.add(durability.trim().toLowerCase());
+        }
+        int[] concurrencies = parseInts(ns.getString("concurrency"));
+        // A transfer needs two different customers, as transferring to yourself always fails
+        int minKeys = ns.getString("workload").equals("transfer") ? 2 : 1;
+        if (ns.getInt("keys") < minKeys) {
+            System.out.println("--keys must be at least " + minKeys + " for the " + ns.getString("workload") + " workload");
+            System.exit(-1);
+        }
+        int[] timeouts = parseInts(ns.getString("timeouts"));
+
+        // Per-transaction logging would otherwise dominate the results
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(GameServer.class)).setLevel(Level.WARN);
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(TransferExample.class)).setLevel(Level.WARN);
+
+        Cluster cluster = null;
+        Collection collection = null;
+        if (!local) {
+            cluster = Cluster.connect(ns.getString("cluster"), ns.getString("username"), ns.getString("password"));
+            Bucket bucket = cluster.bucket(ns.getString("bucket"));
+            collection = bucket.defaultCollection();
+            bucket.waitUntilReady(Duration.ofSeconds(30));
+        }
+
+        List<Result> results = new ArrayList<>();
+
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(Paths.get(ns.getString("output")), StandardCharsets.UTF_8))) {
+            csv.println(Result.CSV_HEADER);
+
+            for (String durability : durabilities) {
+                for (int timeout : timeouts) {
+                    for (int concurrency : concurrencies) {
+                        logger.info("Running {} workload at durability {}, concurrency {}, timeout {}s",
+                                ns.getString("workload"), durability, concurrency, timeout);
+
+                        Transactions transactions = null;
+                        Backend backend;
+                        TransactionMetrics metrics = new TransactionMetrics();
+
+                        if (local) {
+                            backend = new LocalBackend()
+                                    .withLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(ns.getInt("local_latency_us"))))
+                                    .withDurabilityDelay(localDurabilityDelay(durability, ns.getInt("local_durability_us")))
+                                    .withTimeout(Duration.ofSeconds(timeout));
+                        }
+                        else {
+                            // Only one Transactions object should exist at a time, so each combination closes its own
+                            transactions = Transactions.create(cluster, TransactionConfigBuilder.create()
+                                    .durabilityLevel(CouchbaseBackend.parseDurability(durability))
+                                    .expirationTime(Duration.ofSeconds(timeout)));
+                            backend = new CouchbaseBackend(transactions, collection);
+                        }
+
+                        Result result = new Cell(ns, new MeteredBackend(backend, metrics), metrics)
+                                .run(durability, concurrency, timeout);
+                        results.add(result);
+
+                        // Written as each combination completes, so an interrupted sweep still leaves usable results
+                        csv.println(result.toCsv());
+                        csv.flush();
+
+                        if (transactions != null) {
+                            transactions.close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write " + ns.getString("output") + ": " + e);
+        } finally {
+            if (cluster != null) {
+                cluster.disconnect();
+            }
+        }
+
+        printSummary(System.out, results, durabilities, ns.getDouble("slo_p99_ms"));
+    }
+
+    /**
+     * A rough model of what each level waits for: nothing, replication to a majority, that plus a disk write on the
+     * active node, or disk writes on a majority.
+     */
+    private static Duration localDurabilityDelay(String durability, int majorityMicros) {
+        int multiplier;
+        switch (durability) {
+            case "none":
+                multiplier = 0;
+                break;
+            case "majority":
+                multiplier = 1;
+                break;
+            case "majority_and_persist":
+                multiplier = 2;
+                break;
+            default:
+                multiplier = 4;
+                break;
+        }
+        return Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos((long) majorityMicros * multiplier));
+    }
+
+    private static int[] parseInts(String values) {
+        String[] parts = values.split(",");
+        int[] out = new int[parts.length];
+        for (int i = 0; i < parts.length; i ++) {
+            out[i] = Integer.parseInt(parts[i].trim());
+        }
+        return out;
+    }
+
+    private static void printSummary(PrintStream out, List<Result> results, List<String> durabilities, double sloP99Millis) {
+        out.println();
+        out.printf("%-22s %11s %8s %12s %10s %10s %10s %8s%n",
+                "durability", "concurrency", "timeout", "ops/s", "p50 (us)", "p99 (us)", "retries", "failed");
+        for (Result result : results) {
+            out.printf("%-22s %11d %7ds %12.1f %10d %10d %10.3f %8d%n", result.durability, result.concurrency,
+                    result.timeoutSecs, result.throughput(), result.p50Micros, result.p99Micros,
+                    result.retriesPerTransaction, result.failed + result.ambiguous);
+        }
+
+        if (sloP99Millis <= 0) {
+            return;
+        }
+
+        out.println();
+        out.printf("Best throughput within a p99 of %.1fms:%n", sloP99Millis);
+        for (String durability : durabilities) {
+            Result best = null;
+            for (Result result : results) {
+                if (result.durability.equals(durability) && result.p99Micros <= sloP99Millis * 1000
+                        && result.failed + result.ambiguous == 0
+                        && (best == null || result.throughput() > best.throughput())) {
+                    best = result;
+                }
+            }
+            if (best == null) {
+                out.printf("  %-22s does not meet the objective%n", durability);
+            }
+            else {
+                out.printf("  %-22s %.1f ops/s at concurrency %d, timeout %ds%n", durability, best.throughput(),
+                        best.concurrency, best.timeoutSecs);
+            }
+        }
+    }
+
+    /**
+     * One combination of settings: seeds fresh documents, then runs the workload from several threads.
+     */
+    private static class Cell {
+        private static final int REMOVE_BATCH_SIZE = 100;
+
+        private final Backend backend;
+        private final TransactionMetrics metrics;
+        private final String workload;
+        private final int keys;
+        private final int warmupSecs;
+        private final int durationSecs;
+        private final long seed;
+        private final String keyPrefix = "sweep::" + UUID.randomUUID() + "::";
+
+        private volatile boolean measuring = false;
+        private volatile boolean stopped = false;
+
+        Cell(Namespace ns, Backend backend, TransactionMetrics metrics) {
+            this.backend = backend;
+            this.metrics = metrics;
+            this.workload = ns.getString("workload");
+            this.keys = ns.getInt("keys");
+            this.warmupSecs = ns.getInt("warmup");
+            this.durationSecs = ns.getInt("duration");
+            this.seed = ns.getLong("seed");
+        }
+
+        Result run(String durability, int concurrency, int timeoutSecs) {
+            seed();
+
+            GameServer gameServer = new GameServer(backend);
+            List<Worker> workers = new ArrayList<>();
+            for (int i = 0; i < concurrency; i ++) {
+                Worker worker = new Worker(new Random(seed + i), gameServer);
+                workers.add(worker);
+                worker.start();
+            }
+
+            sleep(TimeUnit.SECONDS.toMillis(warmupSecs));
+            long committed = metrics.getCommitted();
+            long failed = metrics.getFailed();
+            long rolledBack = metrics.getRolledBack();
+            long ambiguous = metrics.getAmbiguous();
+            long attempts = metrics.getAttempts();
+            measuring = true;
+            long start = System.nanoTime();
+
+            sleep(TimeUnit.SECONDS.toMillis(durationSecs));
+            measuring = false;
+            long elapsed = System.nanoTime() - start;
+            stopped = true;
+
+            Histogram latencyMicros = new Histogram(3);
+            List<String> written = new ArrayList<>();
+            for (Worker worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latencyMicros.add(worker.latencyMicros);
+                written.addAll(worker.transferIds);
+            }
+
+            // Transactions still in flight when measuring stopped are included, which is negligible over a whole run
+            long transactions = (metrics.getCommitted() - committed) + (metrics.getFailed() - failed)
+                    + (metrics.getRolledBack() - rolledBack) + (metrics.getAmbiguous() - ambiguous);
+            long retries = (metrics.getAttempts() - attempts) - transactions;
+            Result result = new Result(workload, durability, concurrency, timeoutSecs, latencyMicros.getTotalCount(), elapsed,
+                    latencyMicros, transactions == 0 ? 0.0 : retries / (double) transactions,
+                    metrics.getFailed() - failed, metrics.getAmbiguous() - ambiguous);
+
+            if (workload.equals("game")) {
+                written.add(keyPrefix + "player");
+            }
+            for (int i = 0; i < keys; i ++) {
+                written.add(keyPrefix + i);
+            }
+            remove(written);
+
+            return result;
+        }
+
+        /**
+         * Removes this combination's documents, so that a sweep against a cluster does not leave them behind.  Failures
+         * are logged rather than failing the sweep, as the results are already measured.
+         */
+        private void remove(List<String> ids) {
+            for (int from = 0; from < ids.size(); from += REMOVE_BATCH_SIZE) {
+                List<String> batch = ids.subList(from, Math.min(from + REMOVE_BATCH_SIZE, ids.size()));
+                try {
+                    backend.run(ctx -> {
+                        for (String id : batch) {
+                            // Transfers that did not commit left nothing to remove
+                            ctx.getOptional(id).ifPresent(ctx::remove);
+                        }
+                    });
+                } catch (BackendTransactionFailed err) {
+                    logger.warn("Could not remove {} documents under {}: {}", batch.size(), keyPrefix, err.getMessage());
+                }
+            }
+        }
+
+        private void seed() {
+            if (workload.equals("game")) {
+                backend.upsert(keyPrefix + "player", JsonObject.create()
+                        .put("experience", 0)
+                        .put("level", 0)
+                        .put("jsonType", "player"));
+            }
+            for (int i = 0; i < keys; i ++) {
+                // Monsters never die and customers never run out, so every operation does the same work
+                if (workload.equals("game")) {
+                    backend.upsert(keyPrefix + i, JsonObject.create()
+                            .put("hitpoints", Integer.MAX_VALUE)
+                            .put("experienceWhenKilled", 0)
+                            .put("jsonType", "monster"));
+                }
+                else {
+                    backend.upsert(keyPrefix + i, JsonObject.create()
+                            .put("type", "Customer")
+                            .put("balance", Integer.MAX_VALUE / 2));
+                }
+            }
+        }
+
+        private class Worker extends Thread {
+            private final Random random;
+            private final GameServer gameServer;
+            final Histogram latencyMicros = new Histogram(3);
+            // Every transfer document this worker may have written, so that they can be removed afterwards
+            final List<String> transferIds = new ArrayList<>();
+
+            Worker(Random random, GameServer gameServer) {
+                this.random = random;
+                this.gameServer = gameServer;
+            }
+
+            @Override
+            public void run() {
+                while (!stopped) {
+                    boolean measured = measuring;
+                    long start = System.nanoTime();
+                    boolean ok = operation();
+                    long taken = System.nanoTime() - start;
+
+                    if (measured && measuring && ok) {
+                        latencyMicros.recordValue(TimeUnit.NANOSECONDS.toMicros(taken));
+                    }
+                }
+            }
+
+            // Returns whether the operation completed, so that failures are not counted as throughput
+            private boolean operation() {
+                int key = random.nextInt(keys);
+
+                if (workload.equals("game")) {
+                    HitOutcome outcome = gameServer.playerHitsMonster(UUID.randomUUID().toString(), 1,
+                            keyPrefix + "player", keyPrefix + key);
+                    return outcome != HitOutcome.FAILED && outcome != HitOutcome.AMBIGUOUS;
+                }
+
+                int to = (key + 1 + random.nextInt(keys - 1)) % keys;
+                String transferId = keyPrefix + "transfer::" + UUID.randomUUID();
+                transferIds.add(transferId);
+                TransferStatus status = TransferExample.transferMoney(backend, transferId, keyPrefix + key,
+                        keyPrefix + to, 1);
+                return status == TransferStatus.COMMITTED;
+            }
+        }
+    }
+
+    private static class Result {
+        static final String CSV_HEADER = "workload,durability,concurrency,timeout_s,operations,elapsed_s,throughput_ops_s,"
+                + "p50_us,p90_us,p99_us,p999_us,max_us,retries_per_transaction,failed,ambiguous";
+
+        final String workload;
+        final String durability;
+        final int concurrency;
+        final int timeoutSecs;
+        final long operations;
+        final long elapsedNanos;
+        final long p50Micros;
+        final long p90Micros;
+        final long p99Micros;
+        final long p999Micros;
+        final long maxMicros;
+        final double retriesPerTransaction;
+        final long failed;
+        final long ambiguous;
+
+        Result(String workload, String durability, int concurrency, int timeoutSecs, long operations, long elapsedNanos,
+               Histogram latencyMicros, double retriesPerTransaction, long failed, long ambiguous) {
+            this.workload = workload;
+            this.durability = durability;
+            this.concurrency = concurrency;
+            this.timeoutSecs = timeoutSecs;
+            this.operations = operations;
+            this.elapsedNanos = elapsedNanos;
+            this.p50Micros = latencyMicros.getValueAtPercentile(50);
+            this.p90Micros = latencyMicros.getValueAtPercentile(90);
+            this.p99Micros = latencyMicros.getValueAtPercentile(99);
+            this.p999Micros = latencyMicros.getValueAtPercentile(99.9);
+            this.maxMicros = latencyMicros.getMaxValue();
+            this.retriesPerTransaction = retriesPerTransaction;
+            this.failed = failed;
+            this.ambiguous = ambiguous;
+        }
+
+        double throughput() {
+            return operations / (elapsedNanos / 1e9);
+        }
+
+        String toCsv() {
+            return String.format("%s,%s,%d,%d,%d,%.3f,%.1f,%d,%d,%d,%d,%d,%.4f,%d,%d", workload, durability, concurrency,
+                    timeoutSecs, operations, elapsedNanos / 1e9, throughput(), p50Micros, p90Micros, p99Micros,
+                    p999Micros, maxMicros, retriesPerTransaction, failed, ambiguous);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
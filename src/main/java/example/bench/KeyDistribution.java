@@ -0,0 +1,40 @@
+package example.bench;
+
+import java.util.Random;
+
+/**
+ * Chooses which of a fixed number of keys a benchmark operation should use, as an index from 0 (inclusive) to the
+ * number of keys (exclusive).
+ */
+public interface KeyDistribution {
+    int next(Random random);
+
+    /**
+     * Every key is equally likely.
+     */
+    static KeyDistribution uniform(int keys) {
+        return random -> random.nextInt(keys);
+    }
+
+    /**
+     * A few keys are very hot and most are cold, as is typical of real workloads.  Key 0 is the hottest.
+     */
+    static KeyDistribution zipfian(int keys, double theta) {
+        ZipfianGenerator generator = new ZipfianGenerator(keys, theta);
+        return random -> (int) generator.next(random);
+    }
+
+    /**
+     * @param name "uniform" or "zipfian"
+     */
+    static KeyDistribution forName(String name, int keys, double theta) {
+        switch (name.toLowerCase()) {
+            case "uniform":
+                return uniform(keys);
+            case "zipfian":
+                return zipfian(keys, theta);
+            default:
+                throw new IllegalArgumentException("Unknown key distribution " + name);
+        }
+    }
+}
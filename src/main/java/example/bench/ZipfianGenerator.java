@@ -0,0 +1,61 @@
+package example.bench;
+
+import java.util.Random;
+
+/**
+ * Generates Zipf-distributed values from 0 (inclusive) to items (exclusive), with 0 the most frequent.
+ *
+ * This is the algorithm from Gray et al, "Quickly Generating Billion-Record Synthetic Databases", as used by YCSB.  The
+ * constants are computed once up-front (in time proportional to the number of items), after which each value is
+ * generated in constant time.  Instances are immutable, so can be shared between threads.
+ */
+public class ZipfianGenerator {
+    private final long items;
+    private final double theta;
+    private final double zetan;
+    private final double alpha;
+    private final double eta;
+
+    /**
+     * @param theta the skew, between 0 (exclusive, nearly uniform) and 1 (exclusive, very skewed).  YCSB uses 0.99.
+     */
+    public ZipfianGenerator(long items, double theta) {
+        if (items < 2) {
+            throw new IllegalArgumentException("Need at least 2 items");
+        }
+        if (theta <= 0 || theta >= 1) {
+            throw new IllegalArgumentException("theta must be between 0 and 1 exclusive");
+        }
+
+        this.items = items;
+        this.theta = theta;
+        this.zetan = zeta(items, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+
+        double zeta2theta = zeta(2, theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2theta / zetan);
+    }
+
+    public long next(Random random) {
+        double u = random.nextDouble();
+        double uz = u * zetan;
+
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < 1.0 + Math.pow(0.5, theta)) {
+            return 1;
+        }
+
+        long value = (long) (items * Math.pow(eta * u - eta + 1, alpha));
+        return Math.min(value, items - 1);
+    }
+
+    private static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 0; i < n; i ++) {
+            sum += 1 / Math.pow(i + 1, theta);
+        }
+        return sum;
+    }
+}
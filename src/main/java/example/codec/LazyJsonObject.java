@@ -0,0 +1,636 @@
+package example.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A JSON object that is decoded lazily, one field at a time, and re-encoded by splicing changed fields into the
+ * original bytes.
+ *
+ * Decoding a document into a {@code JsonObject} builds the whole tree, and encoding it walks the whole tree again, even
+ * when the transaction only reads or changes one or two fields.  Here, the first access just finds where each
+ * top-level field starts and ends.  Only the fields that are read are decoded, and only those that are changed are
+ * encoded: everything else is copied through byte for byte.
+ *
+ * This is not a general JSON library - it assumes its input is valid JSON, and only supports the handful of operations
+ * the examples need.
+ */
+public final class LazyJsonObject {
+    private static final byte[] EMPTY = {'{', '}'};
+
+    private final byte[] json;
+
+    // For each top-level field: the offset of its key's opening quote, the offset after its key's closing quote, the
+    // offset of its value, and the offset after its value.  Found on first access.
+    private int[] spans;
+    private int fieldCount = -1;
+    private int closingBrace;
+
+    // Fields changed since decoding, with their new encoded values
+    private String[] editFields = new String[4];
+    private byte[][] editValues = new byte[4][];
+    private int editCount;
+
+    private LazyJsonObject(byte[] json) {
+        this.json = json;
+    }
+
+    /**
+     * Wraps a JSON object, without decoding it.  The bytes must not be modified afterwards.
+     */
+    public static LazyJsonObject of(byte[] json) {
+        return new LazyJsonObject(json);
+    }
+
+    public static LazyJsonObject create() {
+        return new LazyJsonObject(EMPTY);
+    }
+
+    public boolean has(String field) {
+        return editIndex(field) >= 0 || fieldIndex(field) >= 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the field is missing or not an integer
+     */
+    public int getInt(String field) {
+        long value = getLong(field);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Field " + field + " is out of range for an int");
+        }
+        return (int) value;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the field is missing or not an integer
+     */
+    public long getLong(String field) {
+        int edit = editIndex(field);
+        if (edit >= 0) {
+            return parseLong(editValues[edit], 0, editValues[edit].length, field);
+        }
+        int index = requireField(field);
+        return parseLong(json, spans[index * 4 + 2], spans[index * 4 + 3], field);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the field is missing or not a number
+     */
+    public double getDouble(String field) {
+        int edit = editIndex(field);
+        if (edit >= 0) {
+            return parseDouble(editValues[edit], 0, editValues[edit].length, field);
+        }
+        int index = requireField(field);
+        return parseDouble(json, spans[index * 4 + 2], spans[index * 4 + 3], field);
+    }
+
+    /**
+     * @return null if the field is missing or null
+     * @throws IllegalArgumentException if the field is not a string
+     */
+    public String getString(String field) {
+        int edit = editIndex(field);
+        if (edit >= 0) {
+            return decodeString(editValues[edit], 0, editValues[edit].length, field);
+        }
+        int index = fieldIndex(field);
+        if (index < 0) {
+            return null;
+        }
+        return decodeString(json, spans[index * 4 + 2], spans[index * 4 + 3], field);
+    }
+
+    /**
+     * Whether the field is an array containing the string, without decoding the array.  False if the field is missing.
+     */
+    public boolean arrayContains(String field, String value) {
+        byte[] buf;
+        int start;
+        int end;
+
+        int edit = editIndex(field);
+        if (edit >= 0) {
+            buf = editValues[edit];
+            start = 0;
+            end = buf.length;
+        }
+        else {
+            int index = fieldIndex(field);
+            if (index < 0) {
+                return false;
+            }
+            buf = json;
+            start = spans[index * 4 + 2];
+            end = spans[index * 4 + 3];
+        }
+
+        if (buf[start] != '[') {
+            return false;
+        }
+
+        byte[] encoded = encodeString(value);
+        int i = skipWhitespace(buf, start + 1);
+        while (i < end && buf[i] != ']') {
+            int elementEnd = skipValue(buf, i);
+            // Elements are compared as encoded, and only decoded if they contain escapes
+            if (regionEquals(buf, i, elementEnd, encoded)
+                    || (buf[i] == '"' && hasEscapes(buf, i, elementEnd) && value.equals(decodeString(buf, i, elementEnd, field)))) {
+                return true;
+            }
+            i = skipSeparator(buf, elementEnd);
+        }
+        return false;
+    }
+
+    public LazyJsonObject put(String field, int value) {
+        return putEncoded(field, Integer.toString(value).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public LazyJsonObject put(String field, long value) {
+        return putEncoded(field, Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    public LazyJsonObject put(String field, String value) {
+        return putEncoded(field, value == null ? "null".getBytes(StandardCharsets.US_ASCII) : encodeString(value));
+    }
+
+    /**
+     * Appends a string to an array field, creating it if necessary, and drops the oldest elements so that at most
+     * maxSize remain.  The elements that are kept are copied without being decoded.
+     */
+    public LazyJsonObject appendToArray(String field, String value, int maxSize) {
+        byte[] buf = null;
+        int start = 0;
+        int end = 0;
+
+        int edit = editIndex(field);
+        if (edit >= 0) {
+            buf = editValues[edit];
+            end = buf.length;
+        }
+        else {
+            int index = fieldIndex(field);
+            if (index >= 0 && json[spans[index * 4 + 2]] == '[') {
+                buf = json;
+                start = spans[index * 4 + 2];
+                end = spans[index * 4 + 3];
+            }
+        }
+
+        byte[] encoded = encodeString(value);
+
+        if (buf == null) {
+            byte[] array = new byte[encoded.length + 2];
+            array[0] = '[';
+            System.arraycopy(encoded, 0, array, 1, encoded.length);
+            array[array.length - 1] = ']';
+            return putEncoded(field, array);
+        }
+
+        // Count the elements, so the oldest can be skipped without collecting them all
+        int count = 0;
+        int i = skipWhitespace(buf, start + 1);
+        while (i < end && buf[i] != ']') {
+            count ++;
+            i = skipSeparator(buf, skipValue(buf, i));
+        }
+
+        // Find where the first element that is kept starts.  Everything from there to the closing bracket is copied as
+        // is, including the separators.
+        int skip = Math.max(0, count - maxSize + 1);
+        i = skipWhitespace(buf, start + 1);
+        for (int n = 0; n < skip; n ++) {
+            i = skipSeparator(buf, skipValue(buf, i));
+        }
+        int keptStart = i;
+        int keptEnd = end - 1;
+        while (keptEnd > keptStart && isWhitespace(buf[keptEnd - 1])) {
+            keptEnd --;
+        }
+        boolean anyKept = keptEnd > keptStart;
+
+        byte[] array = new byte[1 + (keptEnd - keptStart) + (anyKept ? 1 : 0) + encoded.length + 1];
+        int pos = 0;
+        array[pos ++] = '[';
+        System.arraycopy(buf, keptStart, array, pos, keptEnd - keptStart);
+        pos += keptEnd - keptStart;
+        if (anyKept) {
+            array[pos ++] = ',';
+        }
+        System.arraycopy(encoded, 0, array, pos, encoded.length);
+        pos += encoded.length;
+        array[pos] = ']';
+
+        return putEncoded(field, array);
+    }
+
+    private LazyJsonObject putEncoded(String field, byte[] value) {
+        int edit = editIndex(field);
+        if (edit >= 0) {
+            editValues[edit] = value;
+            return this;
+        }
+
+        if (editCount == editFields.length) {
+            editFields = Arrays.copyOf(editFields, editCount * 2);
+            editValues = Arrays.copyOf(editValues, editCount * 2);
+        }
+        editFields[editCount] = field;
+        editValues[editCount] = value;
+        editCount ++;
+        return this;
+    }
+
+    /**
+     * Encodes the object, with any changes.  If nothing has changed, this is the original array, which must not be
+     * modified.
+     */
+    public byte[] encode() {
+        if (editCount == 0) {
+            return json;
+        }
+        index();
+
+        // Changed fields that already exist are replaced in place, in the order they appear.  New fields go at the end.
+        int[] existing = new int[editCount];
+        int[] order = new int[editCount];
+        int replaced = 0;
+        int length = json.length;
+
+        for (int e = 0; e < editCount; e ++) {
+            int index = fieldIndex(editFields[e]);
+            existing[e] = index;
+            if (index >= 0) {
+                length += editValues[e].length - (spans[index * 4 + 3] - spans[index * 4 + 2]);
+
+                // Insertion sort by position - there are only ever a few edits
+                int j = replaced ++;
+                while (j > 0 && spans[existing[order[j - 1]] * 4 + 2] > spans[index * 4 + 2]) {
+                    order[j] = order[j - 1];
+                    j --;
+                }
+                order[j] = e;
+            }
+        }
+
+        byte[][] newKeys = new byte[editCount][];
+        boolean needsComma = fieldCount > 0;
+        for (int e = 0; e < editCount; e ++) {
+            if (existing[e] < 0) {
+                newKeys[e] = encodeString(editFields[e]);
+                length += (needsComma ? 1 : 0) + newKeys[e].length + 1 + editValues[e].length;
+                needsComma = true;
+            }
+        }
+
+        byte[] out = new byte[length];
+        int from = 0;
+        int pos = 0;
+
+        for (int r = 0; r < replaced; r ++) {
+            int e = order[r];
+            int index = existing[e];
+            int valueStart = spans[index * 4 + 2];
+
+            System.arraycopy(json, from, out, pos, valueStart - from);
+            pos += valueStart - from;
+            System.arraycopy(editValues[e], 0, out, pos, editValues[e].length);
+            pos += editValues[e].length;
+            from = spans[index * 4 + 3];
+        }
+
+        System.arraycopy(json, from, out, pos, closingBrace - from);
+        pos += closingBrace - from;
+
+        needsComma = fieldCount > 0;
+        for (int e = 0; e < editCount; e ++) {
+            if (existing[e] < 0) {
+                if (needsComma) {
+                    out[pos ++] = ',';
+                }
+                System.arraycopy(newKeys[e], 0, out, pos, newKeys[e].length);
+                pos += newKeys[e].length;
+                out[pos ++] = ':';
+                System.arraycopy(editValues[e], 0, out, pos, editValues[e].length);
+                pos += editValues[e].length;
+                needsComma = true;
+            }
+        }
+
+        System.arraycopy(json, closingBrace, out, pos, json.length - closingBrace);
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return new String(encode(), StandardCharsets.UTF_8);
+    }
+
+    private int editIndex(String field) {
+        for (int e = 0; e < editCount; e ++) {
+            if (editFields[e].equals(field)) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    private int requireField(String field) {
+        int index = fieldIndex(field);
+        if (index < 0) {
+            throw new IllegalArgumentException("Field " + field + " is missing");
+        }
+        return index;
+    }
+
+    private int fieldIndex(String field) {
+        index();
+        for (int f = 0; f < fieldCount; f ++) {
+            if (keyEquals(spans[f * 4], spans[f * 4 + 1], field)) {
+                return f;
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int start, int end, String field) {
+        // The key is compared without decoding, unless it contains escapes or non-ASCII characters
+        int length = end - start - 2;
+        boolean simple = true;
+        for (int i = start + 1; i < end - 1 && simple; i ++) {
+            simple = json[i] != '\\' && json[i] >= 0;
+        }
+        if (!simple) {
+            return field.equals(decodeString(json, start, end, field));
+        }
+        if (length != field.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i ++) {
+            if (json[start + 1 + i] != field.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void index() {
+        if (fieldCount >= 0) {
+            return;
+        }
+
+        spans = new int[32];
+        int count = 0;
+
+        int i = skipWhitespace(json, 0);
+        if (i >= json.length || json[i] != '{') {
+            throw new IllegalArgumentException("Not a JSON object");
+        }
+        i = skipWhitespace(json, i + 1);
+
+        while (json[i] != '}') {
+            if (json[i] != '"') {
+                throw new IllegalArgumentException("Expected a field name at offset " + i);
+            }
+            if ((count + 1) * 4 > spans.length) {
+                spans = Arrays.copyOf(spans, spans.length * 2);
+            }
+
+            int keyStart = i;
+            i = skipString(json, i);
+            spans[count * 4] = keyStart;
+            spans[count * 4 + 1] = i;
+
+            i = skipWhitespace(json, i);
+            if (json[i] != ':') {
+                throw new IllegalArgumentException("Expected ':' at offset " + i);
+            }
+            i = skipWhitespace(json, i + 1);
+
+            spans[count * 4 + 2] = i;
+            i = skipValue(json, i);
+            spans[count * 4 + 3] = i;
+            count ++;
+
+            i = skipWhitespace(json, i);
+            if (json[i] == ',') {
+                i = skipWhitespace(json, i + 1);
+            }
+            else if (json[i] != '}') {
+                throw new IllegalArgumentException("Expected ',' or '}' at offset " + i);
+            }
+        }
+
+        closingBrace = i;
+        fieldCount = count;
+    }
+
+    private static int skipWhitespace(byte[] buf, int i) {
+        while (i < buf.length && isWhitespace(buf[i])) {
+            i ++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    // Skips past the comma after an array element, if there is one
+    private static int skipSeparator(byte[] buf, int i) {
+        i = skipWhitespace(buf, i);
+        if (i < buf.length && buf[i] == ',') {
+            i = skipWhitespace(buf, i + 1);
+        }
+        return i;
+    }
+
+    private static int skipString(byte[] buf, int i) {
+        i ++;
+        while (buf[i] != '"') {
+            i += buf[i] == '\\' ? 2 : 1;
+        }
+        return i + 1;
+    }
+
+    private static int skipValue(byte[] buf, int i) {
+        byte b = buf[i];
+
+        if (b == '"') {
+            return skipString(buf, i);
+        }
+
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                b = buf[i];
+                if (b == '"') {
+                    i = skipString(buf, i);
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth ++;
+                }
+                else if (b == '}' || b == ']') {
+                    depth --;
+                }
+                i ++;
+            } while (depth > 0);
+            return i;
+        }
+
+        // A number, true, false or null
+        while (i < buf.length && buf[i] != ',' && buf[i] != '}' && buf[i] != ']' && !isWhitespace(buf[i])) {
+            i ++;
+        }
+        return i;
+    }
+
+    private static boolean regionEquals(byte[] buf, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i ++) {
+            if (buf[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseLong(byte[] buf, int start, int end, String field) {
+        // Parsed straight from the bytes, so reading a number allocates nothing
+        int i = start;
+        boolean negative = i < end && buf[i] == '-';
+        if (negative) {
+            i ++;
+        }
+        if (i == end) {
+            throw new IllegalArgumentException("Field " + field + " is not an integer");
+        }
+
+        // Accumulated as a negative number, as Long.MIN_VALUE has no positive counterpart
+        long value = 0;
+        for (; i < end; i ++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Field " + field + " is not an integer");
+            }
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                throw new IllegalArgumentException("Field " + field + " is out of range for a long");
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative && value == Long.MIN_VALUE) {
+            throw new IllegalArgumentException("Field " + field + " is out of range for a long");
+        }
+        return negative ? value : -value;
+    }
+
+    private static double parseDouble(byte[] buf, int start, int end, String field) {
+        try {
+            return Double.parseDouble(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Field " + field + " is not a number");
+        }
+    }
+
+    private static boolean hasEscapes(byte[] buf, int start, int end) {
+        for (int i = start + 1; i < end - 1; i ++) {
+            if (buf[i] == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String decodeString(byte[] buf, int start, int end, String field) {
+        if (end - start == 4 && buf[start] == 'n') {
+            return null;
+        }
+        if (buf[start] != '"') {
+            throw new IllegalArgumentException("Field " + field + " is not a string");
+        }
+
+        if (!hasEscapes(buf, start, end)) {
+            return new String(buf, start + 1, end - start - 2, StandardCharsets.UTF_8);
+        }
+
+        // Escapes are rare, so are handled by unescaping everything into a buffer and then decoding it
+        byte[] out = new byte[end - start];
+        int pos = 0;
+        for (int i = start + 1; i < end - 1; i ++) {
+            if (buf[i] != '\\') {
+                out[pos ++] = buf[i];
+                continue;
+            }
+            byte next = buf[++ i];
+            switch (next) {
+                case 'b': out[pos ++] = '\b'; break;
+                case 'f': out[pos ++] = '\f'; break;
+                case 'n': out[pos ++] = '\n'; break;
+                case 'r': out[pos ++] = '\r'; break;
+                case 't': out[pos ++] = '\t'; break;
+                case 'u':
+                    char c = (char) Integer.parseInt(new String(buf, i + 1, 4, StandardCharsets.US_ASCII), 16);
+                    i += 4;
+                    // A surrogate pair is two escapes, which must be decoded together
+                    if (Character.isHighSurrogate(c) && i + 6 < end && buf[i + 1] == '\\' && buf[i + 2] == 'u') {
+                        char low = (char) Integer.parseInt(new String(buf, i + 3, 4, StandardCharsets.US_ASCII), 16);
+                        i += 6;
+                        byte[] utf8 = new String(new char[] {c, low}).getBytes(StandardCharsets.UTF_8);
+                        System.arraycopy(utf8, 0, out, pos, utf8.length);
+                        pos += utf8.length;
+                    }
+                    else {
+                        byte[] utf8 = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                        System.arraycopy(utf8, 0, out, pos, utf8.length);
+                        pos += utf8.length;
+                    }
+                    break;
+                default:
+                    // \" \\ and \/
+                    out[pos ++] = next;
+            }
+        }
+        return new String(out, 0, pos, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeString(String value) {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i ++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                sb = new StringBuilder(value.length() + 8);
+                break;
+            }
+        }
+
+        if (sb == null) {
+            // The common case, with nothing to escape
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            byte[] out = new byte[utf8.length + 2];
+            out[0] = '"';
+            System.arraycopy(utf8, 0, out, 1, utf8.length);
+            out[out.length - 1] = '"';
+            return out;
+        }
+
+        sb.append('"');
+        for (int i = 0; i < value.length(); i ++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
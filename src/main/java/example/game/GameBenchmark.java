@@ -0,0 +1,549 @@
+package example.game;
+
+import ch.qos.logback.classic.Level;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.Collection;
+import com.couchbase.client.java.json.JsonObject;
+import com.couchbase.transactions.Transactions;
+import com.couchbase.transactions.config.TransactionConfigBuilder;
+import example.admission.AdaptiveLimit;
+import example.admission.AdmissionControlledBackend;
+import example.backend.Backend;
+import example.backend.BackendContext;
+import example.backend.BackendResult;
+import example.backend.BackendTransactionFailed;
+import example.backend.CouchbaseBackend;
+import example.backend.Document;
+import example.backend.LocalBackend;
+import example.backend.ReactiveBackendContext;
+import example.bench.KeyDistribution;
+import example.trace.TraceRecorder;
+import example.trace.TracingBackend;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A load generator for {@link GameServer}: many players continuously hitting many monsters, reporting throughput and
+ * latency.
+ *
+ * It can run against a Couchbase cluster, or against an in-process {@link LocalBackend} so that the server-side logic
+ * can be benchmarked offline (e.g. on a CI box).
+ */
+public class GameBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(GameBenchmark.class);
+
+    private static final String MONSTER_TEMPLATE_ID = "monster_template::grue";
+
+    public static void main(String[] args) {
+        // Parse command line arguments
+        ArgumentParser parser = ArgumentParsers.newFor("Couchbase Distributed Transactions Game Benchmark").build()
+                .defaultHelp(true)
+                .description("A load generator for the game example, reporting throughput and latency.");
+        parser.addArgument("-t", "--target")
+                .setDefault("local")
+                .choices("local", "cluster")
+                .help("Run against an in-process stand-in, or a Couchbase cluster");
+        parser.addArgument("-c", "--cluster")
+                .help("Specify Couchbase cluster address (cluster target only)");
+        parser.addArgument("-u", "--username")
+                .help("Specify username of Couchbase user (cluster target only)");
+        parser.addArgument("-p", "--password")
+                .help("Specify password of Couchbase user (cluster target only)");
+        parser.addArgument("-b", "--bucket")
+                .help("Specify name of Couchbase bucket (cluster target only)");
+        parser.addArgument("-d", "--durability")
+                .setDefault("majority")
+                .help("Durability setting to use: majority,none,persist_to_majority,majority_and_persist (default:majority)");
+        parser.addArgument("--local-latency-us")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("Latency added to every operation (local target only)");
+        parser.addArgument("--local-durability-us")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("Delay added to every write and commit, standing in for durable replication (local target only)");
+        parser.addArgument("--local-conflict-rate")
+                .setDefault(0.0)
+                .type(Double.class)
+                .help("Fraction of commits that fail with an injected conflict and are retried (local target only)");
+        parser.addArgument("--admission-limit")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("If non-zero, limits how many hits run at once, starting at this many and adapting to contention");
+        parser.addArgument("--admission-queue-ms")
+                .setDefault(100)
+                .type(Integer.class)
+                .help("With --admission-limit, how long a hit over the limit waits before it is rejected");
+        parser.addArgument("--trace-file")
+                .help("If set, records every transaction into this trace file, to measure what tracing costs");
+        parser.addArgument("--actors")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("If non-zero, applies hits in memory on this many zone actor threads, flushing to the backend in batches");
+        parser.addArgument("--zones")
+                .setDefault(64)
+                .type(Integer.class)
+                .help("With --actors, how many zones monsters are partitioned into");
+        parser.addArgument("--flush-ms")
+                .setDefault(100)
+                .type(Integer.class)
+                .help("With --actors, how often each zone flushes its changes");
+        parser.addArgument("--leaderboard")
+                .setDefault(false)
+                .action(Arguments.storeConst()).setConst(true)
+                .type(Boolean.class)
+                .help("Maintains an in-memory leaderboard, rebuilt from a scan of the players at startup, and reports on it");
+        parser.addArgument("--players")
+                .setDefault(1000)
+                .type(Integer.class)
+                .help("How many players to create");
+        parser.addArgument("--monsters")
+                .setDefault(100)
+                .type(Integer.class)
+                .help("How many monsters to create");
+        parser.addArgument("--no-seed")
+                .setDefault(false)
+                .action(Arguments.storeConst()).setConst(true)
+                .type(Boolean.class)
+                .help("Runs against players and monsters already loaded, e.g. by the game seeder with the same counts");
+        parser.addArgument("--monster-hitpoints")
+                .setDefault(4000)
+                .type(Integer.class)
+                .help("Hitpoints each monster starts with.  Killed monsters are respawned");
+        parser.addArgument("--max-damage")
+                .setDefault(200)
+                .type(Integer.class)
+                .help("Each hit does a random amount of damage between 1 and this");
+        parser.addArgument("--distribution")
+                .setDefault("uniform")
+                .choices("uniform", "zipfian")
+                .help("How players and monsters are chosen for each hit");
+        parser.addArgument("--zipf-theta")
+                .setDefault(0.99)
+                .type(Double.class)
+                .help("Skew of the zipfian distribution, between 0 and 1 exclusive");
+        parser.addArgument("--concurrency")
+                .setDefault(16)
+                .type(Integer.class)
+                .help("How many hits to run concurrently");
+        parser.addArgument("--warmup")
+                .setDefault(5)
+                .type(Integer.class)
+                .help("Seconds to run before measuring");
+        parser.addArgument("--duration")
+                .setDefault(30)
+                .type(Integer.class)
+                .help("Seconds to measure for");
+        parser.addArgument("--seed")
+                .setDefault(42L)
+                .type(Long.class)
+                .help("Random seed, so runs are repeatable");
+        try {
+            Namespace ns = parser.parseArgs(args);
+            run(ns);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+        }
+    }
+
+    private static void run(Namespace ns) {
+        Cluster cluster = null;
+        Transactions transactions = null;
+        Backend backend;
+
+        if (ns.getString("target").equals("cluster")) {
+            if (ns.getString("cluster") == null || ns.getString("username") == null
+                    || ns.getString("password") == null || ns.getString("bucket") == null) {
+                System.out.println("--cluster, --username, --password and --bucket are required for the cluster target");
+                System.exit(-1);
+            }
+
+            TransactionConfigBuilder config = TransactionConfigBuilder.create()
+                    .durabilityLevel(CouchbaseBackend.parseDurability(ns.getString("durability")));
+
+            cluster = Cluster.connect(ns.getString("cluster"), ns.getString("username"), ns.getString("password"));
+            Bucket bucket = cluster.bucket(ns.getString("bucket"));
+            Collection collection = bucket.defaultCollection();
+            bucket.waitUntilReady(Duration.ofSeconds(30));
+
+            transactions = Transactions.create(cluster, config);
+            // The cluster is used to scan players for the leaderboard
+            backend = new CouchbaseBackend(transactions, collection, cluster);
+        }
+        else {
+            backend = new LocalBackend()
+                    .withLatency(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(ns.getInt("local_latency_us"))))
+                    .withDurabilityDelay(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(ns.getInt("local_durability_us"))))
+                    .withInjectedConflicts(ns.getDouble("local_conflict_rate"), ns.getLong("seed"));
+        }
+
+        // Per-hit logging to the console would otherwise dominate the results
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(GameServer.class)).setLevel(Level.WARN);
+
+        CountingBackend countingBackend = new CountingBackend(backend);
+
+        // Outside the counting, so that rejected hits are not counted as transactions
+        AdaptiveLimit admission = null;
+        Backend workloadBackend = countingBackend;
+        if (ns.getInt("admission_limit") != 0) {
+            admission = new AdaptiveLimit(ns.getInt("admission_limit"))
+                    .withQueue(1000, Duration.ofMillis(ns.getInt("admission_queue_ms")));
+            workloadBackend = new AdmissionControlledBackend(countingBackend, admission);
+        }
+
+        TraceRecorder trace = TraceRecorder.openIfRequested(ns.getString("trace_file"), 64);
+        if (trace != null) {
+            workloadBackend = new TracingBackend(workloadBackend, trace);
+        }
+
+        Leaderboard leaderboard = ns.getBoolean("leaderboard") ? new Leaderboard() : null;
+        Workload workload = new Workload(ns, workloadBackend, leaderboard);
+
+        if (!ns.getBoolean("no_seed")) {
+            workload.seed();
+        }
+        if (leaderboard != null) {
+            // As on a cold start, after which the leaderboard is kept up to date by the game server, or zone actors
+            leaderboard.rebuild(backend);
+        }
+        Report report = workload.run(countingBackend);
+        workload.close();
+        report.print(System.out);
+        if (admission != null) {
+            System.out.printf("Admission:    %s%n", admission);
+        }
+        if (leaderboard != null) {
+            printLeaderboard(leaderboard, ns.getInt("players"));
+        }
+
+        // Shutdown resources cleanly
+        if (trace != null) {
+            trace.close();
+        }
+        if (transactions != null) {
+            transactions.close();
+        }
+        if (cluster != null) {
+            cluster.disconnect();
+        }
+    }
+
+    private static void printLeaderboard(Leaderboard leaderboard, int players) {
+        // Every player's rank, to show what a query costs - these never touch the backend
+        long start = System.nanoTime();
+        for (int i = 0; i < players; i ++) {
+            leaderboard.rank(playerId(i));
+        }
+        long rankNanos = (System.nanoTime() - start) / Math.max(1, players);
+
+        System.out.printf("Leaderboard:  %d players, %dns per rank query%n", leaderboard.size(), rankNanos);
+        for (Leaderboard.Entry entry : leaderboard.top(5)) {
+            System.out.printf("              %s%n", entry);
+        }
+    }
+
+    private static class Workload {
+        private final Backend backend;
+        private final GameServer gameServer;
+        private final int players;
+        private final int monsters;
+        private final int monsterHitpoints;
+        private final int maxDamage;
+        private final KeyDistribution playerDistribution;
+        private final KeyDistribution monsterDistribution;
+        private final int concurrency;
+        private final int warmupSecs;
+        private final int durationSecs;
+        private final long seed;
+        private final int zones;
+        private final ZoneActors actors;
+
+        private volatile boolean measuring = false;
+        private volatile boolean stopped = false;
+
+        Workload(Namespace ns, Backend backend, Leaderboard leaderboard) {
+            this.backend = backend;
+            this.gameServer = new GameServer(backend).withLeaderboard(leaderboard);
+            this.players = ns.getInt("players");
+            this.monsters = ns.getInt("monsters");
+            this.monsterHitpoints = ns.getInt("monster_hitpoints");
+            this.maxDamage = ns.getInt("max_damage");
+            this.playerDistribution = KeyDistribution.forName(ns.getString("distribution"), players, ns.getDouble("zipf_theta"));
+            this.monsterDistribution = KeyDistribution.forName(ns.getString("distribution"), monsters, ns.getDouble("zipf_theta"));
+            this.concurrency = ns.getInt("concurrency");
+            this.warmupSecs = ns.getInt("warmup");
+            this.durationSecs = ns.getInt("duration");
+            this.seed = ns.getLong("seed");
+            this.zones = ns.getInt("zones");
+            this.actors = ns.getInt("actors") == 0 ? null
+                    : new ZoneActors(backend, ns.getInt("actors"), Duration.ofMillis(ns.getInt("flush_ms")),
+                            ns.getInt("actors")).withLeaderboard(leaderboard);
+        }
+
+        /**
+         * Flushes anything the zone actors have not yet written.
+         */
+        void close() {
+            if (actors != null) {
+                long start = System.nanoTime();
+                actors.close();
+                logger.info("Final flush took {}ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                if (actors.getDeadLetteredFlushes() > 0 || actors.getFailingZones() > 0) {
+                    logger.warn("{} zone flushes were dropped, and {} zones were still failing",
+                            actors.getDeadLetteredFlushes(), actors.getFailingZones());
+                }
+            }
+        }
+
+        void seed() {
+            for (int i = 0; i < players; i ++) {
+                backend.upsert(playerId(i), JsonObject.create()
+                        .put("experience", 0)
+                        .put("hitpoints", 23832)
+                        .put("jsonType", "player")
+                        .put("level", 0)
+                        .put("loggedIn", true)
+                        .put("name", "Player " + i)
+                        .put("uuid", UUID.randomUUID().toString()));
+            }
+            backend.upsert(MONSTER_TEMPLATE_ID, new MonsterTemplate("Grue", 91, 0.19239324085462631).toContent());
+            for (int i = 0; i < monsters; i ++) {
+                spawnMonster(monsterId(i));
+            }
+            logger.info("Seeded {} players and {} monsters", players, monsters);
+        }
+
+        Report run(CountingBackend counting) {
+            List<Worker> workers = new ArrayList<>();
+            for (int i = 0; i < concurrency; i ++) {
+                Worker worker = new Worker(new Random(seed + i));
+                workers.add(worker);
+                worker.start();
+            }
+
+            sleep(TimeUnit.SECONDS.toMillis(warmupSecs));
+            counting.reset();
+            measuring = true;
+            long start = System.nanoTime();
+            logger.info("Warmup complete, measuring for {} seconds", durationSecs);
+
+            sleep(TimeUnit.SECONDS.toMillis(durationSecs));
+            measuring = false;
+            long elapsed = System.nanoTime() - start;
+            stopped = true;
+
+            Report report = new Report(elapsed, counting.attempts.sum(), counting.transactions.sum());
+            for (Worker worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                report.add(worker);
+            }
+            return report;
+        }
+
+        private void spawnMonster(String monsterId) {
+            backend.upsert(monsterId, monsterContent());
+        }
+
+        private JsonObject monsterContent() {
+            return JsonObject.create()
+                    .put("hitpoints", monsterHitpoints)
+                    .put("jsonType", "monster")
+                    .put("template", MONSTER_TEMPLATE_ID)
+                    .put("uuid", UUID.randomUUID().toString());
+        }
+
+        private class Worker extends Thread {
+            private final Random random;
+            final Histogram latencyMicros = new Histogram(3);
+            final long[] outcomes = new long[HitOutcome.values().length];
+
+            Worker(Random random) {
+                this.random = random;
+            }
+
+            @Override
+            public void run() {
+                while (!stopped) {
+                    String playerId = playerId(playerDistribution.next(random));
+                    int monsterIndex = monsterDistribution.next(random);
+                    String monsterId = monsterId(monsterIndex);
+                    String zoneId = "zone_" + (monsterIndex % zones);
+                    int damage = 1 + random.nextInt(maxDamage);
+
+                    boolean measured = measuring;
+                    long start = System.nanoTime();
+                    HitOutcome outcome = actors != null
+                            ? actors.playerHitsMonster(zoneId, UUID.randomUUID().toString(), damage, playerId, monsterId).join()
+                            : gameServer.playerHitsMonster(UUID.randomUUID().toString(), damage, playerId, monsterId);
+                    long taken = System.nanoTime() - start;
+
+                    if (outcome == HitOutcome.KILLED) {
+                        // The zone owns its monsters' state, so a respawn must go through it
+                        if (actors != null) {
+                            actors.spawnMonster(zoneId, monsterId, monsterContent()).join();
+                        }
+                        else {
+                            spawnMonster(monsterId);
+                        }
+                    }
+
+                    if (measured && measuring) {
+                        // Throughput and latency are of the hits that ran, so a rejection does not count as progress
+                        if (outcome != HitOutcome.REJECTED) {
+                            latencyMicros.recordValue(TimeUnit.NANOSECONDS.toMicros(taken));
+                        }
+                        outcomes[outcome.ordinal()] ++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Report {
+        private final long elapsedNanos;
+        private final long attempts;
+        private final long transactions;
+        private final Histogram latencyMicros = new Histogram(3);
+        private final long[] outcomes = new long[HitOutcome.values().length];
+
+        Report(long elapsedNanos, long attempts, long transactions) {
+            this.elapsedNanos = elapsedNanos;
+            this.attempts = attempts;
+            this.transactions = transactions;
+        }
+
+        void add(Workload.Worker worker) {
+            latencyMicros.add(worker.latencyMicros);
+            for (int i = 0; i < outcomes.length; i ++) {
+                outcomes[i] += worker.outcomes[i];
+            }
+        }
+
+        void print(PrintStream out) {
+            long ops = latencyMicros.getTotalCount();
+            double secs = elapsedNanos / 1e9;
+
+            out.printf("Operations:   %d in %.1fs%n", ops, secs);
+            out.printf("Throughput:   %.1f ops/s%n", ops / secs);
+            out.printf("Latency (us): p50=%d p99=%d p99.9=%d max=%d%n",
+                    latencyMicros.getValueAtPercentile(50),
+                    latencyMicros.getValueAtPercentile(99),
+                    latencyMicros.getValueAtPercentile(99.9),
+                    latencyMicros.getMaxValue());
+            out.printf("Retries:      %d (%.3f per transaction)%n", attempts - transactions,
+                    transactions == 0 ? 0.0 : (attempts - transactions) / (double) transactions);
+            for (HitOutcome outcome : HitOutcome.values()) {
+                out.printf("  %-10s %d%n", outcome, outcomes[outcome.ordinal()]);
+            }
+        }
+    }
+
+    /**
+     * Counts transaction attempts, so that retries can be reported.
+     */
+    private static class CountingBackend implements Backend {
+        private final Backend delegate;
+        final LongAdder attempts = new LongAdder();
+        final LongAdder transactions = new LongAdder();
+
+        CountingBackend(Backend delegate) {
+            this.delegate = delegate;
+        }
+
+        void reset() {
+            attempts.reset();
+            transactions.reset();
+        }
+
+        private void record(BackendResult result) {
+            attempts.add(result.attempts());
+            transactions.increment();
+        }
+
+        @Override
+        public BackendResult run(Consumer<BackendContext> logic) {
+            try {
+                BackendResult result = delegate.run(logic);
+                record(result);
+                return result;
+            } catch (BackendTransactionFailed e) {
+                record(e.result());
+                throw e;
+            }
+        }
+
+        @Override
+        public Mono<BackendResult> runReactive(Function<ReactiveBackendContext, Mono<?>> logic) {
+            return delegate.runReactive(logic)
+                    .doOnNext(this::record)
+                    .doOnError(BackendTransactionFailed.class, e -> record(e.result()));
+        }
+
+        @Override
+        public void upsert(String id, JsonObject content) {
+            delegate.upsert(id, content);
+        }
+
+        @Override
+        public Optional<JsonObject> get(String id) {
+            return delegate.get(id);
+        }
+
+        @Override
+        public OptionalLong cas(String id) {
+            return delegate.cas(id);
+        }
+
+        @Override
+        public List<String> idsStartingWith(String prefix) {
+            return delegate.idsStartingWith(prefix);
+        }
+
+        @Override
+        public Flux<Document> scan(String... types) {
+            return delegate.scan(types);
+        }
+    }
+
+    static String playerId(int index) {
+        return "player_" + index;
+    }
+
+    static String monsterId(int index) {
+        return "monster_" + index;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package example.game;
 
+import ch.qos.logback.classic.Level;
 import com.couchbase.client.core.cnc.Event;
 import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.Cluster;
 import com.couchbase.client.java.Collection;
 import com.couchbase.client.java.json.JsonObject;
-import com.couchbase.transactions.TransactionDurabilityLevel;
 import com.couchbase.transactions.Transactions;
 import com.couchbase.transactions.config.TransactionConfigBuilder;
-import com.couchbase.transactions.log.TransactionEvent;
+import example.admission.AdaptiveLimit;
+import example.admission.AdmissionControlledBackend;
+import example.backend.Backend;
+import example.backend.CouchbaseBackend;
+import example.metrics.MeteredBackend;
+import example.metrics.PrometheusEndpoint;
+import example.metrics.TransactionMetrics;
+import example.trace.TraceRecorder;
+import example.trace.TracingBackend;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -17,8 +25,11 @@ import net.sourceforge.argparse4j.inf.Namespace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.time.Duration;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -46,13 +57,68 @@ public class GameExample {
                 .help("Specify name of Couchbase bucket");
         parser.addArgument("-d", "--durability")
                 .setDefault("majority")
-                .type(Integer.class)
                 .help("Durability setting to use: majority,none,persist_to_majority,majority_and_persist (default:majority)");
+        parser.addArgument("--metrics-port")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("If non-zero, serves transaction metrics for Prometheus at http://localhost:<port>/metrics");
         parser.addArgument("-v", "--verbose")
                 .setDefault(false)
                 .action(Arguments.storeConst()).setConst(true)
                 .type(Boolean.class)
-                .help("Logs all transaction trace to stdout (very heavy)");
+                .help("Also logs every step of every transaction to stdout (very heavy - the trace file is usually enough)");
+        parser.addArgument("--trace-file")
+                .setDefault("game.trace")
+                .help("Records every transaction into this binary ring file, for decoding after an incident with the trace dump.  Empty to disable");
+        parser.addArgument("--trace-mb")
+                .setDefault(64)
+                .type(Integer.class)
+                .help("Size of the trace file.  Once full, the oldest events are overwritten");
+        parser.addArgument("--async")
+                .setDefault(false)
+                .action(Arguments.storeConst()).setConst(true)
+                .type(Boolean.class)
+                .help("Runs the transaction with the non-blocking reactive API");
+        parser.addArgument("--coalesce-ms")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("If non-zero, hits on the same monster are buffered for this many milliseconds and applied in one transaction");
+        parser.addArgument("--admission-limit")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("If non-zero, limits how many transactions run at once, starting at this many and adapting to contention");
+        parser.addArgument("--admission-queue-ms")
+                .setDefault(100)
+                .type(Integer.class)
+                .help("With --admission-limit, how long a transaction over the limit waits before it is rejected");
+        parser.addArgument("--admission-latency-ms")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("With --admission-limit, also lowers the limit when transactions take longer than this on average");
+        parser.addArgument("--serve")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("If non-zero, runs as a long-lived service taking player actions over HTTP on this port, instead of running one transaction");
+        parser.addArgument("--bind")
+                .setDefault("127.0.0.1")
+                .help("With --serve, the address to listen on");
+        parser.addArgument("--threads")
+                .setDefault(64)
+                .type(Integer.class)
+                .help("With --serve, how many requests can run at once");
+        parser.addArgument("--virtual-threads")
+                .setDefault(false)
+                .action(Arguments.storeConst()).setConst(true)
+                .type(Boolean.class)
+                .help("With --serve, runs each request on its own virtual thread instead of a pool of --threads (needs Java 21)");
+        parser.addArgument("--warmup-actions")
+                .setDefault(1000)
+                .type(Integer.class)
+                .help("With --serve, how many player actions to run against warmup documents before reporting ready");
+        parser.addArgument("--drain-seconds")
+                .setDefault(30)
+                .type(Integer.class)
+                .help("With --serve, how long shutdown waits for requests in flight");
         try {
             Namespace ns = parser.parseArgs(args);
             run(ns);
@@ -69,25 +135,15 @@ public class GameExample {
         String durability = ns.getString("durability");
 
         TransactionConfigBuilder config = TransactionConfigBuilder.create();
-        switch (durability.toLowerCase()) {
-            case "none":
-                config.durabilityLevel(TransactionDurabilityLevel.NONE);
-                break;
-            case "majority":
-                config.durabilityLevel(TransactionDurabilityLevel.MAJORITY);
-                break;
-            case "persist_to_majority":
-                config.durabilityLevel(TransactionDurabilityLevel.PERSIST_TO_MAJORITY);
-                break;
-            case "majority_and_persist":
-                config.durabilityLevel(TransactionDurabilityLevel.MAJORITY_AND_PERSIST_TO_ACTIVE);
-                break;
-            default:
-                System.out.println("Unknown durability setting " + durability);
-                System.exit(-1);
+        try {
+            config.durabilityLevel(CouchbaseBackend.parseDurability(durability));
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(-1);
         }
         if (ns.getBoolean("verbose")) {
             config.logDirectly(Event.Severity.VERBOSE);
+            ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("com.couchbase.transactions")).setLevel(Level.TRACE);
         }
 
         // Initialize the Couchbase cluster
@@ -99,22 +155,22 @@ public class GameExample {
         // Initialize transactions.  Must only be one Transactions object per app as it creates background resources.
         Transactions transactions = Transactions.create(cluster, config);
 
-        // Optional but recommended - subscribe for events
-        cluster.environment().eventBus().subscribe(event -> {
-            if (event instanceof TransactionEvent) {
-
-                TransactionEvent te = (TransactionEvent) event;
+        // Optional but recommended - subscribe for events.  The metrics count cleanup activity, and log important events.
+        TransactionMetrics metrics = new TransactionMetrics();
+        metrics.registerMBean("game");
+        cluster.environment().eventBus().subscribe(metrics::onEvent);
 
-                if (te.severity().ordinal() >= Event.Severity.WARN.ordinal()) {
-                    // handle important event
-                }
-            }
-        });
+        PrometheusEndpoint metricsEndpoint = PrometheusEndpoint.startIfRequested(metrics, ns.getInt("metrics_port"));
 
 
 
         // The example.GameServer object emulates the central server for this game
-        GameServer gameServer = new GameServer(transactions, collection);
+        // Traced outside admission control, so that rejected transactions are recorded too
+        TraceRecorder trace = TraceRecorder.openIfRequested(ns.getString("trace_file"), ns.getInt("trace_mb"));
+        Backend backend = withTracing(
+                withAdmissionControl(new MeteredBackend(new CouchbaseBackend(transactions, collection), metrics), ns),
+                trace);
+        GameServer gameServer = new GameServer(backend);
 
 
 
@@ -130,40 +186,138 @@ public class GameExample {
                         .put("name", "Jane")
                         .put("uuid", UUID.randomUUID().toString());
 
+        // The monster's static attributes are shared by all grues, so live in a template.  The monster document itself
+        // holds only what changes during play.
+        String monsterTemplateId = "monster_template::grue";
+        MonsterTemplate monsterTemplate = new MonsterTemplate("Grue", 91, 0.19239324085462631);
+
         String monsterId = "a_grue";
         JsonObject monster = JsonObject.create()
-                        .put("experienceWhenKilled", 91)
                         .put("hitpoints", 4000)
-                        .put("itemProbability", 0.19239324085462631)
                         .put("jsonType", "monster")
-                        .put("name", "Grue")
+                        .put("template", monsterTemplateId)
                         .put("uuid", UUID.randomUUID().toString());
 
         collection.upsert(playerId, player);
 
         logger.info("Upserted sample player document " + playerId);
 
+        collection.upsert(monsterTemplateId, monsterTemplate.toContent());
+
+        logger.info("Upserted sample monster template document " + monsterTemplateId);
+
         collection.upsert(monsterId, monster);
 
         logger.info("Upserted sample monster document " + monsterId);
 
+        // As a service, the sample documents are there for clients to play with
+        if (ns.getInt("serve") != 0) {
+            serve(ns, gameServer, backend, () -> {
+                metrics.logSummary();
+                if (metricsEndpoint != null) {
+                    metricsEndpoint.close();
+                }
+                transactions.close();
+                cluster.disconnect();
+                if (trace != null) {
+                    trace.close();
+                }
+            });
+            return;
+        }
+
 
         // Now perform the transaction
         // The player is hitting the monster for a certain amount of damage
-        gameServer.playerHitsMonster(
-                // This UUID identifies this action from the player's client
-                UUID.randomUUID().toString(),
+        // This UUID identifies this action from the player's client
+        String actionUuid = UUID.randomUUID().toString();
 
-                // This has a 50% chance of killing the monster, which has 4000 hitpoints
-                ThreadLocalRandom.current().nextInt(8000),
+        // This has a 50% chance of killing the monster, which has 4000 hitpoints
+        int damage = ThreadLocalRandom.current().nextInt(8000);
 
-                playerId,
-                monsterId);
+        int coalesceMs = ns.getInt("coalesce_ms");
 
+        if (coalesceMs > 0) {
+            // With a single hit there is nothing to coalesce with, but this shows the API
+            try (HitCoalescer coalescer = new HitCoalescer(gameServer, Duration.ofMillis(coalesceMs), 1)) {
+                HitOutcome outcome = coalescer.playerHitsMonster(actionUuid, damage, playerId, monsterId).join();
+                logger.info("Coalesced hit outcome: " + outcome);
+            }
+        }
+        else if (ns.getBoolean("async")) {
+            // The async version returns immediately - a real server would not wait here, but would have many
+            // actions in flight at once
+            gameServer.playerHitsMonsterAsync(actionUuid, damage, playerId, monsterId).join();
+        }
+        else {
+            gameServer.playerHitsMonster(actionUuid, damage, playerId, monsterId);
+        }
+
+
+        metrics.logSummary();
 
         // Shutdown resources cleanly
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
         transactions.close();
         cluster.disconnect();
+        if (trace != null) {
+            trace.close();
+        }
+    }
+
+    /**
+     * Runs the game server as a service until the JVM is told to stop, e.g. by Ctrl-C or SIGTERM, then shuts down
+     * gracefully.
+     */
+    private static void serve(Namespace ns, GameServer gameServer, Backend backend, Runnable closeResources) {
+        // Logging every step of every request would swamp the console
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(GameServer.class)).setLevel(Level.WARN);
+
+        ExecutorService workers = ns.getBoolean("virtual_threads")
+                ? GameService.virtualThreads()
+                : GameService.threadPool(ns.getInt("threads"));
+
+        GameService service;
+        try {
+            service = new GameService(gameServer, new InetSocketAddress(ns.getString("bind"), ns.getInt("serve")),
+                    workers, ns.getInt("drain_seconds"));
+        } catch (IOException e) {
+            logger.error("Could not start the game service", e);
+            workers.shutdown();
+            closeResources.run();
+            return;
+        }
+
+        // Requests are drained before the Transactions object and the cluster connection are closed
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            service.close();
+            closeResources.run();
+        }));
+
+        service.warmUp(backend, ns.getInt("warmup_actions"));
+
+        // The server's own thread keeps the JVM running from here
+    }
+
+    /**
+     * Puts an {@link AdaptiveLimit} in front of the backend, so that under contention excess transactions are rejected
+     * quickly instead of all retrying until they time out.
+     */
+    private static Backend withAdmissionControl(Backend backend, Namespace ns) {
+        int initialLimit = ns.getInt("admission_limit");
+        if (initialLimit == 0) {
+            return backend;
+        }
+        AdaptiveLimit limit = new AdaptiveLimit(initialLimit)
+                .withQueue(1000, Duration.ofMillis(ns.getInt("admission_queue_ms")))
+                .withLatencyTarget(Duration.ofMillis(ns.getInt("admission_latency_ms")));
+        return new AdmissionControlledBackend(backend, limit);
+    }
+
+    private static Backend withTracing(Backend backend, TraceRecorder trace) {
+        return trace == null ? backend : new TracingBackend(backend, trace);
     }
 
 
@@ -0,0 +1,238 @@
+package example.game;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.ReactiveCollection;
+import com.couchbase.client.java.json.JsonObject;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads a game-scale dataset - millions of players and monsters, shaped like the Game Simulation sample bucket - for
+ * benchmarking at realistic scale.
+ *
+ * Writing one document at a time is bound by round trips, so a large load would take hours.  Here, upserts are made
+ * through the reactive API with many in flight at once, which the SDK pipelines over its connections, so the load runs
+ * as fast as the cluster can absorb writes.  Documents are generated as they are written rather than up front, so
+ * memory use does not depend on how many there are.
+ *
+ * The data is deterministic: each document is generated from its own random generator, seeded from the seed and its
+ * index.  The same seed always produces the same documents, whatever order the writes complete in, so benchmark runs
+ * against the data are reproducible.  Document ids are those {@link GameBenchmark} uses.
+ */
+public class GameSeeder {
+    private static final Logger logger = LoggerFactory.getLogger(GameSeeder.class);
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 5_000;
+    private static final int MAX_RETRIES = 5;
+    private static final Duration RETRY_BACKOFF = Duration.ofMillis(100);
+
+    // The kinds of monster, after those in the Game Simulation sample
+    private static final MonsterTemplate[] TEMPLATES = {
+            new MonsterTemplate("Grue", 91, 0.19239324085462631),
+            new MonsterTemplate("Bogeyman", 42, 0.31415926535897931),
+            new MonsterTemplate("Cockatrice", 128, 0.07361027290390219),
+            new MonsterTemplate("Kraken", 512, 0.5),
+            new MonsterTemplate("Wraith", 64, 0.13370000000000001),
+    };
+
+    // Mixes the index into the seed, so neighbouring documents get unrelated generators
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final ReactiveCollection collection;
+    private final long seed;
+    private final int concurrency;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param concurrency how many upserts can be in flight at once
+     */
+    public GameSeeder(ReactiveCollection collection, long seed, int concurrency) {
+        this.collection = collection;
+        this.seed = seed;
+        this.concurrency = concurrency;
+    }
+
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("Couchbase Distributed Transactions Game Seeder").build()
+                .defaultHelp(true)
+                .description("Loads a large, reproducible set of players and monsters for the game example.");
+        parser.addArgument("-c", "--cluster")
+                .required(true)
+                .help("Specify Couchbase cluster address");
+        parser.addArgument("-u", "--username")
+                .required(true)
+                .help("Specify username of Couchbase user");
+        parser.addArgument("-p", "--password")
+                .required(true)
+                .help("Specify password of Couchbase user");
+        parser.addArgument("-b", "--bucket")
+                .required(true)
+                .help("Specify name of Couchbase bucket");
+        parser.addArgument("--players")
+                .setDefault(1_000_000)
+                .type(Integer.class)
+                .help("How many players to create");
+        parser.addArgument("--monsters")
+                .setDefault(1_000_000)
+                .type(Integer.class)
+                .help("How many monsters to create");
+        parser.addArgument("--seed")
+                .setDefault(42L)
+                .type(Long.class)
+                .help("Random seed.  The same seed always produces the same documents");
+        parser.addArgument("--concurrency")
+                .setDefault(256)
+                .type(Integer.class)
+                .help("How many upserts to have in flight at once");
+        try {
+            Namespace ns = parser.parseArgs(args);
+            run(ns);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+        }
+    }
+
+    private static void run(Namespace ns) {
+        Cluster cluster = Cluster.connect(ns.getString("cluster"), ns.getString("username"), ns.getString("password"));
+        Bucket bucket = cluster.bucket(ns.getString("bucket"));
+        bucket.waitUntilReady(Duration.ofSeconds(30));
+
+        GameSeeder seeder = new GameSeeder(bucket.defaultCollection().reactive(), ns.getLong("seed"), ns.getInt("concurrency"));
+        long failed = seeder.seed(ns.getInt("players"), ns.getInt("monsters"));
+
+        cluster.disconnect();
+
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes the monster templates, then the players and monsters, blocking until every write has completed.
+     *
+     * @return how many documents could not be written, even after retrying
+     */
+    public long seed(int players, int monsters) {
+        long start = System.nanoTime();
+        long total = TEMPLATES.length + (long) players + monsters;
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleWithFixedDelay(() -> logProgress(start, total),
+                PROGRESS_INTERVAL_MILLIS, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        try {
+            Flux.range(0, TEMPLATES.length)
+                    .flatMap(i -> upsert(templateId(TEMPLATES[i]), TEMPLATES[i].toContent()), concurrency)
+                    .blockLast();
+
+            // The generators are pulled only as fast as the upserts complete, so just a window of documents is in memory
+            Flux.range(0, players)
+                    .flatMap(i -> upsert(GameBenchmark.playerId(i), player(i)), concurrency)
+                    .blockLast();
+
+            Flux.range(0, monsters)
+                    .flatMap(i -> upsert(GameBenchmark.monsterId(i), monster(i)), concurrency)
+                    .blockLast();
+        } finally {
+            reporter.shutdownNow();
+        }
+
+        logProgress(start, total);
+        if (failed.sum() > 0) {
+            logger.warn("{} documents could not be written", failed.sum());
+        }
+        return failed.sum();
+    }
+
+    private Mono<Void> upsert(String id, JsonObject content) {
+        return upsert(id, content, MAX_RETRIES)
+                .doOnSuccess(ignored -> written.increment())
+                .onErrorResume(err -> {
+                    // One bad write is reported, rather than abandoning a load that may have run for hours
+                    logger.warn("Could not write {}: {}", id, err.toString());
+                    failed.increment();
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> upsert(String id, JsonObject content, int retriesLeft) {
+        return collection.upsert(id, content)
+                .then()
+                .onErrorResume(err -> {
+                    // Usually a timeout or temporary failure from a busy node, so back off and try again
+                    if (retriesLeft == 0) {
+                        return Mono.error(err);
+                    }
+                    return Mono.delay(RETRY_BACKOFF.multipliedBy(MAX_RETRIES - retriesLeft + 1))
+                            .then(Mono.defer(() -> upsert(id, content, retriesLeft - 1)));
+                });
+    }
+
+    /**
+     * The player at this index.  Its content depends only on the seed and the index.
+     */
+    JsonObject player(int index) {
+        SplittableRandom random = random(0, index);
+        int experience = random.nextInt(100_000);
+
+        return JsonObject.create()
+                .put("experience", experience)
+                .put("hitpoints", 1 + random.nextInt(30_000))
+                .put("jsonType", "player")
+                .put("level", GameServer.calculateLevelForExperience(experience))
+                .put("loggedIn", random.nextInt(4) == 0)
+                .put("name", "Player " + index)
+                .put("uuid", uuid(random).toString());
+    }
+
+    /**
+     * The monster at this index.  Its content depends only on the seed and the index.
+     */
+    JsonObject monster(int index) {
+        SplittableRandom random = random(1, index);
+        MonsterTemplate template = TEMPLATES[random.nextInt(TEMPLATES.length)];
+
+        return JsonObject.create()
+                .put("hitpoints", 1000 + random.nextInt(9000))
+                .put("jsonType", "monster")
+                .put("template", templateId(template))
+                .put("uuid", uuid(random).toString());
+    }
+
+    private SplittableRandom random(int kind, int index) {
+        return new SplittableRandom(seed + ((((long) kind << 32) | index) * GOLDEN_GAMMA));
+    }
+
+    private static UUID uuid(SplittableRandom random) {
+        return new UUID(random.nextLong(), random.nextLong());
+    }
+
+    private static String templateId(MonsterTemplate template) {
+        return "monster_template::" + template.name().toLowerCase();
+    }
+
+    private void logProgress(long start, long total) {
+        long done = written.sum() + failed.sum();
+        double secs = (System.nanoTime() - start) / 1e9;
+        double rate = done / secs;
+        logger.info("Seeded {} of {} documents ({}%) in {}s, {} docs/s, {} failed", done, total,
+                String.format("%.1f", 100.0 * done / total), String.format("%.1f", secs), String.format("%.0f", rate),
+                failed.sum());
+    }
+}
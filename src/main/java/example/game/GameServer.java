@@ -1,39 +1,135 @@
 package example.game;
 
 import com.couchbase.client.java.Collection;
-import com.couchbase.client.java.json.JsonObject;
-import com.couchbase.transactions.TransactionGetResult;
-import com.couchbase.transactions.TransactionResult;
 import com.couchbase.transactions.Transactions;
-import com.couchbase.transactions.error.TransactionCommitAmbiguous;
-import com.couchbase.transactions.error.TransactionFailed;
-import com.couchbase.transactions.log.LogDefer;
+import example.backend.Backend;
+import example.backend.BackendCommitAmbiguous;
+import example.backend.BackendContext;
+import example.backend.BackendOverloaded;
+import example.backend.BackendTransactionFailed;
+import example.backend.CouchbaseBackend;
+import example.backend.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Emulates the central server for the game.
+ *
+ * Each player action carries a UUID from the player's client, and actions are idempotent: if a client retries an
+ * action (say after a timeout, or an ambiguous commit), it is not applied twice.  Recently applied actions are
+ * remembered in memory, which answers most duplicates without touching the cluster.  The authoritative record is an
+ * action marker written in the same transaction as the action itself, on a document that the action already writes -
+ * the monster when it is damaged, or the player when they kill it - so idempotence costs no extra writes.
+ *
+ * Transactions only read and write the mutable state of monsters.  Their static attributes are held in a
+ * {@link MonsterTemplate}, which is read outside the transaction through a cache.
+ */
 public class GameServer {
-    private final Transactions transactions;
-    private final Collection gameSim;
+    // How many action markers are kept on each document.  Older markers are dropped, so a duplicate arriving after many
+    // more actions on the same document would not be detected.
+    static final int MAX_ACTION_MARKERS = 64;
+
+    private static final int RECENT_ACTIONS_CAPACITY = 100_000;
+
+    // There are only a handful of kinds of monster, so templates are rarely evicted.  Editing a template takes effect
+    // within the revalidation interval, or immediately if the template is invalidated.
+    private static final int MONSTER_TEMPLATE_CAPACITY = 10_000;
+    private static final Duration MONSTER_TEMPLATE_REVALIDATE_AFTER = Duration.ofSeconds(10);
+
+    private final Backend gameSim;
+    private final RecentActions recentActions = new RecentActions(RECENT_ACTIONS_CAPACITY);
+    private final MonsterTemplateCache monsterTemplates;
     private final Logger logger = LoggerFactory.getLogger(GameServer.class);
+    private Leaderboard leaderboard;
 
     public GameServer(Transactions transactions, Collection gameSim) {
-        this.transactions = transactions;
+        this(new CouchbaseBackend(transactions, gameSim));
+    }
+
+    /**
+     * Runs the game against any backend - e.g. a {@link example.backend.LocalBackend} for offline benchmarking.
+     */
+    public GameServer(Backend gameSim) {
         this.gameSim = gameSim;
+        this.monsterTemplates = new MonsterTemplateCache(gameSim, MONSTER_TEMPLATE_CAPACITY,
+                MONSTER_TEMPLATE_REVALIDATE_AFTER);
+    }
+
+    /**
+     * Keeps a {@link Leaderboard} up to date with the experience players earn, as each kill commits.
+     */
+    public GameServer withLeaderboard(Leaderboard leaderboard) {
+        this.leaderboard = leaderboard;
+        return this;
+    }
+
+    /**
+     * Drops a cached {@link MonsterTemplate}, so that the next monster of that kind to be killed sees any edits to it
+     * straight away.
+     */
+    public void invalidateMonsterTemplate(String templateId) {
+        monsterTemplates.invalidate(templateId);
     }
 
-    public void playerHitsMonster(String actionUuid, int damage, String playerId, String monsterId) {
+    public HitOutcome playerHitsMonster(String actionUuid, int damage, String playerId, String monsterId) {
+        HitOutcome previous = recentActions.get(actionUuid);
+        if (previous != null) {
+            logger.info("Action {} has already been applied", actionUuid);
+            return previous;
+        }
+
+        // This shows how to pass values from the transaction lambda
+        AtomicReference<HitOutcome> outcome = new AtomicReference<>();
+        AtomicReference<Player> awarded = new AtomicReference<>();
+
         try {
-            transactions.run((ctx) -> {
+            gameSim.run((ctx) -> {
                 logger.info("Starting transaction, player {} is hitting monster {} for {} points of damage",
                         playerId, monsterId, damage);
+                awarded.set(null);
 
-                TransactionGetResult monster = ctx.get(gameSim, monsterId);
-                TransactionGetResult player = ctx.get(gameSim, playerId);
+                Document player = ctx.get(playerId);
+                Player playerContent = Player.decode(player);
 
-                JsonObject monsterContent = monster.contentAsObject();
-                JsonObject playerContent = player.contentAsObject();
+                // If this action killed the monster, it was recorded on the player
+                if (playerContent.hasActionMarker(actionUuid)) {
+                    logger.info("Action {} has already been applied", actionUuid);
+                    outcome.set(HitOutcome.KILLED);
+                    return;
+                }
 
-                int monsterHitpoints = monsterContent.getInt("hitpoints");
+                Optional<Document> monsterOpt = ctx.getOptional(monsterId);
+
+                if (!monsterOpt.isPresent()) {
+                    logger.info("Monster {} is already dead", monsterId);
+                    outcome.set(HitOutcome.NO_TARGET);
+                    return;
+                }
+
+                Document monster = monsterOpt.get();
+                Monster monsterContent = Monster.decode(monster);
+
+                // If this action damaged the monster, it was recorded on the monster
+                if (monsterContent.hasActionMarker(actionUuid)) {
+                    logger.info("Action {} has already been applied", actionUuid);
+                    outcome.set(HitOutcome.DAMAGED);
+                    return;
+                }
+
+                int monsterHitpoints = monsterContent.hitpoints();
                 int monsterNewHitpoints = monsterHitpoints - damage;
 
                 logger.info("Monster {} had {} hitpoints, took {} damage, now has {} hitpoints",
@@ -45,36 +141,44 @@ public class GameServer {
                     ctx.remove(monster);
 
                     // The player earns experience for killing the monster
-                    int experienceForKillingMonster = monster.contentAs(JsonObject.class).getInt("experienceWhenKilled");
-                    int playerExperience = player.contentAs(JsonObject.class).getInt("experience");
+                    int experienceForKillingMonster = experienceWhenKilled(monsterContent);
+                    int playerExperience = playerContent.experience();
                     int playerNewExperience = playerExperience + experienceForKillingMonster;
                     int playerNewLevel = calculateLevelForExperience(playerNewExperience);
 
                     logger.info("Monster {} was killed.  Player {} gains {} experience, now has level {}",
                             monsterId, playerId, experienceForKillingMonster, playerNewLevel);
 
-                    playerContent.put("experience", playerNewExperience);
-                    playerContent.put("level", playerNewLevel);
+                    playerContent.setExperience(playerNewExperience);
+                    playerContent.setLevel(playerNewLevel);
+                    playerContent.addActionMarker(actionUuid, MAX_ACTION_MARKERS);
 
-                    ctx.replace(player, playerContent);
+                    ctx.replace(player, playerContent.encode());
+                    outcome.set(HitOutcome.KILLED);
+                    awarded.set(playerContent);
                 }
                 else {
                     logger.info("Monster {} is damaged but alive", monsterId);
 
                     // Monster is damaged but still alive
-                    monsterContent.put("hitpoints", monsterNewHitpoints);
+                    monsterContent.setHitpoints(monsterNewHitpoints);
+                    monsterContent.addActionMarker(actionUuid, MAX_ACTION_MARKERS);
 
-                    ctx.replace(monster, monsterContent);
+                    ctx.replace(monster, monsterContent.encode());
+                    outcome.set(HitOutcome.DAMAGED);
                 }
 
                 logger.info("About to commit transaction");
             });
-        } catch (TransactionCommitAmbiguous e) {
-            logger.warn("Transaction possibly committed:");
-            for (LogDefer log: e.result().log().logs()) {
-                logger.warn(log.toString());
-            }
-        } catch (TransactionFailed e) {
+
+            publish(playerId, awarded.get());
+        } catch (BackendOverloaded e) {
+            // Shed rather than queued, so nothing was changed and there is nothing to log
+            outcome.set(HitOutcome.REJECTED);
+        } catch (BackendCommitAmbiguous e) {
+            logFailure("possibly committed", e);
+            outcome.set(HitOutcome.AMBIGUOUS);
+        } catch (BackendTransactionFailed e) {
 
             // The operation timed out (the default timeout is 15 seconds) despite multiple attempts to commit the
             // transaction logic.   Both the monster and the player will be untouched.
@@ -83,16 +187,361 @@ public class GameServer {
             // failure, as the downside is limited to the player experiencing a temporary glitch in a fast-moving MMO.
 
             // So, we will just log the error
-            logger.warn("Transaction did not reach commit:");
-            for (LogDefer log: e.result().log().logs()) {
-                logger.warn(log.toString());
+            logFailure("did not reach commit", e);
+            outcome.set(HitOutcome.FAILED);
+        }
+
+        recentActions.put(actionUuid, outcome.get());
+
+        logger.info("Transaction is complete");
+        return outcome.get();
+    }
+
+    /**
+     * Applies several hits on the same monster in a single transaction, which reads and writes the monster once
+     * rather than once per hit.  This is what {@link HitCoalescer} uses to turn many conflicting transactions on a hot
+     * monster into one.
+     *
+     * The hits are applied in order.  The hit that takes the monster to zero hitpoints kills it and earns that player
+     * the experience; any later hits in the batch find no target.  Hits that have already been applied, including
+     * repeats within the batch, are not applied again.  As in {@link #playerHitsMonster}, a hit that has already killed
+     * is found from the marker on its player, so each hitting player is read.  An outcome is returned for each hit, in
+     * the same order as the hits.
+     */
+    public List<HitOutcome> playerHitsMonsterBatch(String monsterId, List<Hit> hits) {
+        if (hits.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // Duplicates this server already knows about are answered without touching the cluster
+        HitOutcome[] previous = new HitOutcome[hits.size()];
+        boolean anyNew = false;
+        for (int i = 0; i < hits.size(); i ++) {
+            previous[i] = recentActions.get(hits.get(i).actionUuid);
+            anyNew |= previous[i] == null;
+        }
+        if (!anyNew) {
+            logger.info("All {} hits on monster {} have already been applied", hits.size(), monsterId);
+            return new ArrayList<>(Arrays.asList(previous));
+        }
+
+        HitOutcome[] outcomes = new HitOutcome[hits.size()];
+        AtomicReference<Hit> killer = new AtomicReference<>();
+        AtomicReference<Player> awarded = new AtomicReference<>();
+
+        try {
+            gameSim.run((ctx) -> {
+                logger.info("Starting transaction, {} coalesced hits on monster {}", hits.size(), monsterId);
+
+                // The lambda may be retried, so must not rely on any state left over from a previous attempt
+                System.arraycopy(previous, 0, outcomes, 0, outcomes.length);
+                awarded.set(null);
+
+                // Each hitting player is read at most once per attempt, to check whether their hit has already killed
+                Map<String, Document> players = new HashMap<>();
+
+                Optional<Document> monsterOpt = ctx.getOptional(monsterId);
+
+                if (!monsterOpt.isPresent()) {
+                    logger.info("Monster {} is already dead", monsterId);
+                    for (int i = 0; i < outcomes.length; i ++) {
+                        if (outcomes[i] == null) {
+                            outcomes[i] = hasKilled(ctx, players, hits.get(i))
+                                    ? HitOutcome.KILLED
+                                    : HitOutcome.NO_TARGET;
+                        }
+                    }
+                    return;
+                }
+
+                Document monster = monsterOpt.get();
+                Monster monsterContent = Monster.decode(monster);
+
+                int monsterHitpoints = monsterContent.hitpoints();
+                int monsterNewHitpoints = monsterHitpoints;
+                Hit killingHit = null;
+                boolean changed = false;
+                Map<String, HitOutcome> batchOutcomes = new HashMap<>();
+
+                for (int i = 0; i < hits.size(); i ++) {
+                    Hit hit = hits.get(i);
+
+                    if (outcomes[i] != null) {
+                        continue;
+                    }
+
+                    HitOutcome repeat = batchOutcomes.get(hit.actionUuid);
+                    if (repeat != null) {
+                        outcomes[i] = repeat;
+                    }
+                    else if (hasKilled(ctx, players, hit)) {
+                        // This monster may have been respawned since, so the kill must not be applied to it again
+                        outcomes[i] = HitOutcome.KILLED;
+                    }
+                    else if (monsterContent.hasActionMarker(hit.actionUuid)) {
+                        outcomes[i] = HitOutcome.DAMAGED;
+                    }
+                    else if (killingHit != null) {
+                        outcomes[i] = HitOutcome.NO_TARGET;
+                    }
+                    else {
+                        monsterNewHitpoints -= hit.damage;
+                        changed = true;
+
+                        if (monsterNewHitpoints <= 0) {
+                            killingHit = hit;
+                            outcomes[i] = HitOutcome.KILLED;
+                        }
+                        else {
+                            monsterContent.addActionMarker(hit.actionUuid, MAX_ACTION_MARKERS);
+                            outcomes[i] = HitOutcome.DAMAGED;
+                        }
+                    }
+
+                    batchOutcomes.put(hit.actionUuid, outcomes[i]);
+                }
+
+                if (!changed) {
+                    logger.info("All hits on monster {} have already been applied", monsterId);
+                    return;
+                }
+
+                logger.info("Monster {} had {} hitpoints, now has {} hitpoints", monsterId, monsterHitpoints,
+                        monsterNewHitpoints);
+
+                if (killingHit != null) {
+                    ctx.remove(monster);
+
+                    // Only the player that landed the killing blow has their document changed.  They were read
+                    // when checking for an earlier kill.
+                    Document player = players.get(killingHit.playerId);
+                    Player playerContent = Player.decode(player);
+
+                    int experienceForKillingMonster = experienceWhenKilled(monsterContent);
+                    int playerNewExperience = playerContent.experience() + experienceForKillingMonster;
+                    int playerNewLevel = calculateLevelForExperience(playerNewExperience);
+
+                    logger.info("Monster {} was killed.  Player {} gains {} experience, now has level {}",
+                            monsterId, killingHit.playerId, experienceForKillingMonster, playerNewLevel);
+
+                    playerContent.setExperience(playerNewExperience);
+                    playerContent.setLevel(playerNewLevel);
+                    playerContent.addActionMarker(killingHit.actionUuid, MAX_ACTION_MARKERS);
+
+                    ctx.replace(player, playerContent.encode());
+                    killer.set(killingHit);
+                    awarded.set(playerContent);
+                }
+                else {
+                    monsterContent.setHitpoints(monsterNewHitpoints);
+
+                    ctx.replace(monster, monsterContent.encode());
+                }
+
+                logger.info("About to commit transaction");
+            });
+
+            for (int i = 0; i < hits.size(); i ++) {
+                recentActions.put(hits.get(i).actionUuid, outcomes[i]);
             }
+            if (awarded.get() != null) {
+                publish(killer.get().playerId, awarded.get());
+            }
+        } catch (BackendOverloaded e) {
+            fillUnknown(outcomes, previous, HitOutcome.REJECTED);
+        } catch (BackendCommitAmbiguous e) {
+            logFailure("possibly committed", e);
+            fillUnknown(outcomes, previous, HitOutcome.AMBIGUOUS);
+        } catch (BackendTransactionFailed e) {
+            logFailure("did not reach commit", e);
+            fillUnknown(outcomes, previous, HitOutcome.FAILED);
         }
 
         logger.info("Transaction is complete");
+        return new ArrayList<>(Arrays.asList(outcomes));
     }
 
-    private int calculateLevelForExperience(int exp) {
+    /**
+     * A non-blocking version of {@link #playerHitsMonster}, built on the reactive transactions API.
+     *
+     * The returned future completes once the transaction has committed or failed, and no thread is held while the
+     * transaction is retrying or waiting on durability, so many actions can be in flight on a small event-loop pool.
+     * Failures are handled exactly as in the blocking version: they are logged, and the future still completes normally
+     * with a {@link HitOutcome#FAILED} or {@link HitOutcome#AMBIGUOUS} outcome.
+     */
+    public CompletableFuture<HitOutcome> playerHitsMonsterAsync(String actionUuid, int damage, String playerId, String monsterId) {
+        HitOutcome previous = recentActions.get(actionUuid);
+        if (previous != null) {
+            logger.info("Action {} has already been applied", actionUuid);
+            return CompletableFuture.completedFuture(previous);
+        }
+
+        AtomicReference<HitOutcome> outcome = new AtomicReference<>();
+        AtomicReference<Player> awarded = new AtomicReference<>();
+
+        return gameSim.runReactive((ctx) -> {
+                    logger.info("Starting transaction, player {} is hitting monster {} for {} points of damage",
+                            playerId, monsterId, damage);
+                    awarded.set(null);
+
+                    return ctx.get(playerId)
+                            .flatMap(player -> {
+                                Player playerContent = Player.decode(player);
+
+                                // If this action killed the monster, it was recorded on the player
+                                if (playerContent.hasActionMarker(actionUuid)) {
+                                    logger.info("Action {} has already been applied", actionUuid);
+                                    outcome.set(HitOutcome.KILLED);
+                                    return Mono.<Document>empty();
+                                }
+
+                                return ctx.getOptional(monsterId).flatMap(monsterOpt -> {
+                                    if (!monsterOpt.isPresent()) {
+                                        logger.info("Monster {} is already dead", monsterId);
+                                        outcome.set(HitOutcome.NO_TARGET);
+                                        return Mono.<Document>empty();
+                                    }
+
+                                    Document monster = monsterOpt.get();
+                                    Monster monsterContent = Monster.decode(monster);
+
+                                    // If this action damaged the monster, it was recorded on the monster
+                                    if (monsterContent.hasActionMarker(actionUuid)) {
+                                        logger.info("Action {} has already been applied", actionUuid);
+                                        outcome.set(HitOutcome.DAMAGED);
+                                        return Mono.<Document>empty();
+                                    }
+
+                                    int monsterHitpoints = monsterContent.hitpoints();
+                                    int monsterNewHitpoints = monsterHitpoints - damage;
+
+                                    logger.info("Monster {} had {} hitpoints, took {} damage, now has {} hitpoints",
+                                            monsterId, monsterHitpoints, damage, monsterNewHitpoints);
+
+                                    if (monsterNewHitpoints <= 0) {
+                                        // Reading a template that is not cached blocks, so is done off the event loop
+                                        return Mono.fromCallable(() -> experienceWhenKilled(monsterContent))
+                                                .subscribeOn(Schedulers.boundedElastic())
+                                                .flatMap(experienceForKillingMonster -> {
+                                                    int playerExperience = playerContent.experience();
+                                                    int playerNewExperience = playerExperience + experienceForKillingMonster;
+                                                    int playerNewLevel = calculateLevelForExperience(playerNewExperience);
+
+                                                    logger.info("Monster {} was killed.  Player {} gains {} experience, now has level {}",
+                                                            monsterId, playerId, experienceForKillingMonster, playerNewLevel);
+
+                                                    playerContent.setExperience(playerNewExperience);
+                                                    playerContent.setLevel(playerNewLevel);
+                                                    playerContent.addActionMarker(actionUuid, MAX_ACTION_MARKERS);
+
+                                                    outcome.set(HitOutcome.KILLED);
+                                                    awarded.set(playerContent);
+
+                                                    return ctx.remove(monster)
+                                                            .then(Mono.defer(() -> ctx.replace(player, playerContent.encode())));
+                                                });
+                                    }
+                                    else {
+                                        logger.info("Monster {} is damaged but alive", monsterId);
+
+                                        monsterContent.setHitpoints(monsterNewHitpoints);
+                                        monsterContent.addActionMarker(actionUuid, MAX_ACTION_MARKERS);
+                                        outcome.set(HitOutcome.DAMAGED);
+
+                                        return ctx.replace(monster, monsterContent.encode());
+                                    }
+                                });
+                            })
+                            .doOnSuccess(ignored -> logger.info("About to commit transaction"));
+                })
+                .map(result -> {
+                    publish(playerId, awarded.get());
+                    return outcome.get();
+                })
+                // BackendOverloaded and BackendCommitAmbiguous are BackendTransactionFailed, so must be handled first
+                .onErrorResume(BackendOverloaded.class, e -> Mono.just(HitOutcome.REJECTED))
+                .onErrorResume(BackendCommitAmbiguous.class, e -> {
+                    logFailure("possibly committed", e);
+                    return Mono.just(HitOutcome.AMBIGUOUS);
+                })
+                .onErrorResume(BackendTransactionFailed.class, e -> {
+                    // As with the blocking version, a failure here leaves both documents untouched and is only logged
+                    logFailure("did not reach commit", e);
+                    return Mono.just(HitOutcome.FAILED);
+                })
+                .doOnSuccess(result -> {
+                    recentActions.put(actionUuid, result);
+                    logger.info("Transaction is complete");
+                })
+                .toFuture();
+    }
+
+    /**
+     * One line per failure.  What the transaction did is recorded by a {@link example.trace.TracingBackend}, so its
+     * per-transaction log, which can run to many lines, is only logged when debugging.
+     */
+    private void logFailure(String outcome, BackendTransactionFailed e) {
+        logger.warn("Transaction {} {}, after {} attempts", e.result().transactionId(), outcome, e.result().attempts());
+        if (logger.isDebugEnabled()) {
+            for (String log: e.logs()) {
+                logger.debug(log);
+            }
+        }
+    }
+
+    /**
+     * Passes experience a player has earned to the leaderboard.  Only called once the transaction has committed, so
+     * the leaderboard never sees experience from an attempt that was rolled back, or a transaction that failed.
+     */
+    private void publish(String playerId, Player player) {
+        if (leaderboard != null && player != null) {
+            leaderboard.update(playerId, player.experience(), player.level());
+        }
+    }
+
+    /**
+     * Whether this hit has already killed a monster, as recorded on the hitting player, as {@link #playerHitsMonster}
+     * checks.  The player is read in the transaction, once per attempt.
+     */
+    private static boolean hasKilled(BackendContext ctx, Map<String, Document> players, Hit hit) {
+        Document player = players.computeIfAbsent(hit.playerId, ctx::get);
+        return Player.decode(player).hasActionMarker(hit.actionUuid);
+    }
+
+    private static void fillUnknown(HitOutcome[] outcomes, HitOutcome[] previous, HitOutcome outcome) {
+        for (int i = 0; i < outcomes.length; i ++) {
+            outcomes[i] = previous[i] != null ? previous[i] : outcome;
+        }
+    }
+
+    /**
+     * Monsters spawned from a {@link MonsterTemplate} hold only their mutable state, and the template is read outside
+     * the transaction, through the cache.  Older monsters carry their static attributes themselves.
+     */
+    private int experienceWhenKilled(Monster monster) {
+        String templateId = monster.templateId();
+        if (templateId == null) {
+            return monster.experienceWhenKilled();
+        }
+        return monsterTemplates.get(templateId).experienceWhenKilled();
+    }
+
+    static int calculateLevelForExperience(int exp) {
         return exp / 100;
     }
+
+    /**
+     * A single player's hit on a monster, as queued by {@link HitCoalescer}.
+     */
+    public static class Hit {
+        public final String actionUuid;
+        public final int damage;
+        public final String playerId;
+
+        public Hit(String actionUuid, int damage, String playerId) {
+            this.actionUuid = actionUuid;
+            this.damage = damage;
+            this.playerId = playerId;
+        }
+    }
 }
@@ -0,0 +1,223 @@
+package example.game;
+
+import com.couchbase.client.java.json.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import example.backend.Backend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link GameServer} as a long-lived service, taking player actions over HTTP.
+ *
+ * A one-shot run pays for JVM startup, connecting to the cluster and creating {@link com.couchbase.transactions.Transactions}
+ * every time.  Here those costs are paid once, and every request shares the one GameServer and its Transactions.
+ *
+ * - POST /hit?player={id}&amp;monster={id}&amp;damage={n}&amp;action={uuid} applies a hit, and responds with its
+ *   {@link HitOutcome}.  The action UUID is optional, but a client that sends one can safely retry.  A hit rejected
+ *   by admission control responds 503, with a Retry-After header.
+ * - GET /ready responds 200 once the service has warmed up, and 503 before that and while shutting down, so a load
+ *   balancer only sends traffic to an instance that is ready for it.
+ *
+ * Each request is handled on a worker thread, which blocks in the transaction.  This keeps the simple blocking style of
+ * {@link GameServer#playerHitsMonster}, with concurrency bounded by the number of workers.  On Java 21 and later the
+ * workers can instead be virtual threads, one per request, which block without tying up an OS thread, so concurrency is
+ * no longer bounded by the pool.
+ */
+public class GameService implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(GameService.class);
+
+    private static final String WARMUP_PLAYER_ID = "warmup::player";
+    private static final String WARMUP_MONSTER_PREFIX = "warmup::monster::";
+
+    // Warmup actions are spread over several monsters, so they do not all conflict with each other
+    private static final int WARMUP_MONSTERS = 64;
+
+    private final GameServer gameServer;
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final int drainSeconds;
+    private volatile boolean ready;
+
+    /**
+     * Starts listening straight away, but reports ready only after {@link #warmUp}.
+     *
+     * @param workers runs requests, and is owned by the service
+     * @param drainSeconds how long {@link #close} waits for requests in flight to complete
+     */
+    public GameService(GameServer gameServer, InetSocketAddress address, ExecutorService workers, int drainSeconds)
+            throws IOException {
+        this.gameServer = gameServer;
+        this.workers = workers;
+        this.drainSeconds = drainSeconds;
+
+        server = HttpServer.create(address, 0);
+        server.createContext("/hit", this::handleHit);
+        server.createContext("/ready", exchange -> respond(exchange, ready ? 200 : 503,
+                JsonObject.create().put("ready", ready)));
+        server.setExecutor(workers);
+        server.start();
+
+        logger.info("Game service listening on {}", address);
+    }
+
+    /**
+     * A pool of platform threads, for any Java version.
+     */
+    public static ExecutorService threadPool(int threads) {
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * A new virtual thread per task.  This is looked up at runtime, so that the rest of the code still builds for Java 8.
+     *
+     * @throws UnsupportedOperationException before Java 21
+     */
+    public static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later", e);
+        }
+    }
+
+    /**
+     * Runs player actions against dedicated warmup documents, until the connection pool is open and the hot paths are
+     * compiled, then reports ready.  The actions are run concurrently, on the same workers as requests.
+     */
+    public void warmUp(Backend backend, int actions) {
+        long start = System.nanoTime();
+
+        // The monsters have enough hitpoints to never die, so every action takes the same path as a typical hit
+        backend.upsert(WARMUP_PLAYER_ID, JsonObject.create()
+                .put("experience", 0)
+                .put("level", 0)
+                .put("jsonType", "player"));
+        for (int i = 0; i < WARMUP_MONSTERS; i ++) {
+            backend.upsert(WARMUP_MONSTER_PREFIX + i, JsonObject.create()
+                    .put("hitpoints", Integer.MAX_VALUE)
+                    .put("experienceWhenKilled", 0)
+                    .put("jsonType", "monster"));
+        }
+
+        List<CompletableFuture<HitOutcome>> warmups = new ArrayList<>(actions);
+        for (int i = 0; i < actions; i ++) {
+            String monsterId = WARMUP_MONSTER_PREFIX + (i % WARMUP_MONSTERS);
+            warmups.add(CompletableFuture.supplyAsync(() -> gameServer.playerHitsMonster(UUID.randomUUID().toString(), 1,
+                    WARMUP_PLAYER_ID, monsterId), workers));
+        }
+        CompletableFuture.allOf(warmups.toArray(new CompletableFuture<?>[0])).join();
+
+        ready = true;
+        logger.info("Game service warmed up with {} actions in {}ms, and is ready", actions,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void handleHit(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, JsonObject.create().put("error", "Use POST"));
+            return;
+        }
+
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        String playerId = params.get("player");
+        String monsterId = params.get("monster");
+        String actionUuid = params.getOrDefault("action", UUID.randomUUID().toString());
+        int damage;
+
+        try {
+            damage = Integer.parseInt(params.getOrDefault("damage", ""));
+        } catch (NumberFormatException e) {
+            damage = -1;
+        }
+        if (playerId == null || monsterId == null || damage < 0) {
+            respond(exchange, 400, JsonObject.create().put("error", "Need a player, a monster and a non-negative damage"));
+            return;
+        }
+
+        HitOutcome outcome;
+        try {
+            outcome = gameServer.playerHitsMonster(actionUuid, damage, playerId, monsterId);
+        } catch (RuntimeException e) {
+            logger.warn("Action {} failed unexpectedly", actionUuid, e);
+            respond(exchange, 500, JsonObject.create().put("action", actionUuid).put("error", e.toString()));
+            return;
+        }
+
+        if (outcome == HitOutcome.REJECTED) {
+            // Tells the client, or a load balancer, to back off and retry, rather than waiting on a request that would
+            // only time out
+            exchange.getResponseHeaders().set("Retry-After", "1");
+        }
+        respond(exchange, outcome == HitOutcome.REJECTED ? 503 : 200, JsonObject.create()
+                .put("action", actionUuid)
+                .put("outcome", outcome.name()));
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String param : query.split("&")) {
+            int split = param.indexOf('=');
+            if (split > 0) {
+                try {
+                    params.put(URLDecoder.decode(param.substring(0, split), "UTF-8"),
+                            URLDecoder.decode(param.substring(split + 1), "UTF-8"));
+                } catch (IOException | IllegalArgumentException e) {
+                    // Malformed parameters are ignored, and the request is then rejected as incomplete
+                }
+            }
+        }
+        return params;
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * Shuts down gracefully: stops reporting ready, stops accepting connections, and waits for requests in flight to
+     * complete.  The caller can then close the Transactions and the cluster.
+     */
+    @Override
+    public void close() {
+        ready = false;
+        logger.info("Game service shutting down, draining requests for up to {}s", drainSeconds);
+
+        // Waits up to the delay for exchanges in progress to finish
+        server.stop(drainSeconds);
+
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(drainSeconds, TimeUnit.SECONDS)) {
+                logger.warn("Some requests were still running at shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        logger.info("Game service stopped");
+    }
+}
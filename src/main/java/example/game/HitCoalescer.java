@@ -0,0 +1,109 @@
+package example.game;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces hits on the same monster into a single transaction.
+ *
+ * When many players are hitting one monster (a raid boss, say), running a transaction per hit means they all read and
+ * write the same monster document, and spend most of their time retrying on write-write conflicts.  Instead, the first
+ * hit on a monster opens a short window, any further hits on that monster during the window are buffered, and when
+ * the window closes they are all applied together with {@link GameServer#playerHitsMonsterBatch}.
+ *
+ * Each caller still gets the outcome of its own hit.  The cost is that every hit is delayed by up to the window.
+ */
+public class HitCoalescer implements AutoCloseable {
+    private final GameServer gameServer;
+    private final Duration window;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<String, List<PendingHit>> pending = new ConcurrentHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(HitCoalescer.class);
+
+    /**
+     * @param window how long to buffer hits on a monster before applying them
+     * @param threads how many coalesced transactions can run concurrently
+     */
+    public HitCoalescer(GameServer gameServer, Duration window, int threads) {
+        this.gameServer = gameServer;
+        this.window = window;
+        this.scheduler = Executors.newScheduledThreadPool(threads);
+    }
+
+    /**
+     * Queues a hit, to be applied when this monster's current window closes.
+     */
+    public CompletableFuture<HitOutcome> playerHitsMonster(String actionUuid, int damage, String playerId, String monsterId) {
+        PendingHit hit = new PendingHit(new GameServer.Hit(actionUuid, damage, playerId));
+
+        // compute() is atomic per monster, so exactly one hit opens each window and schedules its flush
+        pending.compute(monsterId, (id, batch) -> {
+            if (batch == null) {
+                batch = new ArrayList<>();
+                scheduler.schedule(() -> flush(id), window.toNanos(), TimeUnit.NANOSECONDS);
+            }
+            batch.add(hit);
+            return batch;
+        });
+
+        return hit.outcome;
+    }
+
+    private void flush(String monsterId) {
+        // Any hit arriving after this remove opens a new window
+        List<PendingHit> batch = pending.remove(monsterId);
+        if (batch == null) {
+            return;
+        }
+
+        List<GameServer.Hit> hits = new ArrayList<>(batch.size());
+        for (PendingHit p : batch) {
+            hits.add(p.hit);
+        }
+
+        logger.info("Applying {} coalesced hits on monster {}", hits.size(), monsterId);
+
+        try {
+            List<HitOutcome> outcomes = gameServer.playerHitsMonsterBatch(monsterId, hits);
+            for (int i = 0; i < batch.size(); i ++) {
+                batch.get(i).outcome.complete(outcomes.get(i));
+            }
+        }
+        catch (RuntimeException err) {
+            for (PendingHit p : batch) {
+                p.outcome.completeExceptionally(err);
+            }
+        }
+    }
+
+    /**
+     * Applies any hits still buffered, then stops.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(window.toMillis() + 30_000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PendingHit {
+        final GameServer.Hit hit;
+        final CompletableFuture<HitOutcome> outcome = new CompletableFuture<>();
+
+        PendingHit(GameServer.Hit hit) {
+            this.hit = hit;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package example.game;
+
+/**
+ * What happened to a single player action, as reported back to the caller of {@link GameServer}.
+ */
+public enum HitOutcome {
+    /** The monster took the damage and is still alive. */
+    DAMAGED,
+
+    /** The hit killed the monster, and the player was awarded its experience. */
+    KILLED,
+
+    /** The monster was already dead (e.g. killed by an earlier hit in the same coalesced batch), so the hit had no effect. */
+    NO_TARGET,
+
+    /** The transaction did not reach commit, so neither the monster nor the player were changed. */
+    FAILED,
+
+    /** The transaction possibly committed - the action may or may not have been applied. */
+    AMBIGUOUS,
+
+    /** The server was too busy to start the transaction, so nothing was changed.  The client can retry later. */
+    REJECTED
+}
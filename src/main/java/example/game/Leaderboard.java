@@ -0,0 +1,371 @@
+package example.game;
+
+import example.backend.Backend;
+import example.backend.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory ranking of players by experience, answering "top 100" and "what rank is this player" without touching
+ * the cluster.
+ *
+ * It is fed by {@link GameServer} and {@link ZoneActors} after each transaction that awards experience commits, so it
+ * never sees an attempt that was rolled back.  On a cold start it is filled by {@link #rebuild}, which scans every
+ * player.  Experience only ever goes up, so an update is applied only if it raises a player's experience.  That makes
+ * updates safe to apply in any order, and while a rebuild is running.
+ *
+ * Players are ranked in an order-statistic tree: a treap, in which each node also counts the nodes beneath it, so that
+ * an update, a player's rank, and the player at any rank are all O(log n).  The tree is held in primitive arrays, one
+ * node per player, indexed by the player's number in the order they were first seen.  Each node's key packs the
+ * experience and the player number into one long, so nodes are compared without dereferencing anything, and updates
+ * allocate nothing once a player is known.  Ties are ranked by player number, so by who was first seen, however long
+ * ago they reached that experience.
+ */
+public class Leaderboard {
+    private static final Logger logger = LoggerFactory.getLogger(Leaderboard.class);
+
+    private static final int NONE = -1;
+    private static final int SCAN_BATCH = 1000;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Integer> numbers = new HashMap<>();
+    private String[] playerIds = new String[1024];
+    private int[] levels = new int[1024];
+
+    // The treap, one node per player number
+    private long[] keys = new long[1024];
+    private int[] priorities = new int[1024];
+    private int[] left = new int[1024];
+    private int[] right = new int[1024];
+    private int[] sizes = new int[1024];
+    private int root = NONE;
+    private int players;
+
+    private int random = 0x2545F491;
+
+    /**
+     * One player's place on the leaderboard.
+     */
+    public static class Entry {
+        public final int rank;
+        public final String playerId;
+        public final int experience;
+        public final int level;
+
+        Entry(int rank, String playerId, int experience, int level) {
+            this.rank = rank;
+            this.playerId = playerId;
+            this.experience = experience;
+            this.level = level;
+        }
+
+        @Override
+        public String toString() {
+            return rank + ". " + playerId + " (level " + level + ", " + experience + " experience)";
+        }
+    }
+
+    /**
+     * Records a player's committed experience and level.  Ignored unless it raises the player's experience.
+     */
+    public void update(String playerId, int experience, int level) {
+        lock.writeLock().lock();
+        try {
+            apply(playerId, experience, level);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The leading players, best first.
+     */
+    public List<Entry> top(int count) {
+        lock.readLock().lock();
+        try {
+            int n = Math.min(count, players);
+            List<Entry> out = new ArrayList<>(n);
+            for (int rank = 1; rank <= n; rank ++) {
+                out.add(entry(rank, select(rank)));
+            }
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A player's rank, where 1 is the most experienced, or empty if the player is not on the leaderboard.
+     */
+    public OptionalInt rank(String playerId) {
+        lock.readLock().lock();
+        try {
+            Integer number = numbers.get(playerId);
+            return number == null ? OptionalInt.empty() : OptionalInt.of(rankOf(keys[number]));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * How many players are on the leaderboard.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return players;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Fills the leaderboard from every player document, e.g. on startup.  Updates can keep arriving while this runs.
+     */
+    public void rebuild(Backend backend) {
+        long start = System.nanoTime();
+
+        backend.scan("player")
+                .buffer(SCAN_BATCH)
+                .doOnNext(this::applyScanned)
+                .blockLast();
+
+        logger.info("Rebuilt leaderboard of {} players in {}ms", size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void applyScanned(List<Document> batch) {
+        // Decoded outside the lock, and applied a batch at a time, so queries are not held up for long
+        String[] ids = new String[batch.size()];
+        int[] experience = new int[batch.size()];
+        int[] level = new int[batch.size()];
+        int n = 0;
+
+        for (Document doc : batch) {
+            try {
+                Player player = Player.decode(doc);
+                ids[n] = doc.id();
+                experience[n] = player.experience();
+                level[n] = player.level();
+                n ++;
+            } catch (RuntimeException err) {
+                logger.warn("Player {} is malformed, and left off the leaderboard: {}", doc.id(), err.getMessage());
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < n; i ++) {
+                apply(ids[i], experience[i], level[i]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void apply(String playerId, int experience, int level) {
+        Integer known = numbers.get(playerId);
+        int number;
+
+        if (known == null) {
+            number = players ++;
+            ensureCapacity(players);
+            numbers.put(playerId, number);
+            playerIds[number] = playerId;
+            priorities[number] = nextPriority();
+        }
+        else {
+            number = known;
+            if (experience <= experience(number)) {
+                // Stale or repeated, e.g. two transactions' updates arriving out of order
+                return;
+            }
+            root = remove(root, keys[number]);
+        }
+
+        keys[number] = key(experience, number);
+        levels[number] = level;
+        left[number] = NONE;
+        right[number] = NONE;
+        sizes[number] = 1;
+        root = insert(root, number);
+    }
+
+    private Entry entry(int rank, int number) {
+        return new Entry(rank, playerIds[number], experience(number), levels[number]);
+    }
+
+    /**
+     * Higher experience sorts higher, then lower player numbers, so the key order is the reverse of the ranking.
+     */
+    private static long key(int experience, int number) {
+        return ((long) experience << 32) | (0xFFFFFFFFL - number);
+    }
+
+    private int experience(int number) {
+        return (int) (keys[number] >> 32);
+    }
+
+    private int size(int node) {
+        return node == NONE ? 0 : sizes[node];
+    }
+
+    private void resize(int node) {
+        sizes[node] = 1 + size(left[node]) + size(right[node]);
+    }
+
+    private int insert(int node, int inserted) {
+        if (node == NONE) {
+            return inserted;
+        }
+        if (priorities[inserted] > priorities[node]) {
+            // The inserted node belongs above this one, so takes this subtree apart around its key
+            split(node, keys[inserted]);
+            left[inserted] = splitLeft;
+            right[inserted] = splitRight;
+            resize(inserted);
+            return inserted;
+        }
+        if (keys[inserted] < keys[node]) {
+            left[node] = insert(left[node], inserted);
+        }
+        else {
+            right[node] = insert(right[node], inserted);
+        }
+        resize(node);
+        return node;
+    }
+
+    private int remove(int node, long key) {
+        if (keys[node] == key) {
+            return merge(left[node], right[node]);
+        }
+        if (key < keys[node]) {
+            left[node] = remove(left[node], key);
+        }
+        else {
+            right[node] = remove(right[node], key);
+        }
+        resize(node);
+        return node;
+    }
+
+    // The results of split, to avoid allocating a pair
+    private int splitLeft;
+    private int splitRight;
+
+    /**
+     * Splits a subtree into the nodes with keys below the key, and the rest.
+     */
+    private void split(int node, long key) {
+        if (node == NONE) {
+            splitLeft = NONE;
+            splitRight = NONE;
+        }
+        else if (keys[node] < key) {
+            split(right[node], key);
+            right[node] = splitLeft;
+            resize(node);
+            splitLeft = node;
+        }
+        else {
+            split(left[node], key);
+            left[node] = splitRight;
+            resize(node);
+            splitRight = node;
+        }
+    }
+
+    /**
+     * Joins two subtrees, where every key in the first is below every key in the second.
+     */
+    private int merge(int a, int b) {
+        if (a == NONE) {
+            return b;
+        }
+        if (b == NONE) {
+            return a;
+        }
+        if (priorities[a] > priorities[b]) {
+            right[a] = merge(right[a], b);
+            resize(a);
+            return a;
+        }
+        left[b] = merge(a, left[b]);
+        resize(b);
+        return b;
+    }
+
+    /**
+     * 1 plus the number of nodes with a higher key.
+     */
+    private int rankOf(long key) {
+        int rank = 1;
+        int node = root;
+        while (node != NONE) {
+            if (key < keys[node]) {
+                rank += 1 + size(right[node]);
+                node = left[node];
+            }
+            else if (key > keys[node]) {
+                node = right[node];
+            }
+            else {
+                return rank + size(right[node]);
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * The node at a rank, counting down from the highest key.
+     */
+    private int select(int rank) {
+        int node = root;
+        while (true) {
+            int above = size(right[node]);
+            if (rank <= above) {
+                node = right[node];
+            }
+            else if (rank == above + 1) {
+                return node;
+            }
+            else {
+                rank -= above + 1;
+                node = left[node];
+            }
+        }
+    }
+
+    private int nextPriority() {
+        // xorshift - the priorities only need to look random for the tree to stay balanced
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        return random;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= keys.length) {
+            return;
+        }
+        int grown = Math.max(capacity, keys.length * 2);
+        playerIds = Arrays.copyOf(playerIds, grown);
+        levels = Arrays.copyOf(levels, grown);
+        keys = Arrays.copyOf(keys, grown);
+        priorities = Arrays.copyOf(priorities, grown);
+        left = Arrays.copyOf(left, grown);
+        right = Arrays.copyOf(right, grown);
+        sizes = Arrays.copyOf(sizes, grown);
+    }
+}
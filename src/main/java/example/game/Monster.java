@@ -0,0 +1,70 @@
+package example.game;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.Document;
+import example.codec.LazyJsonObject;
+
+/**
+ * A monster document: its hitpoints, the actions that have damaged it, and its {@link MonsterTemplate}.
+ */
+public class Monster {
+    private final LazyJsonObject content;
+
+    private Monster(LazyJsonObject content) {
+        this.content = content;
+    }
+
+    public static Monster decode(Document doc) {
+        return new Monster(LazyJsonObject.of(doc.contentAsBytes()));
+    }
+
+    /**
+     * From content read outside a transaction.
+     */
+    static Monster fromContent(JsonObject content) {
+        return new Monster(LazyJsonObject.of(content.toBytes()));
+    }
+
+    public int hitpoints() {
+        return content.getInt("hitpoints");
+    }
+
+    public void setHitpoints(int hitpoints) {
+        content.put("hitpoints", hitpoints);
+    }
+
+    /**
+     * The id of this monster's {@link MonsterTemplate}, or null if the monster carries its static attributes itself.
+     */
+    public String templateId() {
+        return content.getString("template");
+    }
+
+    /**
+     * Only present on monsters without a template.
+     */
+    public int experienceWhenKilled() {
+        return content.getInt("experienceWhenKilled");
+    }
+
+    public boolean hasActionMarker(String actionUuid) {
+        return content.arrayContains("actions", actionUuid);
+    }
+
+    /**
+     * Records that an action has been applied.  Only the most recent maxMarkers are kept, so the document does not grow
+     * without bound.
+     */
+    public void addActionMarker(String actionUuid, int maxMarkers) {
+        content.appendToArray("actions", actionUuid, maxMarkers);
+    }
+
+    public byte[] encode() {
+        return content.encode();
+    }
+
+    @Override
+    public String toString() {
+        return content.toString();
+    }
+}
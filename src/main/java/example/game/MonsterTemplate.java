@@ -0,0 +1,51 @@
+package example.game;
+
+import com.couchbase.client.java.json.JsonObject;
+
+/**
+ * The static attributes shared by every monster of a kind, e.g. every grue.
+ *
+ * These never change during play, so they are kept in a template document of their own rather than on each monster.
+ * A monster document then holds only its mutable state, plus the id of its template, which keeps the documents that
+ * transactions read and write small.  Templates are read outside transactions, through a cache.
+ */
+public class MonsterTemplate {
+    private final String name;
+    private final int experienceWhenKilled;
+    private final double itemProbability;
+
+    public MonsterTemplate(String name, int experienceWhenKilled, double itemProbability) {
+        this.name = name;
+        this.experienceWhenKilled = experienceWhenKilled;
+        this.itemProbability = itemProbability;
+    }
+
+    static MonsterTemplate fromContent(JsonObject content) {
+        return new MonsterTemplate(content.getString("name"),
+                content.getInt("experienceWhenKilled"),
+                content.getDouble("itemProbability"));
+    }
+
+    public JsonObject toContent() {
+        return JsonObject.create()
+                .put("experienceWhenKilled", experienceWhenKilled)
+                .put("itemProbability", itemProbability)
+                .put("jsonType", "monsterTemplate")
+                .put("name", name);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * The experience a player earns for killing a monster of this kind.
+     */
+    public int experienceWhenKilled() {
+        return experienceWhenKilled;
+    }
+
+    public double itemProbability() {
+        return itemProbability;
+    }
+}
@@ -0,0 +1,98 @@
+package example.game;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.Backend;
+import example.backend.BackendDocumentNotFound;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+
+/**
+ * A bounded, read-through cache of {@link MonsterTemplate}s, keyed by template document id.
+ *
+ * Each cached template remembers the CAS of the document it was decoded from.  Once it has been cached for longer than
+ * the revalidation interval, the next lookup reads just the document's current CAS: if that is unchanged the cached
+ * template is still good, and only if it has changed is the document read and decoded again.  Templates can also be
+ * invalidated explicitly, e.g. straight after one has been edited.
+ */
+class MonsterTemplateCache {
+    private final Backend backend;
+    private final long revalidateAfterNanos;
+    private final Map<String, Entry> entries;
+
+    MonsterTemplateCache(Backend backend, int capacity, Duration revalidateAfter) {
+        this.backend = backend;
+        this.revalidateAfterNanos = revalidateAfter.toNanos();
+
+        // An access-ordered LinkedHashMap evicts the least recently used template once full
+        this.entries = new LinkedHashMap<String, Entry>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @throws BackendDocumentNotFound if there is no such template
+     */
+    MonsterTemplate get(String templateId) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(templateId);
+        }
+
+        // The backend is only ever called outside the lock, so a slow read does not hold up lookups of other templates
+        long now = System.nanoTime();
+
+        if (entry != null) {
+            if (now - entry.validatedAt < revalidateAfterNanos) {
+                return entry.template;
+            }
+
+            OptionalLong cas = backend.cas(templateId);
+            if (cas.isPresent() && cas.getAsLong() == entry.cas) {
+                entry.validatedAt = now;
+                return entry.template;
+            }
+        }
+
+        return load(templateId, now);
+    }
+
+    private MonsterTemplate load(String templateId, long now) {
+        // The CAS is read before the content.  If the template is written in between, the cached CAS is then older than
+        // the cached content, and the next revalidation simply reloads it.  The other way around, stale content could be
+        // cached under a current CAS, and never be reloaded.
+        OptionalLong cas = backend.cas(templateId);
+        JsonObject content = backend.get(templateId).orElse(null);
+        if (!cas.isPresent() || content == null) {
+            invalidate(templateId);
+            throw new BackendDocumentNotFound(templateId);
+        }
+
+        MonsterTemplate template = MonsterTemplate.fromContent(content);
+        synchronized (this) {
+            entries.put(templateId, new Entry(template, cas.getAsLong(), now));
+        }
+        return template;
+    }
+
+    synchronized void invalidate(String templateId) {
+        entries.remove(templateId);
+    }
+
+    private static class Entry {
+        final MonsterTemplate template;
+        final long cas;
+        volatile long validatedAt;
+
+        Entry(MonsterTemplate template, long cas, long validatedAt) {
+            this.template = template;
+            this.cas = cas;
+            this.validatedAt = validatedAt;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package example.game;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.Document;
+import example.codec.LazyJsonObject;
+
+/**
+ * A player document: their experience and level, and the actions that have earned them experience.
+ */
+public class Player {
+    private final LazyJsonObject content;
+
+    private Player(LazyJsonObject content) {
+        this.content = content;
+    }
+
+    public static Player decode(Document doc) {
+        return new Player(LazyJsonObject.of(doc.contentAsBytes()));
+    }
+
+    /**
+     * From content read outside a transaction.
+     */
+    static Player fromContent(JsonObject content) {
+        return new Player(LazyJsonObject.of(content.toBytes()));
+    }
+
+    public int experience() {
+        return content.getInt("experience");
+    }
+
+    public void setExperience(int experience) {
+        content.put("experience", experience);
+    }
+
+    public int level() {
+        return content.getInt("level");
+    }
+
+    public void setLevel(int level) {
+        content.put("level", level);
+    }
+
+    public boolean hasActionMarker(String actionUuid) {
+        return content.arrayContains("actions", actionUuid);
+    }
+
+    /**
+     * Records that an action has been applied.  Only the most recent maxMarkers are kept, so the document does not grow
+     * without bound.
+     */
+    public void addActionMarker(String actionUuid, int maxMarkers) {
+        content.appendToArray("actions", actionUuid, maxMarkers);
+    }
+
+    public byte[] encode() {
+        return content.encode();
+    }
+
+    @Override
+    public String toString() {
+        return content.toString();
+    }
+}
@@ -0,0 +1,42 @@
+package example.game;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, in-memory record of the outcomes of recently applied player actions, keyed by action UUID.
+ *
+ * This lets {@link GameServer} answer most duplicate actions (e.g. a client retrying after a timeout) without touching
+ * the cluster.  It is only a cache: it is lost on restart and not shared between servers, so the action markers
+ * written to the documents themselves remain the authoritative record.
+ */
+class RecentActions {
+    private final Map<String, HitOutcome> outcomes;
+
+    RecentActions(int capacity) {
+        // An access-ordered LinkedHashMap evicts the least recently used action once full
+        this.outcomes = new LinkedHashMap<String, HitOutcome>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HitOutcome> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the outcome of this action if it is known to have been applied, else null
+     */
+    synchronized HitOutcome get(String actionUuid) {
+        return outcomes.get(actionUuid);
+    }
+
+    /**
+     * Records the outcome of an action.  Only definite outcomes are recorded - after a failed or ambiguous transaction
+     * the action must be retried against the cluster.
+     */
+    synchronized void put(String actionUuid, HitOutcome outcome) {
+        if (outcome == HitOutcome.DAMAGED || outcome == HitOutcome.KILLED || outcome == HitOutcome.NO_TARGET) {
+            outcomes.put(actionUuid, outcome);
+        }
+    }
+}
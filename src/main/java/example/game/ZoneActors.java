@@ -0,0 +1,560 @@
+package example.game;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.Backend;
+import example.backend.BackendCommitAmbiguous;
+import example.backend.BackendDocumentNotFound;
+import example.backend.BackendTransactionFailed;
+import example.backend.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Applies hits in memory, and writes the results to the cluster behind them, in periodic batched transactions.
+ *
+ * {@link GameServer#playerHitsMonster} runs a transaction per hit, which costs several round trips, and more under
+ * contention.  For fast-moving combat that is too slow.  Here, monsters are partitioned by zone, and each zone is an
+ * actor: a single writer that owns the live state of its monsters.  Each zone is pinned to one worker thread, and all
+ * of its state is only touched from that thread, so hits are applied with no locks and no round trips - once a monster
+ * has been loaded, a hit takes microseconds.  A monster must always be hit in the same zone.
+ *
+ * Every flush interval, each zone's changes since its last flush - monsters damaged, spawned and killed, and the
+ * experience earned for kills - are written in one transaction.  A kill and the award of its experience are always
+ * flushed together, so the guarantee of the per-hit transaction still holds at flush boundaries: the cluster never
+ * shows a monster dead without its killer having been awarded, or the reverse.  Zones keep taking hits while they
+ * flush.  A flush that fails is retried, unchanged and with backoff, before anything newer is flushed.  Each flush
+ * marks the players it awards, so a retry after an ambiguous commit does not award them twice.  A flush that still
+ * fails after {@value #MAX_FLUSH_ATTEMPTS} attempts is logged in full and dropped, so that one bad document cannot stop
+ * the zone persisting anything else - see {@link #getDeadLetteredFlushes}.
+ *
+ * The outcome of a hit is returned before it is persisted.  If the server crashes, hits since the last flush are lost,
+ * and zones recover from the last persisted state: monsters are loaded from the cluster on their first hit after
+ * restart.  Hits are idempotent by action UUID, so clients that retry unacknowledged actions lose nothing.  A killing
+ * action is also checked against the markers on its player, so that it cannot kill a monster respawned under the same
+ * id once the zone has forgotten the first.  Call
+ * {@link #flush} to wait until everything so far is persisted.
+ */
+public class ZoneActors implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ZoneActors.class);
+
+    // Kills are remembered after their monster is flushed, so a repeated killing action still reports the kill
+    private static final int RECENT_KILLS_PER_ZONE = 10_000;
+
+    private static final int MAX_FLUSH_ROUNDS = 10;
+
+    private static final int MAX_FLUSH_ATTEMPTS = 5;
+    private static final long FLUSH_BACKOFF_MILLIS = 100;
+    private static final long MAX_FLUSH_BACKOFF_MILLIS = 5_000;
+
+    private final Backend backend;
+    private final MonsterTemplateCache monsterTemplates;
+    private final Worker[] workers;
+    private final ExecutorService flushers;
+    private Leaderboard leaderboard;
+
+    private final AtomicInteger failingZones = new AtomicInteger();
+    private final LongAdder deadLetteredFlushes = new LongAdder();
+
+    /**
+     * @param threads how many worker threads zones are spread over
+     * @param flushInterval how often each zone writes its changes
+     * @param flushThreads how many flush transactions can run at once
+     */
+    public ZoneActors(Backend backend, int threads, Duration flushInterval, int flushThreads) {
+        this.backend = backend;
+        this.monsterTemplates = new MonsterTemplateCache(backend, 10_000, Duration.ofSeconds(10));
+        this.flushers = Executors.newFixedThreadPool(flushThreads);
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i ++) {
+            workers[i] = new Worker();
+            Worker worker = workers[i];
+            worker.ticking = worker.executor.scheduleWithFixedDelay(worker::tick, flushInterval.toNanos(),
+                    flushInterval.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Keeps a {@link Leaderboard} up to date with the experience players earn.  Players are passed to it as each flush
+     * commits, not as their kills are applied in memory, so it only ever shows persisted experience.
+     */
+    public ZoneActors withLeaderboard(Leaderboard leaderboard) {
+        this.leaderboard = leaderboard;
+        return this;
+    }
+
+    /**
+     * Applies a hit in memory.  The returned future completes as soon as the hit is applied, typically in
+     * microseconds, but the hit is only persisted by the zone's next flush.
+     */
+    public CompletableFuture<HitOutcome> playerHitsMonster(String zoneId, String actionUuid, int damage, String playerId,
+                                                           String monsterId) {
+        Worker worker = workerFor(zoneId);
+        return CompletableFuture.supplyAsync(() -> worker.zone(zoneId).hit(actionUuid, damage, playerId, monsterId),
+                worker.executor);
+    }
+
+    /**
+     * Brings a monster into the zone with this content, replacing any monster with the same id.  It is written to the
+     * cluster by the zone's next flush.
+     */
+    public CompletableFuture<Void> spawnMonster(String zoneId, String monsterId, JsonObject content) {
+        Worker worker = workerFor(zoneId);
+        return CompletableFuture.runAsync(() -> worker.zone(zoneId).spawn(monsterId, content), worker.executor);
+    }
+
+    /**
+     * How many zones have a flush that has failed, and is waiting to be retried.  Nothing newer in those zones is
+     * persisted until it succeeds, or is dropped.
+     */
+    public int getFailingZones() {
+        return failingZones.get();
+    }
+
+    /**
+     * How many flushes have been dropped after failing every attempt.  Their changes were logged, but never persisted.
+     */
+    public long getDeadLetteredFlushes() {
+        return deadLetteredFlushes.sum();
+    }
+
+    private Worker workerFor(String zoneId) {
+        return workers[Math.floorMod(zoneId.hashCode(), workers.length)];
+    }
+
+    /**
+     * Flushes every zone, and waits until everything applied before this call has been persisted, or has failed to
+     * persist after several attempts.
+     *
+     * @return whether everything was persisted
+     */
+    public boolean flush() {
+        for (int round = 0; round < MAX_FLUSH_ROUNDS; round ++) {
+            List<CompletableFuture<Void>> flushing = new ArrayList<>();
+            for (Worker worker : workers) {
+                flushing.addAll(CompletableFuture.supplyAsync(worker::flushAll, worker.executor).join());
+            }
+            if (flushing.isEmpty()) {
+                return true;
+            }
+            for (CompletableFuture<Void> f : flushing) {
+                f.join();
+            }
+        }
+        logger.warn("Some zones could not be flushed");
+        return false;
+    }
+
+    /**
+     * Flushes everything, then stops.
+     */
+    @Override
+    public void close() {
+        // Stopped first, as a flush started by a tick after the final flush could not complete once the workers are
+        // shut down.  One that is already running is waited for by the final flush.
+        for (Worker worker : workers) {
+            worker.ticking.cancel(false);
+        }
+        flush();
+        for (Worker worker : workers) {
+            worker.executor.shutdown();
+        }
+        flushers.shutdown();
+        try {
+            for (Worker worker : workers) {
+                worker.executor.awaitTermination(30, TimeUnit.SECONDS);
+            }
+            flushers.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A thread, and the zones pinned to it.  The zones are only touched from the thread.
+     */
+    private class Worker {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        final Map<String, Zone> zones = new HashMap<>();
+        ScheduledFuture<?> ticking;
+
+        Zone zone(String zoneId) {
+            return zones.computeIfAbsent(zoneId, id -> new Zone(id, this));
+        }
+
+        void tick() {
+            for (Zone zone : zones.values()) {
+                zone.startFlush();
+            }
+        }
+
+        List<CompletableFuture<Void>> flushAll() {
+            List<CompletableFuture<Void>> flushing = new ArrayList<>();
+            for (Zone zone : zones.values()) {
+                CompletableFuture<Void> f = zone.startFlush();
+                if (f != null) {
+                    flushing.add(f);
+                }
+            }
+            return flushing;
+        }
+    }
+
+    /**
+     * A zone's live state: its monsters, and its changes since the last flush.
+     */
+    private class Zone {
+        final String zoneId;
+        final Worker worker;
+        final Map<String, Slot> monsters = new HashMap<>();
+        List<Kill> kills = new ArrayList<>();
+        final Map<String, HitOutcome> recentKills = new LinkedHashMap<String, HitOutcome>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HitOutcome> eldest) {
+                return size() > RECENT_KILLS_PER_ZONE;
+            }
+        };
+
+        // At most one flush per zone runs at a time, so flushes are applied in order
+        CompletableFuture<Void> inFlight;
+        Flush failed;
+        int failedAttempts;
+
+        Zone(String zoneId, Worker worker) {
+            this.zoneId = zoneId;
+            this.worker = worker;
+        }
+
+        HitOutcome hit(String actionUuid, int damage, String playerId, String monsterId) {
+            HitOutcome recent = recentKills.get(actionUuid);
+            if (recent != null) {
+                return recent;
+            }
+
+            Slot slot = monsters.get(monsterId);
+            if (slot == null) {
+                // The first hit on a monster since startup loads its last persisted state.  This is the only read.
+                slot = new Slot(backend.get(monsterId).map(Monster::fromContent).orElse(null));
+                monsters.put(monsterId, slot);
+            }
+
+            Monster monster = slot.monster;
+            if (monster == null) {
+                return HitOutcome.NO_TARGET;
+            }
+            if (monster.hasActionMarker(actionUuid)) {
+                return HitOutcome.DAMAGED;
+            }
+
+            int hitpoints = monster.hitpoints() - damage;
+
+            // A kill forgotten by the zone is still marked on the player once flushed, as in GameServer.  Only kills
+            // are checked, so only they pay for the read.
+            if (hitpoints <= 0 && killedBefore(actionUuid, playerId)) {
+                recentKills.put(actionUuid, HitOutcome.KILLED);
+                return HitOutcome.KILLED;
+            }
+
+            slot.dirty = true;
+
+            if (hitpoints <= 0) {
+                kills.add(new Kill(actionUuid, playerId, monster.templateId(),
+                        monster.templateId() == null ? monster.experienceWhenKilled() : 0));
+                slot.monster = null;
+                recentKills.put(actionUuid, HitOutcome.KILLED);
+                return HitOutcome.KILLED;
+            }
+
+            monster.setHitpoints(hitpoints);
+            monster.addActionMarker(actionUuid, GameServer.MAX_ACTION_MARKERS);
+            return HitOutcome.DAMAGED;
+        }
+
+        private boolean killedBefore(String actionUuid, String playerId) {
+            return backend.get(playerId)
+                    .map(content -> Player.fromContent(content).hasActionMarker(actionUuid))
+                    .orElse(false);
+        }
+
+        void spawn(String monsterId, JsonObject content) {
+            Slot slot = new Slot(Monster.fromContent(content));
+            slot.dirty = true;
+            monsters.put(monsterId, slot);
+        }
+
+        /**
+         * Starts flushing this zone's changes, unless a flush is already running, in which case returns that.
+         *
+         * @return the flush, or null if there is nothing to flush
+         */
+        CompletableFuture<Void> startFlush() {
+            if (inFlight != null) {
+                return inFlight;
+            }
+
+            Flush flush = failed != null ? failed : takeChanges();
+            if (flush == null) {
+                return null;
+            }
+
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            inFlight = done;
+            Runnable dispatch = () -> flushers.execute(() -> {
+                boolean ok = tryWrite(flush);
+
+                // Back on the zone's thread, which completes the flush once the zone has seen its outcome
+                worker.executor.execute(() -> {
+                    inFlight = null;
+                    if (ok) {
+                        forgetRemoved(flush);
+                        clearFailed();
+                    }
+                    else if (++failedAttempts >= MAX_FLUSH_ATTEMPTS) {
+                        deadLetter(flush);
+                        clearFailed();
+                    }
+                    else {
+                        if (failed == null) {
+                            failingZones.incrementAndGet();
+                        }
+                        failed = flush;
+                    }
+                    done.complete(null);
+                });
+            });
+
+            if (failedAttempts == 0) {
+                dispatch.run();
+            }
+            else {
+                long backoff = Math.min(FLUSH_BACKOFF_MILLIS << (failedAttempts - 1), MAX_FLUSH_BACKOFF_MILLIS);
+                worker.executor.schedule(dispatch, backoff, TimeUnit.MILLISECONDS);
+            }
+            return done;
+        }
+
+        private void clearFailed() {
+            if (failed != null) {
+                failingZones.decrementAndGet();
+            }
+            failed = null;
+            failedAttempts = 0;
+        }
+
+        /**
+         * Drops a flush that has failed every attempt, logging everything it would have written so that it can be
+         * applied by hand.  The zone's monsters keep their in-memory state, which a later flush writes if they change
+         * again.
+         */
+        private void deadLetter(Flush flush) {
+            deadLetteredFlushes.increment();
+            logger.error("Flush {} of zone {} failed {} times, and is dropped", flush.flushId, flush.zoneId,
+                    failedAttempts);
+            for (Map.Entry<String, byte[]> write : flush.writes.entrySet()) {
+                logger.error("  Dropped write of monster {}: {}", write.getKey(),
+                        write.getValue() == null ? "removed" : new String(write.getValue(), StandardCharsets.UTF_8));
+            }
+            for (Kill kill : flush.kills) {
+                logger.error("  Dropped kill {} by player {}", kill.actionUuid, kill.playerId);
+            }
+        }
+
+        private Flush takeChanges() {
+            Map<String, byte[]> writes = new HashMap<>();
+            for (Map.Entry<String, Slot> entry : monsters.entrySet()) {
+                Slot slot = entry.getValue();
+                if (!slot.dirty) {
+                    continue;
+                }
+                slot.dirty = false;
+                if (slot.monster == null) {
+                    writes.put(entry.getKey(), null);
+                }
+                else {
+                    // A snapshot, as the live monster carries on taking hits while this is written
+                    writes.put(entry.getKey(), slot.monster.encode());
+                }
+            }
+
+            if (writes.isEmpty() && kills.isEmpty()) {
+                return null;
+            }
+
+            Flush flush = new Flush(zoneId, writes, kills);
+            kills = new ArrayList<>();
+            return flush;
+        }
+
+        /**
+         * Once their removal is persisted, dead monsters no longer need to be kept.  Until then, they must be, or the
+         * next hit would load the monster alive from the cluster.
+         */
+        private void forgetRemoved(Flush flush) {
+            for (Map.Entry<String, byte[]> write : flush.writes.entrySet()) {
+                Slot slot = monsters.get(write.getKey());
+                if (write.getValue() == null && slot != null && slot.monster == null && !slot.dirty) {
+                    monsters.remove(write.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * As {@link #write}, but a flush that fails in any other way, such as a timeout reading a template, is treated as
+     * failed too, rather than leaving the zone waiting on it forever.
+     */
+    private boolean tryWrite(Flush flush) {
+        try {
+            return write(flush);
+        } catch (RuntimeException err) {
+            logger.warn("Flush {} of zone {} failed unexpectedly, and will be retried", flush.flushId, flush.zoneId,
+                    err);
+            return false;
+        }
+    }
+
+    /**
+     * Writes a flush in one transaction.  A monster is written as its whole state at the time of the flush, which is
+     * safe to write again on retry, and each awarded player is marked with the flush id.
+     *
+     * @return whether the flush committed
+     */
+    private boolean write(Flush flush) {
+        // Templates are read outside the transaction, through the cache, as in GameServer
+        Map<String, Integer> experience = new HashMap<>();
+        for (Kill kill : flush.kills) {
+            int earned = kill.experienceWhenKilled;
+            if (kill.templateId != null) {
+                try {
+                    earned = monsterTemplates.get(kill.templateId).experienceWhenKilled();
+                } catch (BackendDocumentNotFound err) {
+                    logger.warn("Monster template {} not found, so its kill earns no experience", kill.templateId);
+                }
+            }
+            experience.merge(kill.playerId, earned, Integer::sum);
+        }
+
+        Map<String, Player> awarded = new HashMap<>();
+
+        try {
+            backend.run(ctx -> {
+                awarded.clear();
+
+                for (Map.Entry<String, byte[]> write : flush.writes.entrySet()) {
+                    Optional<Document> monster = ctx.getOptional(write.getKey());
+                    if (write.getValue() == null) {
+                        monster.ifPresent(ctx::remove);
+                    }
+                    else if (monster.isPresent()) {
+                        ctx.replace(monster.get(), write.getValue());
+                    }
+                    else {
+                        ctx.insert(write.getKey(), write.getValue());
+                    }
+                }
+
+                for (Map.Entry<String, Integer> award : experience.entrySet()) {
+                    // A player that has gone would otherwise fail this flush, and every retry of it
+                    Optional<Document> player = ctx.getOptional(award.getKey());
+                    if (!player.isPresent()) {
+                        logger.warn("Player {} not found, so is not awarded {} experience", award.getKey(), award.getValue());
+                        continue;
+                    }
+                    Player playerContent = Player.decode(player.get());
+                    awarded.put(award.getKey(), playerContent);
+
+                    // Already awarded, by an attempt that committed although it was reported as ambiguous
+                    if (playerContent.hasActionMarker(flush.flushId)) {
+                        continue;
+                    }
+
+                    int playerNewExperience = playerContent.experience() + award.getValue();
+                    playerContent.setExperience(playerNewExperience);
+                    playerContent.setLevel(GameServer.calculateLevelForExperience(playerNewExperience));
+                    for (Kill kill : flush.kills) {
+                        if (kill.playerId.equals(award.getKey())) {
+                            playerContent.addActionMarker(kill.actionUuid, GameServer.MAX_ACTION_MARKERS);
+                        }
+                    }
+                    // Added last, so that a player with more kills in this flush than there is room for markers still
+                    // keeps it, and a retry cannot award the experience twice
+                    playerContent.addActionMarker(flush.flushId, GameServer.MAX_ACTION_MARKERS);
+                    ctx.replace(player.get(), playerContent.encode());
+                }
+            });
+
+            logger.info("Flushed zone {}: {} monsters written and {} kills", flush.zoneId, flush.writes.size(),
+                    flush.kills.size());
+            if (leaderboard != null) {
+                awarded.forEach((playerId, player) -> leaderboard.update(playerId, player.experience(), player.level()));
+            }
+            return true;
+        } catch (BackendCommitAmbiguous err) {
+            logger.warn("Flush {} of zone {} possibly committed, and will be retried", flush.flushId, flush.zoneId);
+            return false;
+        } catch (BackendTransactionFailed err) {
+            logger.warn("Flush {} of zone {} did not reach commit, and will be retried", flush.flushId, flush.zoneId);
+            err.logs().forEach(logger::warn);
+            return false;
+        }
+    }
+
+    /**
+     * A monster as its zone sees it.  A null monster is dead, or was never there.
+     */
+    private static class Slot {
+        Monster monster;
+        boolean dirty;
+
+        Slot(Monster monster) {
+            this.monster = monster;
+        }
+    }
+
+    private static class Kill {
+        final String actionUuid;
+        final String playerId;
+        final String templateId;
+        final int experienceWhenKilled;
+
+        Kill(String actionUuid, String playerId, String templateId, int experienceWhenKilled) {
+            this.actionUuid = actionUuid;
+            this.playerId = playerId;
+            this.templateId = templateId;
+            this.experienceWhenKilled = experienceWhenKilled;
+        }
+    }
+
+    /**
+     * One zone's changes between two flushes.  Immutable, so it can be written off the zone's thread, and retried.
+     */
+    private static class Flush {
+        final String flushId = UUID.randomUUID().toString();
+        final String zoneId;
+        final Map<String, byte[]> writes;
+        final List<Kill> kills;
+
+        Flush(String zoneId, Map<String, byte[]> writes, List<Kill> kills) {
+            this.zoneId = zoneId;
+            this.writes = writes;
+            this.kills = kills;
+        }
+    }
+}
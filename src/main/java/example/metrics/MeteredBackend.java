@@ -0,0 +1,109 @@
+package example.metrics;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.Backend;
+import example.backend.BackendCommitAmbiguous;
+import example.backend.BackendContext;
+import example.backend.BackendResult;
+import example.backend.BackendRollback;
+import example.backend.BackendTransactionFailed;
+import example.backend.Document;
+import example.backend.ReactiveBackendContext;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Wraps a {@link Backend}, recording every transaction run through it into {@link TransactionMetrics}.
+ */
+public class MeteredBackend implements Backend {
+    private final Backend delegate;
+    private final TransactionMetrics metrics;
+
+    public MeteredBackend(Backend delegate, TransactionMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public BackendResult run(Consumer<BackendContext> logic) {
+        metrics.transactionStarted();
+        long start = System.nanoTime();
+
+        try {
+            BackendResult result = delegate.run(logic);
+            metrics.transactionCommitted(result, System.nanoTime() - start);
+            return result;
+        } catch (BackendTransactionFailed e) {
+            recordFailure(e, System.nanoTime() - start);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.transactionFailed(null, System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Mono<BackendResult> runReactive(Function<ReactiveBackendContext, Mono<?>> logic) {
+        // Deferred so the transaction is timed from subscription, which is when it actually starts
+        return Mono.defer(() -> {
+            metrics.transactionStarted();
+            long start = System.nanoTime();
+
+            return delegate.runReactive(logic)
+                    .doOnNext(result -> metrics.transactionCommitted(result, System.nanoTime() - start))
+                    .doOnError(err -> {
+                        if (err instanceof BackendTransactionFailed) {
+                            recordFailure((BackendTransactionFailed) err, System.nanoTime() - start);
+                        }
+                        else {
+                            metrics.transactionFailed(null, System.nanoTime() - start);
+                        }
+                    });
+        });
+    }
+
+    private void recordFailure(BackendTransactionFailed e, long wallNanos) {
+        // BackendCommitAmbiguous is a BackendTransactionFailed, so must be checked first
+        if (e instanceof BackendCommitAmbiguous) {
+            metrics.transactionAmbiguous(e.result(), wallNanos);
+        }
+        else if (e.getCause() instanceof BackendRollback) {
+            // An expected outcome, such as insufficient funds, which would otherwise inflate the failure rate
+            metrics.transactionRolledBack(e.result(), wallNanos);
+        }
+        else {
+            metrics.transactionFailed(e.result(), wallNanos);
+        }
+    }
+
+    @Override
+    public void upsert(String id, JsonObject content) {
+        delegate.upsert(id, content);
+    }
+
+    @Override
+    public Optional<JsonObject> get(String id) {
+        return delegate.get(id);
+    }
+
+    @Override
+    public OptionalLong cas(String id) {
+        return delegate.cas(id);
+    }
+
+    @Override
+    public List<String> idsStartingWith(String prefix) {
+        return delegate.idsStartingWith(prefix);
+    }
+
+    @Override
+    public Flux<Document> scan(String... types) {
+        return delegate.scan(types);
+    }
+}
@@ -0,0 +1,68 @@
+package example.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@link TransactionMetrics} at http://localhost:{port}/metrics, in the Prometheus text format.
+ *
+ * It only listens on the loopback interface: a Prometheus agent running alongside the application can scrape it, but it
+ * is not exposed to the network.
+ */
+public class PrometheusEndpoint implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(PrometheusEndpoint.class);
+
+    private final HttpServer server;
+
+    public PrometheusEndpoint(TransactionMetrics metrics, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        server.createContext("/metrics", exchange -> {
+            StringBuilder out = new StringBuilder();
+            metrics.writePrometheus(out);
+            byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+
+        // The default executor handles requests on the server's single thread, which is plenty for occasional scrapes
+        server.start();
+
+        logger.info("Serving transaction metrics at http://localhost:{}/metrics", port);
+    }
+
+    /**
+     * Starts an endpoint if a port is given.  Metrics are not worth failing the application for, so if the port cannot
+     * be used, that is logged and there is no endpoint.
+     *
+     * @param port 0 for no endpoint
+     * @return null if there is no endpoint
+     */
+    public static PrometheusEndpoint startIfRequested(TransactionMetrics metrics, int port) {
+        if (port == 0) {
+            return null;
+        }
+        try {
+            return new PrometheusEndpoint(metrics, port);
+        } catch (IOException e) {
+            logger.warn("Could not serve metrics on port {}", port, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
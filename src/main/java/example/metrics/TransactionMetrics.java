@@ -0,0 +1,325 @@
+package example.metrics;
+
+import com.couchbase.client.core.cnc.Event;
+import com.couchbase.transactions.log.TransactionCleanupAttempt;
+import com.couchbase.transactions.log.TransactionEvent;
+import example.backend.BackendResult;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts transactions and their outcomes, attempts, cleanup activity and latency.
+ *
+ * It is fed by {@link MeteredBackend}, which wraps each transaction, and by the Couchbase event bus, via
+ * {@link #onEvent}.  Recording is lock-free and does not allocate - counters are {@link LongAdder}s, and latencies go
+ * into HdrHistogram {@link Recorder}s - so it is cheap enough to leave enabled in production.  Only reading the metrics
+ * (over JMX, or the {@link PrometheusEndpoint}) takes a lock, and that lock is never taken by a transaction.
+ *
+ * The number to watch is retries per transaction.  Each retry re-runs the transaction logic, usually because of a write
+ * conflict with another transaction, so a rising retry rate means the application is paying several times over for
+ * each transaction.
+ */
+public class TransactionMetrics implements TransactionMetricsMBean {
+    private static final Logger logger = LoggerFactory.getLogger(TransactionMetrics.class);
+
+    // Upper bounds of the Prometheus histogram buckets
+    private static final double[] LATENCY_BUCKETS_SECS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 15};
+    private static final int[] ATTEMPT_BUCKETS = {1, 2, 3, 5, 10, 20, 50};
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rolledBack = new LongAdder();
+    private final LongAdder ambiguous = new LongAdder();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder cleanupAttempts = new LongAdder();
+    private final LongAdder cleanupFailures = new LongAdder();
+    private final LongAdder importantEvents = new LongAdder();
+
+    // Transactions by how many attempts they took, with one extra bucket for anything above the last bound
+    private final LongAdder[] attemptsPerTransaction = new LongAdder[ATTEMPT_BUCKETS.length + 1];
+
+    // Latencies are recorded in microseconds.  The run latency is the wall time of the whole transaction, as seen by the
+    // caller, whatever its outcome.  The commit latency is the time taken by transactions that committed, as reported
+    // by the transactions library.
+    private final Recorder runRecorder = new Recorder(3);
+    private final Recorder commitRecorder = new Recorder(3);
+    private final LongAdder runMicrosSum = new LongAdder();
+    private final LongAdder commitMicrosSum = new LongAdder();
+
+    // Everything recorded so far, accumulated from the recorders whenever the metrics are read
+    private final Histogram runLatency = new Histogram(3);
+    private final Histogram commitLatency = new Histogram(3);
+
+    public TransactionMetrics() {
+        for (int i = 0; i < attemptsPerTransaction.length; i ++) {
+            attemptsPerTransaction[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, as example:type=TransactionMetrics,name={name}.
+     */
+    public void registerMBean(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(this, new ObjectName("example:type=TransactionMetrics,name=" + name));
+        } catch (JMException e) {
+            // Metrics are not worth failing the application for
+            logger.warn("Could not register transaction metrics over JMX", e);
+        }
+    }
+
+    void transactionStarted() {
+        started.increment();
+    }
+
+    void transactionCommitted(BackendResult result, long wallNanos) {
+        committed.increment();
+        recordAttempts(result.attempts());
+        recordRun(wallNanos);
+
+        long micros = TimeUnit.NANOSECONDS.toMicros(result.timeTaken().toNanos());
+        commitRecorder.recordValue(micros);
+        commitMicrosSum.add(micros);
+    }
+
+    void transactionAmbiguous(BackendResult result, long wallNanos) {
+        ambiguous.increment();
+        recordAttempts(result.attempts());
+        recordRun(wallNanos);
+    }
+
+    /**
+     * @param result null if the transaction failed without a result, e.g. because of a bug in the backend.  It is then
+     *               counted as a single attempt.
+     */
+    void transactionFailed(BackendResult result, long wallNanos) {
+        failed.increment();
+        recordAttempts(result != null ? result.attempts() : 1);
+        recordRun(wallNanos);
+    }
+
+    void transactionRolledBack(BackendResult result, long wallNanos) {
+        rolledBack.increment();
+        recordAttempts(result.attempts());
+        recordRun(wallNanos);
+    }
+
+    private void recordAttempts(int count) {
+        attempts.add(count);
+
+        int bucket = 0;
+        while (bucket < ATTEMPT_BUCKETS.length && count > ATTEMPT_BUCKETS[bucket]) {
+            bucket ++;
+        }
+        attemptsPerTransaction[bucket].increment();
+    }
+
+    private void recordRun(long wallNanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(wallNanos);
+        runRecorder.recordValue(micros);
+        runMicrosSum.add(micros);
+    }
+
+    /**
+     * A handler for the Couchbase event bus:
+     *
+     * cluster.environment().eventBus().subscribe(metrics::onEvent);
+     */
+    public void onEvent(Event event) {
+        if (event instanceof TransactionEvent) {
+
+            if (event instanceof TransactionCleanupAttempt) {
+                // Cleanup of transactions that failed midway, whether by this application or another one
+                cleanupAttempts.increment();
+                if (!((TransactionCleanupAttempt) event).success()) {
+                    cleanupFailures.increment();
+                }
+            }
+
+            if (event.severity().ordinal() >= Event.Severity.WARN.ordinal()) {
+                importantEvents.increment();
+                logger.warn("Transaction event: {}", event.description());
+            }
+        }
+    }
+
+    // Pulls everything recorded since the last read into the cumulative histograms
+    private synchronized void drain() {
+        runLatency.add(runRecorder.getIntervalHistogram());
+        commitLatency.add(commitRecorder.getIntervalHistogram());
+    }
+
+    @Override
+    public long getStarted() {
+        return started.sum();
+    }
+
+    @Override
+    public long getCommitted() {
+        return committed.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getRolledBack() {
+        return rolledBack.sum();
+    }
+
+    @Override
+    public long getAmbiguous() {
+        return ambiguous.sum();
+    }
+
+    @Override
+    public long getAttempts() {
+        return attempts.sum();
+    }
+
+    @Override
+    public long getRetries() {
+        return attempts.sum() - completed();
+    }
+
+    @Override
+    public double getRetriesPerTransaction() {
+        long completed = completed();
+        return completed == 0 ? 0.0 : getRetries() / (double) completed;
+    }
+
+    private long completed() {
+        return committed.sum() + failed.sum() + rolledBack.sum() + ambiguous.sum();
+    }
+
+    @Override
+    public long getCleanupAttempts() {
+        return cleanupAttempts.sum();
+    }
+
+    @Override
+    public long getCleanupFailures() {
+        return cleanupFailures.sum();
+    }
+
+    @Override
+    public long getImportantEvents() {
+        return importantEvents.sum();
+    }
+
+    @Override
+    public synchronized long getRunLatencyP50Micros() {
+        drain();
+        return runLatency.getValueAtPercentile(50);
+    }
+
+    @Override
+    public synchronized long getRunLatencyP99Micros() {
+        drain();
+        return runLatency.getValueAtPercentile(99);
+    }
+
+    @Override
+    public synchronized long getRunLatencyMaxMicros() {
+        drain();
+        return runLatency.getMaxValue();
+    }
+
+    @Override
+    public synchronized long getCommitLatencyP50Micros() {
+        drain();
+        return commitLatency.getValueAtPercentile(50);
+    }
+
+    @Override
+    public synchronized long getCommitLatencyP99Micros() {
+        drain();
+        return commitLatency.getValueAtPercentile(99);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    public synchronized void writePrometheus(StringBuilder out) {
+        drain();
+
+        counter(out, "transactions_started_total", "Transactions started", started.sum());
+        counter(out, "transactions_committed_total", "Transactions committed", committed.sum());
+        counter(out, "transactions_failed_total", "Transactions that failed without committing", failed.sum());
+        counter(out, "transactions_rolled_back_total", "Transactions the application chose to roll back", rolledBack.sum());
+        counter(out, "transactions_ambiguous_total", "Transactions that may or may not have committed", ambiguous.sum());
+        counter(out, "transaction_attempts_total", "Attempts, including retries, of completed transactions", attempts.sum());
+        counter(out, "transaction_retries_total", "Retries of completed transactions", getRetries());
+        counter(out, "transaction_cleanup_attempts_total", "Attempts to clean up failed transactions", cleanupAttempts.sum());
+        counter(out, "transaction_cleanup_failures_total", "Cleanup attempts that failed", cleanupFailures.sum());
+        counter(out, "transaction_important_events_total", "Transaction events of WARN severity or above", importantEvents.sum());
+
+        header(out, "transaction_attempts", "Attempts taken by each completed transaction", "histogram");
+        long cumulative = 0;
+        long total = 0;
+        for (int i = 0; i < ATTEMPT_BUCKETS.length; i ++) {
+            cumulative += attemptsPerTransaction[i].sum();
+            out.append("transaction_attempts_bucket{le=\"").append(ATTEMPT_BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+        }
+        cumulative += attemptsPerTransaction[ATTEMPT_BUCKETS.length].sum();
+        out.append("transaction_attempts_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append("transaction_attempts_sum ").append(attempts.sum()).append('\n');
+        out.append("transaction_attempts_count ").append(cumulative).append('\n');
+
+        latency(out, "transaction_run_seconds", "Wall time of each transaction, whatever its outcome",
+                runLatency, runMicrosSum.sum());
+        latency(out, "transaction_commit_seconds", "Time taken by each transaction that committed",
+                commitLatency, commitMicrosSum.sum());
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void latency(StringBuilder out, String name, String help, Histogram micros, long sumMicros) {
+        header(out, name, help, "histogram");
+        for (double bucket : LATENCY_BUCKETS_SECS) {
+            long count = micros.getCountBetweenValues(0, (long) (bucket * 1_000_000));
+            out.append(name).append("_bucket{le=\"").append(bucket).append("\"} ").append(count).append('\n');
+        }
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(micros.getTotalCount()).append('\n');
+        out.append(name).append("_sum ").append(sumMicros / 1e6).append('\n');
+        out.append(name).append("_count ").append(micros.getTotalCount()).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Logs a one-line summary, e.g. at shutdown.
+     */
+    public void logSummary() {
+        logger.info("Transaction metrics: {}", this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        drain();
+        return String.format("started=%d committed=%d failed=%d rolledBack=%d ambiguous=%d retries=%d "
+                        + "(%.3f per transaction) cleanupAttempts=%d cleanupFailures=%d runLatency p50=%dus p99=%dus "
+                        + "max=%dus",
+                getStarted(), getCommitted(), getFailed(), getRolledBack(), getAmbiguous(), getRetries(), getRetriesPerTransaction(),
+                getCleanupAttempts(), getCleanupFailures(),
+                runLatency.getValueAtPercentile(50), runLatency.getValueAtPercentile(99), runLatency.getMaxValue());
+    }
+}
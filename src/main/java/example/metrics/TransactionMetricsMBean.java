@@ -0,0 +1,38 @@
+package example.metrics;
+
+/**
+ * The JMX view of {@link TransactionMetrics}.  Latencies are in microseconds, and cover everything since startup.
+ */
+public interface TransactionMetricsMBean {
+    long getStarted();
+
+    long getCommitted();
+
+    long getFailed();
+
+    long getRolledBack();
+
+    long getAmbiguous();
+
+    long getAttempts();
+
+    long getRetries();
+
+    double getRetriesPerTransaction();
+
+    long getCleanupAttempts();
+
+    long getCleanupFailures();
+
+    long getImportantEvents();
+
+    long getRunLatencyP50Micros();
+
+    long getRunLatencyP99Micros();
+
+    long getRunLatencyMaxMicros();
+
+    long getCommitLatencyP50Micros();
+
+    long getCommitLatencyP99Micros();
+}
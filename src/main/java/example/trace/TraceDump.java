@@ -0,0 +1,156 @@
+package example.trace;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes a trace file written by a {@link TraceRecorder}, e.g. after an incident, printing the events within a time
+ * window, or those of particular transactions.
+ *
+ * Filtering by transaction or document selects whole transactions, so each is shown from start to end, including any
+ * conflicts and retries.
+ */
+public class TraceDump {
+    public static void main(String[] args) {
+        ArgumentParser parser = ArgumentParsers.newFor("Couchbase Distributed Transactions Trace Dump").build()
+                .defaultHelp(true)
+                .description("Prints the transaction events recorded in a trace file.");
+        parser.addArgument("file")
+                .help("The trace file");
+        parser.addArgument("--from")
+                .help("Only events at or after this time, e.g. 2020-11-03T10:15:30Z");
+        parser.addArgument("--to")
+                .help("Only events before this time");
+        parser.addArgument("--last-seconds")
+                .type(Integer.class)
+                .help("Only events in this many seconds before the newest event, e.g. leading up to a crash");
+        parser.addArgument("--transaction")
+                .help("Only this transaction, by the id the backend gave it (a UUID), or by its number in the trace");
+        parser.addArgument("--document")
+                .help("Only transactions that read or wrote this document id");
+        parser.addArgument("--failed")
+                .setDefault(false)
+                .action(Arguments.storeConst()).setConst(true)
+                .type(Boolean.class)
+                .help("Only transactions that failed, were possibly committed, or were rejected");
+        try {
+            Namespace ns = parser.parseArgs(args);
+            run(ns);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    private static void run(Namespace ns) {
+        List<TraceRecord> records = TraceRecorder.read(new File(ns.getString("file")));
+        if (records.isEmpty()) {
+            System.out.println("The trace is empty");
+            return;
+        }
+
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        if (ns.getString("from") != null) {
+            from = epochNanos(Instant.parse(ns.getString("from")));
+        }
+        if (ns.getString("to") != null) {
+            to = epochNanos(Instant.parse(ns.getString("to")));
+        }
+        if (ns.getInt("last_seconds") != null) {
+            long newest = records.stream().mapToLong(r -> r.epochNanos).max().getAsLong();
+            from = Math.max(from, newest - TimeUnit.SECONDS.toNanos(ns.getInt("last_seconds")));
+        }
+
+        Set<Long> transactions = selectTransactions(records, ns);
+
+        int printed = 0;
+        Set<Long> seen = new HashSet<>();
+        for (TraceRecord record : records) {
+            if (record.epochNanos < from || record.epochNanos >= to) {
+                continue;
+            }
+            if (transactions != null && !transactions.contains(record.transaction)) {
+                continue;
+            }
+            System.out.println(record);
+            seen.add(record.transaction);
+            printed ++;
+        }
+
+        System.out.printf("%d events from %d transactions, of %d events from %s to %s in the trace%n", printed,
+                seen.size(), records.size(), records.get(0).time(), records.get(records.size() - 1).time());
+    }
+
+    /**
+     * The numbers of the transactions to print, or null for all of them.
+     */
+    private static Set<Long> selectTransactions(List<TraceRecord> records, Namespace ns) {
+        Set<Long> selected = null;
+
+        String transaction = ns.getString("transaction");
+        if (transaction != null) {
+            selected = new HashSet<>();
+            if (TraceRecorder.isUuid(transaction)) {
+                UUID id = UUID.fromString(transaction);
+                for (TraceRecord record : records) {
+                    if (id.equals(record.transactionId())) {
+                        selected.add(record.transaction);
+                    }
+                }
+            }
+            else {
+                selected.add(Long.parseLong(transaction));
+            }
+        }
+
+        if (ns.getString("document") != null) {
+            long hash = TraceRecorder.hash(ns.getString("document"));
+            Set<Long> touched = new HashSet<>();
+            for (TraceRecord record : records) {
+                if (record.event.isDocument() && record.arg == hash) {
+                    touched.add(record.transaction);
+                }
+            }
+            selected = intersect(selected, touched);
+        }
+
+        if (ns.getBoolean("failed")) {
+            Set<Long> failed = new HashSet<>();
+            for (TraceRecord record : records) {
+                if (record.event.isEnd() && record.event != TraceEvent.COMMITTED) {
+                    failed.add(record.transaction);
+                }
+            }
+            selected = intersect(selected, failed);
+        }
+
+        return selected;
+    }
+
+    private static Set<Long> intersect(Set<Long> selected, Set<Long> matching) {
+        if (selected == null) {
+            return matching;
+        }
+        selected.retainAll(matching);
+        return selected;
+    }
+
+    private static long epochNanos(Instant instant) {
+        return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+    }
+}
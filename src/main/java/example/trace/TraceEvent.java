@@ -0,0 +1,50 @@
+package example.trace;
+
+/**
+ * What a {@link TraceRecorder} record describes.  The codes are written to trace files, so must never be changed or
+ * reused.
+ */
+public enum TraceEvent {
+    BEGIN(1),
+    ATTEMPT(2),
+    GET(3),
+    INSERT(4),
+    REPLACE(5),
+    REMOVE(6),
+    COMMITTED(7),
+    FAILED(8),
+    AMBIGUOUS(9),
+    REJECTED(10);
+
+    private static final TraceEvent[] BY_CODE = new TraceEvent[16];
+
+    static {
+        for (TraceEvent event : values()) {
+            BY_CODE[event.code] = event;
+        }
+    }
+
+    final byte code;
+
+    TraceEvent(int code) {
+        this.code = (byte) code;
+    }
+
+    /**
+     * Whether the event ends a transaction, and so carries its id, attempts and duration.
+     */
+    public boolean isEnd() {
+        return this == COMMITTED || this == FAILED || this == AMBIGUOUS || this == REJECTED;
+    }
+
+    /**
+     * Whether the event is an operation on a document, and so carries a hash of its id.
+     */
+    public boolean isDocument() {
+        return this == GET || this == INSERT || this == REPLACE || this == REMOVE;
+    }
+
+    static TraceEvent fromCode(byte code) {
+        return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,63 @@
+package example.trace;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * One event read back from a trace file.  See {@link TraceRecorder} for what each field holds.
+ */
+public class TraceRecord {
+    public final long sequence;
+    public final long epochNanos;
+    public final long transaction;
+    public final TraceEvent event;
+    public final int attempt;
+    public final long arg;
+    public final long uuidHigh;
+    public final long uuidLow;
+    public final long threadId;
+
+    TraceRecord(long sequence, long epochNanos, long transaction, TraceEvent event, int attempt, long arg,
+                long uuidHigh, long uuidLow, long threadId) {
+        this.sequence = sequence;
+        this.epochNanos = epochNanos;
+        this.transaction = transaction;
+        this.event = event;
+        this.attempt = attempt;
+        this.arg = arg;
+        this.uuidHigh = uuidHigh;
+        this.uuidLow = uuidLow;
+        this.threadId = threadId;
+    }
+
+    public Instant time() {
+        return Instant.ofEpochSecond(0, epochNanos);
+    }
+
+    /**
+     * The id the backend gave the transaction, if this record ends it and the id was a UUID.
+     */
+    public UUID transactionId() {
+        return event.isEnd() && (uuidHigh != 0 || uuidLow != 0) ? new UUID(uuidHigh, uuidLow) : null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder()
+                .append(time()).append(" txn=").append(transaction).append(" thread=").append(threadId).append(' ')
+                .append(event);
+        if (event.isDocument()) {
+            sb.append(" attempt=").append(attempt).append(" doc=").append(Long.toHexString(arg));
+        }
+        else if (event == TraceEvent.ATTEMPT) {
+            sb.append(' ').append(attempt);
+        }
+        else if (event.isEnd()) {
+            sb.append(" attempts=").append(attempt).append(" took=").append(arg / 1000).append("us");
+            if (transactionId() != null) {
+                sb.append(" id=").append(transactionId());
+            }
+        }
+        return sb.toString();
+    }
+}
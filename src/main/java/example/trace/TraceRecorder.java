@@ -0,0 +1,275 @@
+package example.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An always-on flight recorder for transactions, cheap enough to leave running in production.
+ *
+ * The SDK's verbose logging formats and writes every step of every transaction, through a synchronous appender, which
+ * costs far more than the transactions themselves - so it is left off, and when something goes wrong there is no
+ * record of what led up to it.  Here, each event is a fixed-size binary record, written into a ring of records in a
+ * memory-mapped file.  Recording an event claims the next slot with one atomic increment, then writes a few longs into
+ * the mapping: there are no locks, no strings are built, and nothing is allocated.  The OS writes the pages back to
+ * the file in its own time, so the trace survives the process crashing or being killed, and is read afterwards with
+ * {@link TraceDump}.  Once the ring is full, the oldest records are overwritten.
+ *
+ * A recorder reopening an existing trace file carries on after its newest record, so a restart does not lose the
+ * events from before it.
+ *
+ * Each record is 64 bytes:
+ *
+ * - 0: sequence number, from 1, or 0 if the slot is empty, or -1 while it is being written
+ * - 8: time, in nanoseconds since the epoch
+ * - 16: transaction number, which is the sequence number of its {@link TraceEvent#BEGIN} record
+ * - 24: {@link TraceEvent} code
+ * - 28: attempt, or for the end of a transaction, how many attempts it took
+ * - 32: for an operation, a hash of the document id (see {@link #hash}); for the end of a transaction, its duration
+ *   in nanoseconds
+ * - 40, 48: for the end of a transaction, the transaction's UUID, as its high and low longs
+ * - 56: thread id
+ */
+public class TraceRecorder implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(TraceRecorder.class);
+
+    static final int MAGIC = 0x54585452; // "TXTR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 64;
+
+    // A single mapping is at most 2GB
+    private static final long MAX_RECORDS = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final AtomicLong sequence;
+
+    // Times are nanoTime, which is cheap, anchored to the wall clock when the recorder was opened
+    private final long baseEpochNanos;
+    private final long baseNanoTime;
+
+    private TraceRecorder(File file, MappedByteBuffer buffer, int capacity, long lastSequence) {
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.sequence = new AtomicLong(lastSequence);
+        this.baseEpochNanos = System.currentTimeMillis() * 1_000_000L;
+        this.baseNanoTime = System.nanoTime();
+    }
+
+    /**
+     * Opens a trace file as given on the command line, if one is.
+     *
+     * @param file null or empty for no trace
+     * @return null if there is no trace
+     */
+    public static TraceRecorder openIfRequested(String file, int sizeMb) {
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        TraceRecorder trace = open(new File(file), sizeMb * 1024L * 1024L);
+        logger.info("Recording transactions to {}", trace.file());
+        return trace;
+    }
+
+    /**
+     * Opens a trace file, creating it if needed.  An existing file of a different size is started afresh.
+     *
+     * @param sizeBytes how large the file is, which bounds how many events are kept
+     */
+    public static TraceRecorder open(File file, long sizeBytes) {
+        long records = Math.max(1, Math.min(MAX_RECORDS, (sizeBytes - HEADER_SIZE) / RECORD_SIZE));
+        int capacity = (int) records;
+        long length = HEADER_SIZE + records * RECORD_SIZE;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean resume = raf.length() == length && raf.readInt() == MAGIC
+                    && raf.readInt() == VERSION && raf.readInt() == RECORD_SIZE && raf.readInt() == capacity;
+            if (!resume) {
+                // Zero-filled, so every slot starts empty
+                raf.setLength(0);
+                raf.setLength(length);
+            }
+
+            // The mapping stays valid after the file is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+            buffer.putInt(12, capacity);
+
+            long last = 0;
+            if (resume) {
+                for (int slot = 0; slot < capacity; slot ++) {
+                    last = Math.max(last, buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE));
+                }
+            }
+            return new TraceRecorder(file, buffer, capacity, last);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open trace file " + file, e);
+        }
+    }
+
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Records the start of a transaction.
+     *
+     * @return the transaction's number, to pass to the transaction's other events
+     */
+    public long begin() {
+        long seq = sequence.incrementAndGet();
+        write(seq, seq, TraceEvent.BEGIN, 0, 0, 0, 0);
+        return seq;
+    }
+
+    /**
+     * Records the start of an attempt at a transaction.
+     */
+    public void attempt(long transaction, int attempt) {
+        write(sequence.incrementAndGet(), transaction, TraceEvent.ATTEMPT, attempt, 0, 0, 0);
+    }
+
+    /**
+     * Records an operation on a document.
+     */
+    public void document(long transaction, TraceEvent event, int attempt, String id) {
+        write(sequence.incrementAndGet(), transaction, event, attempt, hash(id), 0, 0);
+    }
+
+    /**
+     * Records the end of a transaction.
+     *
+     * @param transactionId the id the transaction was given by the backend, normally a UUID.  Anything else is
+     *                      recorded as zero.
+     */
+    public void end(long transaction, TraceEvent event, int attempts, long durationNanos, String transactionId) {
+        long high = 0;
+        long low = 0;
+        if (isUuid(transactionId)) {
+            high = uuidHigh(transactionId);
+            low = uuidLow(transactionId);
+        }
+        write(sequence.incrementAndGet(), transaction, event, attempts, durationNanos, high, low);
+    }
+
+    private void write(long seq, long transaction, TraceEvent event, int attempt, long arg, long high, long low) {
+        int offset = HEADER_SIZE + (int) ((seq - 1) % capacity) * RECORD_SIZE;
+
+        // The sequence number is written last, so a record torn by a crash is never mistaken for a whole one
+        buffer.putLong(offset, -1);
+        buffer.putLong(offset + 8, baseEpochNanos + (System.nanoTime() - baseNanoTime));
+        buffer.putLong(offset + 16, transaction);
+        buffer.putInt(offset + 24, event.code);
+        buffer.putInt(offset + 28, attempt);
+        buffer.putLong(offset + 32, arg);
+        buffer.putLong(offset + 40, high);
+        buffer.putLong(offset + 48, low);
+        buffer.putLong(offset + 56, Thread.currentThread().getId());
+        buffer.putLong(offset, seq);
+    }
+
+    /**
+     * Flushes the trace to disk.  Not needed for the trace to survive the process exiting, only the machine.
+     */
+    @Override
+    public void close() {
+        buffer.force();
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of a document id, which is what is recorded in place of the id.  Computed over the chars in
+     * place, so nothing is allocated.
+     */
+    public static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i ++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    static boolean isUuid(String id) {
+        if (id == null || id.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i ++) {
+            char c = id.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            }
+            else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // As UUID.fromString, but without splitting the string
+    static long uuidHigh(String uuid) {
+        return hex(uuid, 0, 8) << 32 | hex(uuid, 9, 13) << 16 | hex(uuid, 14, 18);
+    }
+
+    static long uuidLow(String uuid) {
+        return hex(uuid, 19, 23) << 48 | hex(uuid, 24, 36);
+    }
+
+    private static long hex(String s, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i ++) {
+            value = value << 4 | Character.digit(s.charAt(i), 16);
+        }
+        return value;
+    }
+
+    /**
+     * Reads every whole record in a trace file, oldest first.  Safe to call while the file is being recorded to, though
+     * records written meanwhile may or may not be seen.
+     */
+    public static List<TraceRecord> read(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IllegalArgumentException(file + " is not a trace file");
+            }
+            if (buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE) {
+                throw new IllegalArgumentException(file + " is a trace file of an unsupported version");
+            }
+            int capacity = buffer.getInt(12);
+
+            List<TraceRecord> records = new ArrayList<>();
+            for (int slot = 0; slot < capacity; slot ++) {
+                int offset = HEADER_SIZE + slot * RECORD_SIZE;
+                long seq = buffer.getLong(offset);
+                TraceEvent event = TraceEvent.fromCode((byte) buffer.getInt(offset + 24));
+                if (seq <= 0 || event == null) {
+                    continue;
+                }
+                records.add(new TraceRecord(seq, buffer.getLong(offset + 8), buffer.getLong(offset + 16), event,
+                        buffer.getInt(offset + 28), buffer.getLong(offset + 32), buffer.getLong(offset + 40),
+                        buffer.getLong(offset + 48), buffer.getLong(offset + 56)));
+            }
+            records.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+            return records;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read trace file " + file, e);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package example.trace;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.Backend;
+import example.backend.BackendCommitAmbiguous;
+import example.backend.BackendContext;
+import example.backend.BackendOverloaded;
+import example.backend.BackendResult;
+import example.backend.BackendTransactionFailed;
+import example.backend.Document;
+import example.backend.ReactiveBackendContext;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Wraps a {@link Backend}, recording every transaction run through it into a {@link TraceRecorder}: its start, each
+ * attempt, each document it reads or writes, and how it ended.
+ *
+ * To also trace transactions that are rejected by admission control, wrap the {@link
+ * example.admission.AdmissionControlledBackend} rather than the other way round.
+ */
+public class TracingBackend implements Backend {
+    private final Backend delegate;
+    private final TraceRecorder recorder;
+
+    public TracingBackend(Backend delegate, TraceRecorder recorder) {
+        this.delegate = delegate;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public BackendResult run(Consumer<BackendContext> logic) {
+        long txn = recorder.begin();
+        long start = System.nanoTime();
+        AtomicInteger attempt = new AtomicInteger();
+
+        try {
+            BackendResult result = delegate.run(ctx -> {
+                int n = attempt.incrementAndGet();
+                recorder.attempt(txn, n);
+                logic.accept(new Context(ctx, txn, n));
+            });
+            recorder.end(txn, TraceEvent.COMMITTED, result.attempts(), System.nanoTime() - start, result.transactionId());
+            return result;
+        } catch (BackendTransactionFailed e) {
+            recordFailure(txn, e, System.nanoTime() - start);
+            throw e;
+        } catch (RuntimeException e) {
+            recorder.end(txn, TraceEvent.FAILED, attempt.get(), System.nanoTime() - start, null);
+            throw e;
+        }
+    }
+
+    @Override
+    public Mono<BackendResult> runReactive(Function<ReactiveBackendContext, Mono<?>> logic) {
+        // Deferred so the transaction is recorded from subscription, which is when it actually starts
+        return Mono.defer(() -> {
+            long txn = recorder.begin();
+            long start = System.nanoTime();
+            AtomicInteger attempt = new AtomicInteger();
+
+            return delegate.runReactive(ctx -> {
+                        int n = attempt.incrementAndGet();
+                        recorder.attempt(txn, n);
+                        return logic.apply(new ReactiveContext(ctx, txn, n));
+                    })
+                    .doOnNext(result -> recorder.end(txn, TraceEvent.COMMITTED, result.attempts(),
+                            System.nanoTime() - start, result.transactionId()))
+                    .doOnError(err -> {
+                        if (err instanceof BackendTransactionFailed) {
+                            recordFailure(txn, (BackendTransactionFailed) err, System.nanoTime() - start);
+                        }
+                        else {
+                            recorder.end(txn, TraceEvent.FAILED, attempt.get(), System.nanoTime() - start, null);
+                        }
+                    });
+        });
+    }
+
+    private void recordFailure(long txn, BackendTransactionFailed e, long wallNanos) {
+        // Both are BackendTransactionFailed, so must be checked first
+        TraceEvent event = e instanceof BackendOverloaded ? TraceEvent.REJECTED
+                : e instanceof BackendCommitAmbiguous ? TraceEvent.AMBIGUOUS
+                : TraceEvent.FAILED;
+        recorder.end(txn, event, e.result().attempts(), wallNanos, e.result().transactionId());
+    }
+
+    private class Context implements BackendContext {
+        private final BackendContext delegate;
+        private final long txn;
+        private final int attempt;
+
+        Context(BackendContext delegate, long txn, int attempt) {
+            this.delegate = delegate;
+            this.txn = txn;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public Document get(String id) {
+            recorder.document(txn, TraceEvent.GET, attempt, id);
+            return delegate.get(id);
+        }
+
+        @Override
+        public Optional<Document> getOptional(String id) {
+            recorder.document(txn, TraceEvent.GET, attempt, id);
+            return delegate.getOptional(id);
+        }
+
+        @Override
+        public Document insert(String id, JsonObject content) {
+            recorder.document(txn, TraceEvent.INSERT, attempt, id);
+            return delegate.insert(id, content);
+        }
+
+        @Override
+        public Document insert(String id, byte[] json) {
+            recorder.document(txn, TraceEvent.INSERT, attempt, id);
+            return delegate.insert(id, json);
+        }
+
+        @Override
+        public Document replace(Document doc, JsonObject content) {
+            recorder.document(txn, TraceEvent.REPLACE, attempt, doc.id());
+            return delegate.replace(doc, content);
+        }
+
+        @Override
+        public Document replace(Document doc, byte[] json) {
+            recorder.document(txn, TraceEvent.REPLACE, attempt, doc.id());
+            return delegate.replace(doc, json);
+        }
+
+        @Override
+        public void remove(Document doc) {
+            recorder.document(txn, TraceEvent.REMOVE, attempt, doc.id());
+            delegate.remove(doc);
+        }
+    }
+
+    /**
+     * As {@link Context}.  Operations are recorded when they are issued, rather than when they complete, so nothing
+     * is allocated per operation.
+     */
+    private class ReactiveContext implements ReactiveBackendContext {
+        private final ReactiveBackendContext delegate;
+        private final long txn;
+        private final int attempt;
+
+        ReactiveContext(ReactiveBackendContext delegate, long txn, int attempt) {
+            this.delegate = delegate;
+            this.txn = txn;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public Mono<Document> get(String id) {
+            recorder.document(txn, TraceEvent.GET, attempt, id);
+            return delegate.get(id);
+        }
+
+        @Override
+        public Mono<Optional<Document>> getOptional(String id) {
+            recorder.document(txn, TraceEvent.GET, attempt, id);
+            return delegate.getOptional(id);
+        }
+
+        @Override
+        public Mono<Document> insert(String id, JsonObject content) {
+            recorder.document(txn, TraceEvent.INSERT, attempt, id);
+            return delegate.insert(id, content);
+        }
+
+        @Override
+        public Mono<Document> insert(String id, byte[] json) {
+            recorder.document(txn, TraceEvent.INSERT, attempt, id);
+            return delegate.insert(id, json);
+        }
+
+        @Override
+        public Mono<Document> replace(Document doc, JsonObject content) {
+            recorder.document(txn, TraceEvent.REPLACE, attempt, doc.id());
+            return delegate.replace(doc, content);
+        }
+
+        @Override
+        public Mono<Document> replace(Document doc, byte[] json) {
+            recorder.document(txn, TraceEvent.REPLACE, attempt, doc.id());
+            return delegate.replace(doc, json);
+        }
+
+        @Override
+        public Mono<Void> remove(Document doc) {
+            recorder.document(txn, TraceEvent.REMOVE, attempt, doc.id());
+            return delegate.remove(doc);
+        }
+    }
+
+    @Override
+    public void upsert(String id, JsonObject content) {
+        delegate.upsert(id, content);
+    }
+
+    @Override
+    public Optional<JsonObject> get(String id) {
+        return delegate.get(id);
+    }
+
+    @Override
+    public OptionalLong cas(String id) {
+        return delegate.cas(id);
+    }
+
+    @Override
+    public List<String> idsStartingWith(String prefix) {
+        return delegate.idsStartingWith(prefix);
+    }
+
+    @Override
+    public Flux<Document> scan(String... types) {
+        return delegate.scan(types);
+    }
+}
@@ -0,0 +1,297 @@
+package example.transfer;
+
+import example.backend.Backend;
+import example.backend.BackendContext;
+import example.backend.Document;
+import example.codec.LazyJsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A customer's balance, as seen inside a transaction.
+ *
+ * Usually the balance is a field on the customer document.  But every transfer to or from the customer then writes
+ * that one document, and transactions writing the same document conflict, which caps how many transfers a busy account
+ * can take.  So an account can instead be sharded: its balance is split across several shard documents, each holding
+ * part of it, and the customer document just records how many shards there are.
+ *
+ * A credit goes to one shard chosen at random, so concurrent credits mostly write different documents.  A debit takes
+ * from one shard that has enough money if it can, and otherwise gathers from several.  Either way, every shard it takes
+ * from is written, so two concurrent debits can never both spend the same money.  The customer document is only read,
+ * so transfers to and from a sharded account do not conflict on it.  The exception is when a shard has gone, removed by
+ * a concurrent reshard: the customer is then re-read and written, so that the transfer conflicts with the reshard.
+ *
+ * Accounts are sharded, and resharded, online with {@link #reshard}.
+ */
+public class Account {
+    private static final Logger logger = LoggerFactory.getLogger(Account.class);
+
+    private final BackendContext ctx;
+    private final String customerId;
+    private Customer customerContent;
+
+    // The latest handles to the documents this account has written.  A write returns a new handle, with a new CAS, and
+    // a later write to the same document in the transaction must use it - the one it was read through is now stale.
+    private Document customer;
+    private final Map<String, Document> shards = new HashMap<>();
+
+    private Account(BackendContext ctx, String customerId, Document customer, Customer customerContent) {
+        this.ctx = ctx;
+        this.customerId = customerId;
+        this.customer = customer;
+        this.customerContent = customerContent;
+    }
+
+    /**
+     * Reads a customer in the transaction, failing it with a {@link example.backend.BackendDocumentNotFound} if they do
+     * not exist.
+     */
+    public static Account open(BackendContext ctx, String customerId) {
+        Document customer = ctx.get(customerId);
+        return new Account(ctx, customerId, customer, Customer.decode(customer));
+    }
+
+    public boolean isSharded() {
+        return customerContent.shardCount() > 0;
+    }
+
+    public void credit(int amount) {
+        if (amount == 0) {
+            return;
+        }
+
+        if (!isSharded()) {
+            customerContent.setBalance(customerContent.balance() + amount);
+            customer = ctx.replace(customer, customerContent.encode());
+            return;
+        }
+
+        int shard = ThreadLocalRandom.current().nextInt(customerContent.shardCount());
+        Optional<Document> doc = shard(shard);
+
+        // A concurrent reshard can have removed the shard since the customer was read
+        if (!doc.isPresent()) {
+            if (reread()) {
+                credit(amount);
+                return;
+            }
+
+            // Shard 0 is only removed when the account is unsharded, which changes the shard count
+            doc = shard(0);
+            if (!doc.isPresent()) {
+                doc = Optional.of(ctx.get(shardId(customerId, 0)));
+            }
+        }
+
+        LazyJsonObject content = LazyJsonObject.of(doc.get().contentAsBytes());
+        content.put("balance", content.getInt("balance") + amount);
+        writeShard(doc.get(), content);
+    }
+
+    /**
+     * Takes money from the account, if it has enough.
+     *
+     * @return false, having changed nothing, if it does not
+     */
+    public boolean debit(int amount) {
+        if (!isSharded()) {
+            if (customerContent.balance() < amount) {
+                return false;
+            }
+            customerContent.setBalance(customerContent.balance() - amount);
+            customer = ctx.replace(customer, customerContent.encode());
+            return true;
+        }
+
+        // Start from a random shard, so concurrent debits spread across the shards too
+        int shards = customerContent.shardCount();
+        int start = ThreadLocalRandom.current().nextInt(shards);
+        List<Document> read = new ArrayList<>(shards);
+        List<LazyJsonObject> contents = new ArrayList<>(shards);
+        int total = 0;
+
+        for (int i = 0; i < shards; i ++) {
+            Optional<Document> doc = shard((start + i) % shards);
+            if (!doc.isPresent()) {
+                // As in credit.  Nothing has been written yet, so the debit can start again.
+                if (reread()) {
+                    return debit(amount);
+                }
+                continue;
+            }
+
+            LazyJsonObject content = LazyJsonObject.of(doc.get().contentAsBytes());
+            int balance = content.getInt("balance");
+
+            if (balance >= amount) {
+                // The common case - only this one shard is written
+                content.put("balance", balance - amount);
+                writeShard(doc.get(), content);
+                return true;
+            }
+
+            read.add(doc.get());
+            contents.add(content);
+            total += balance;
+        }
+
+        if (total < amount) {
+            return false;
+        }
+
+        // No shard has enough alone, so drain shards until the amount is covered
+        int remaining = amount;
+        for (int i = 0; i < read.size() && remaining > 0; i ++) {
+            int balance = contents.get(i).getInt("balance");
+            if (balance == 0) {
+                continue;
+            }
+            int taken = Math.min(balance, remaining);
+            contents.get(i).put("balance", balance - taken);
+            writeShard(read.get(i), contents.get(i));
+            remaining -= taken;
+        }
+        return true;
+    }
+
+    /**
+     * Re-reads the customer, when a shard is missing.  If a concurrent reshard has changed the shard count since the
+     * customer was first read, this account takes the new count, and the customer document is written, unchanged if
+     * still sharded.  That write conflicts with the reshard if it has not committed yet, and with any later one, so a
+     * transfer can never apply to shards that are being removed.
+     *
+     * @return whether the shard count had changed
+     */
+    private boolean reread() {
+        Document latest = ctx.get(customerId);
+        Customer latestContent = Customer.decode(latest);
+        if (latestContent.shardCount() == customerContent.shardCount()) {
+            return false;
+        }
+
+        logger.debug("Customer {} was resharded from {} to {} shards during a transfer", customerId,
+                customerContent.shardCount(), latestContent.shardCount());
+        customerContent = latestContent;
+        customer = ctx.replace(latest, customerContent.encode());
+        return true;
+    }
+
+    /**
+     * A shard, through the handle this account last wrote it with if it has, otherwise read in the transaction.
+     */
+    private Optional<Document> shard(int shard) {
+        Document written = shards.get(shardId(customerId, shard));
+        return written != null ? Optional.of(written) : ctx.getOptional(shardId(customerId, shard));
+    }
+
+    private void writeShard(Document doc, LazyJsonObject content) {
+        shards.put(doc.id(), ctx.replace(doc, content.encode()));
+    }
+
+    @Override
+    public String toString() {
+        return customerContent.toString();
+    }
+
+    /**
+     * A customer's total balance, across all their shards.  This is read outside a transaction, so while transfers are
+     * in progress it may include some but not all of a transfer's changes.
+     */
+    public static Optional<Integer> balance(Backend backend, String customerId) {
+        return backend.get(customerId).map(customer -> {
+            int shards = customer.containsKey("shards") ? customer.getInt("shards") : 0;
+            if (shards == 0) {
+                return customer.getInt("balance");
+            }
+
+            int balance = 0;
+            for (int i = 0; i < shards; i ++) {
+                balance += backend.get(shardId(customerId, i)).map(shard -> shard.getInt("balance")).orElse(0);
+            }
+            return balance;
+        });
+    }
+
+    /**
+     * Changes how many shards a customer's balance is split across, in one transaction, while transfers continue.
+     *
+     * @param shards 0 to hold the balance on the customer document again
+     */
+    public static void reshard(Backend backend, String customerId, int shards) {
+        if (shards < 0) {
+            throw new IllegalArgumentException("Shard count cannot be negative");
+        }
+
+        backend.run(ctx -> {
+            Document customer = ctx.get(customerId);
+            Customer content = Customer.decode(customer);
+            int current = content.shardCount();
+
+            if (current == shards) {
+                return;
+            }
+
+            // Gather the whole balance.  Every old shard is rewritten or removed below, so this conflicts with any
+            // concurrent transfer touching them, and no money can be lost between the read and the write.
+            int balance = current == 0 ? content.balance() : 0;
+            Document[] oldShards = new Document[current];
+            for (int i = 0; i < current; i ++) {
+                Optional<Document> shard = ctx.getOptional(shardId(customerId, i));
+                if (shard.isPresent()) {
+                    balance += LazyJsonObject.of(shard.get().contentAsBytes()).getInt("balance");
+                    oldShards[i] = shard.get();
+                }
+            }
+
+            // Spread it over the new shards, any remainder going to the first
+            for (int i = 0; i < shards; i ++) {
+                int part = balance / shards + (i == 0 ? balance % shards : 0);
+                writeShard(ctx, customerId, i, part, i < current ? oldShards[i] : null);
+            }
+            for (int i = shards; i < current; i ++) {
+                if (oldShards[i] != null) {
+                    ctx.remove(oldShards[i]);
+                }
+            }
+
+            content.setShardCount(shards);
+            content.setBalance(shards == 0 ? balance : 0);
+            ctx.replace(customer, content.encode());
+        });
+
+        logger.info("Customer {} now has {} balance shards", customerId, shards);
+    }
+
+    private static void writeShard(BackendContext ctx, String customerId, int shard, int balance, Document existing) {
+        byte[] content = LazyJsonObject.create()
+                .put("type", "BalanceShard")
+                .put("account", customerId)
+                .put("balance", balance)
+                .encode();
+
+        if (existing != null) {
+            ctx.replace(existing, content);
+            return;
+        }
+
+        // Could be left over from before the customer document was last overwritten
+        Optional<Document> stale = ctx.getOptional(shardId(customerId, shard));
+        if (stale.isPresent()) {
+            ctx.replace(stale.get(), content);
+        }
+        else {
+            ctx.insert(shardId(customerId, shard), content);
+        }
+    }
+
+    static String shardId(String customerId, int shard) {
+        return customerId + "::shard::" + shard;
+    }
+}
@@ -0,0 +1,278 @@
+package example.transfer;
+
+import com.couchbase.client.java.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a file of transfer instructions through a {@link TransferMethod}, e.g. for a nightly settlement.
+ *
+ * The input has one transfer per line, either as CSV ("from,to,amount", with an optional header line) or as JSON lines
+ * ({"from":"andy","to":"beth","amount":10}).  It is streamed, with a bounded number of transfers in flight, so memory
+ * use does not depend on the size of the file.  Transfers go through a {@link TransferScheduler}, so those sharing an
+ * account do not conflict with each other.  The outcome of every transfer is appended to a results file.
+ *
+ * Progress is checkpointed as the line number up to which every transfer has completed, so an interrupted run can be
+ * resumed from there.  Each transfer is recorded under an id derived from the batch id and line number, which makes
+ * transfers idempotent: a transfer that completed after the last checkpoint is not applied again on resume, but
+ * reported as {@link TransferStatus#ALREADY_APPLIED}.  In that case the results file can contain more than one line for
+ * a transfer, and the last one wins.
+ */
+public class BulkTransfer {
+    private static final Logger logger = LoggerFactory.getLogger(BulkTransfer.class);
+
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+    private static final long PROGRESS_INTERVAL_MILLIS = 10_000;
+    private static final int STRIPES = 4096;
+
+    private final TransferMethod method;
+    private final String batchId;
+    private final int parallelism;
+    private final LongAdder[] counts = new LongAdder[TransferStatus.values().length];
+
+    /**
+     * @param batchId identifies this batch of transfers.  It must stay the same when resuming, and be unique between
+     *                batches
+     * @param parallelism how many transfers can run concurrently
+     */
+    public BulkTransfer(TransferMethod method, String batchId, int parallelism) {
+        this.method = method;
+        this.batchId = batchId;
+        this.parallelism = parallelism;
+        for (int i = 0; i < counts.length; i ++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void run(Path input, Path results, Path checkpoint) throws IOException {
+        long resumeFrom = readCheckpoint(checkpoint);
+        if (resumeFrom > 0) {
+            logger.info("Resuming batch {} after line {}", batchId, resumeFrom);
+        }
+
+        boolean newResults = !Files.exists(results) || Files.size(results) == 0;
+        Watermark watermark = new Watermark(resumeFrom);
+        ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor();
+
+        // Enough to keep every worker busy while the reader catches up, without reading ahead unboundedly
+        int maxInFlight = parallelism * 2;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+
+        long start = System.nanoTime();
+
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(results, StandardCharsets.UTF_8,
+                     StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+             TransferScheduler scheduler = new TransferScheduler(method, STRIPES, parallelism)) {
+
+            if (newResults) {
+                writer.write("line,from,to,amount,status,transferId");
+                writer.newLine();
+            }
+
+            checkpointer.scheduleWithFixedDelay(() -> saveCheckpoint(watermark, writer, checkpoint),
+                    CHECKPOINT_INTERVAL_MILLIS, CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            checkpointer.scheduleWithFixedDelay(() -> logProgress(start),
+                    PROGRESS_INTERVAL_MILLIS, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+            String line;
+            long lineNumber = 0;
+
+            while ((line = reader.readLine()) != null) {
+                lineNumber ++;
+
+                if (lineNumber <= resumeFrom) {
+                    continue;
+                }
+
+                if (line.trim().isEmpty() || (lineNumber == 1 && line.trim().equalsIgnoreCase("from,to,amount"))) {
+                    watermark.complete(lineNumber);
+                    continue;
+                }
+
+                inFlight.acquireUninterruptibly();
+
+                long thisLine = lineNumber;
+                process(scheduler, thisLine, line).whenComplete((result, err) -> {
+                    try {
+                        synchronized (writer) {
+                            writer.write(result);
+                            writer.newLine();
+                        }
+
+                        // Only once the result is written may the checkpoint move past this line.  If it could not be
+                        // written the checkpoint stays put, and the (idempotent) transfer is redone on resume.
+                        watermark.complete(thisLine);
+                    } catch (IOException e) {
+                        logger.error("Could not write result for line {}", thisLine, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+
+            // Wait for everything in flight to complete
+            inFlight.acquireUninterruptibly(maxInFlight);
+
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            saveCheckpoint(watermark, writer, checkpoint);
+        }
+        finally {
+            checkpointer.shutdownNow();
+        }
+
+        logProgress(start);
+        for (TransferStatus status : TransferStatus.values()) {
+            logger.info("  {}: {}", status, counts[status.ordinal()].sum());
+        }
+    }
+
+    /**
+     * Parses a transfer instruction and submits it.  Returns the line to write to the results file.
+     */
+    private CompletableFuture<String> process(TransferScheduler scheduler, long lineNumber, String line) {
+        String from;
+        String to;
+        String amount;
+        int parsedAmount;
+
+        try {
+            if (line.trim().startsWith("{")) {
+                JsonObject instruction = JsonObject.fromJson(line);
+                from = instruction.getString("from");
+                to = instruction.getString("to");
+                amount = String.valueOf(instruction.getInt("amount"));
+            }
+            else {
+                String[] fields = line.split(",");
+                if (fields.length != 3) {
+                    throw new IllegalArgumentException("Expected 3 fields but found " + fields.length);
+                }
+                from = fields[0].trim();
+                to = fields[1].trim();
+                amount = fields[2].trim();
+            }
+
+            parsedAmount = Integer.parseInt(amount);
+            if (from == null || to == null || parsedAmount <= 0) {
+                throw new IllegalArgumentException("Need a from, a to and a positive amount");
+            }
+        }
+        catch (RuntimeException err) {
+            // Includes NumberFormatException, and the JSON decoder's errors
+            logger.warn("Line {} is not a valid transfer instruction: {}", lineNumber, err.getMessage());
+            counts[TransferStatus.INVALID.ordinal()].increment();
+            return CompletableFuture.completedFuture(lineNumber + ",,,," + TransferStatus.INVALID + ",");
+        }
+
+        String transferId = "transfer::" + batchId + "::" + lineNumber;
+        String resultPrefix = lineNumber + "," + from + "," + to + "," + amount + ",";
+
+        return scheduler.submit(transferId, from, to, parsedAmount)
+                .handle((status, err) -> err == null ? status : statusFor(transferId, err))
+                .thenApply(status -> {
+                    counts[status.ordinal()].increment();
+                    return resultPrefix + status + "," + transferId;
+                });
+    }
+
+    private static TransferStatus statusFor(String transferId, Throwable err) {
+        Throwable cause = err instanceof CompletionException ? err.getCause() : err;
+
+        if (cause instanceof InsufficientFunds) {
+            return TransferStatus.INSUFFICIENT_FUNDS;
+        }
+        if (cause instanceof CustomerNotFound) {
+            return TransferStatus.CUSTOMER_NOT_FOUND;
+        }
+        logger.warn("Transfer {} failed unexpectedly", transferId, cause);
+        return TransferStatus.FAILED;
+    }
+
+    private void saveCheckpoint(Watermark watermark, BufferedWriter writer, Path checkpoint) {
+        // Read the watermark before flushing, so every result it covers is on disk before the checkpoint is
+        long completed = watermark.get();
+
+        try {
+            synchronized (writer) {
+                writer.flush();
+            }
+
+            // Write then rename, so a crash can never leave a partial checkpoint
+            Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+            Files.write(temp, Long.toString(completed).getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            logger.warn("Could not save checkpoint {}", checkpoint, e);
+        }
+    }
+
+    private static long readCheckpoint(Path checkpoint) throws IOException {
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        return Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+    }
+
+    private void logProgress(long start) {
+        long done = 0;
+        for (LongAdder count : counts) {
+            done += count.sum();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        logger.info("Batch {}: {} transfers in {}s, {} transfers/s", batchId, done, String.format("%.1f", secs),
+                String.format("%.1f", done / secs));
+    }
+
+    /**
+     * Tracks the line number up to which every line has completed, while lines complete out of order.
+     */
+    private static class Watermark {
+        private long completed;
+        private final TreeSet<Long> completedAhead = new TreeSet<>();
+
+        Watermark(long completed) {
+            this.completed = completed;
+        }
+
+        synchronized void complete(long line) {
+            if (line == completed + 1) {
+                completed = line;
+                while (completedAhead.remove(completed + 1)) {
+                    completed ++;
+                }
+            }
+            else {
+                completedAhead.add(line);
+            }
+        }
+
+        synchronized long get() {
+            return completed;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package example.transfer;
+
+import example.backend.Backend;
+import example.backend.Document;
+import example.codec.LazyJsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the money held by customers adds up, by scanning every customer, balance shard, ledger entry and transfer
+ * record.
+ *
+ * Each audit checks that:
+ *
+ * - no balance is negative, and every ledger entry and transfer is for a positive amount between two customers
+ * - the total held by all customers is unchanged since the first audit, as transfers only move money around
+ * - for each customer, their balance less what transfers have moved in and out is unchanged since the first audit,
+ *   i.e. every change to a balance is accounted for by a transfer record
+ *
+ * That last check would need a running total per customer, which would not fit in memory for millions of customers.
+ * Instead, customers are hashed onto a fixed number of buckets, and the totals are kept per bucket.  A discrepancy is
+ * then reported against a bucket rather than a customer, but memory use does not grow with the data.
+ *
+ * The scan is streamed, and split into batches that are tallied in parallel on every core, so an audit is as fast as
+ * the cluster can return documents.  It is not a snapshot, though: an audit running alongside transfers can see one
+ * half of a transfer and not the other, and report a discrepancy that is not real.  Discrepancies that persist once
+ * transfers have stopped are real.
+ */
+public class ConsistencyAuditor implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ConsistencyAuditor.class);
+
+    private static final int BUCKETS = 1024;
+    private static final int BATCH_SIZE = 1000;
+
+    // Enough to diagnose a problem, without flooding the log if everything is wrong
+    private static final int MAX_PROBLEMS_REPORTED = 20;
+
+    private final Backend backend;
+    private final int parallelism;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    // The first audit, which later audits are compared with
+    private Tally baseline;
+
+    /**
+     * @param parallelism how many batches of documents are tallied at once, e.g. the number of cores
+     */
+    public ConsistencyAuditor(Backend backend, int parallelism) {
+        this.backend = backend;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Audits periodically in the background, until closed.
+     */
+    public void start(long intervalMillis) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                audit();
+            }
+            catch (RuntimeException err) {
+                // An exception here would silently stop the schedule
+                logger.warn("Audit failed", err);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs one audit, logging any problems found.  The first audit only checks individual documents, and records the
+     * totals that later audits are compared with.
+     *
+     * @return whether everything added up
+     */
+    public synchronized boolean audit() {
+        long start = System.nanoTime();
+
+        Tally tally = backend.scan("Customer", "BalanceShard", "LedgerEntry", "Transfer")
+                .buffer(BATCH_SIZE)
+                .flatMap(batch -> Mono.fromCallable(() -> tally(batch)).subscribeOn(Schedulers.parallel()), parallelism)
+                .reduce(Tally::merge)
+                .block();
+
+        if (tally == null) {
+            tally = new Tally();
+        }
+
+        List<String> problems = new ArrayList<>(tally.problems);
+        long problemCount = tally.problemCount;
+
+        if (baseline == null) {
+            baseline = tally;
+        }
+        else {
+            if (tally.held != baseline.held) {
+                problemCount ++;
+                problems.add("Total held by customers has changed by " + (tally.held - baseline.held));
+            }
+            for (int i = 0; i < BUCKETS; i ++) {
+                if (tally.buckets[i] != baseline.buckets[i]) {
+                    problemCount ++;
+                    if (problems.size() < MAX_PROBLEMS_REPORTED) {
+                        problems.add("Balances of customers in bucket " + i + " have changed by "
+                                + (tally.buckets[i] - baseline.buckets[i]) + " more than their transfers account for");
+                    }
+                }
+            }
+        }
+
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logger.info("Audited {} documents in {}ms: {} held by customers, {} transfers, {} problems",
+                tally.documents, millis, tally.held, tally.transfers, problemCount);
+        problems.forEach(problem -> logger.warn("Audit: {}", problem));
+
+        return problemCount == 0;
+    }
+
+    private static Tally tally(List<Document> batch) {
+        Tally tally = new Tally();
+
+        for (Document doc : batch) {
+            tally.documents ++;
+
+            try {
+                LazyJsonObject content = LazyJsonObject.of(doc.contentAsBytes());
+
+                switch (content.getString("type")) {
+                    case "Customer":
+                        tally.hold(doc.id(), content.getInt("balance"), doc.id());
+                        break;
+
+                    case "BalanceShard":
+                        tally.hold(content.getString("account"), content.getInt("balance"), doc.id());
+                        break;
+
+                    case "LedgerEntry": {
+                        int amount = content.getInt("amount");
+                        if (amount <= 0) {
+                            tally.problem("Ledger entry " + doc.id() + " has non-positive amount " + amount);
+                        }
+                        tally.hold(content.getString("account"), amount, doc.id());
+                        break;
+                    }
+
+                    case "Transfer": {
+                        String from = content.getString("from");
+                        String to = content.getString("to");
+                        int amount = content.getInt("amount");
+                        if (from == null || to == null || from.equals(to) || amount <= 0) {
+                            tally.problem("Transfer " + doc.id() + " is invalid: " + content);
+                        }
+                        else {
+                            // What the customers hold, less what transfers have moved, should not change
+                            tally.buckets[bucket(from)] += amount;
+                            tally.buckets[bucket(to)] -= amount;
+                        }
+                        tally.transfers ++;
+                        break;
+                    }
+                }
+            }
+            catch (RuntimeException err) {
+                tally.problem("Document " + doc.id() + " is malformed: " + err.getMessage());
+            }
+        }
+
+        return tally;
+    }
+
+    private static int bucket(String customerId) {
+        // Spread the hash bits, as HashMap does, before reducing to a bucket
+        int h = customerId == null ? 0 : customerId.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, BUCKETS);
+    }
+
+    /**
+     * Stops auditing in the background, waiting for any audit in progress to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The totals from a batch of documents, or the whole scan once the batches are merged.
+     */
+    private static class Tally {
+        long documents;
+        long transfers;
+        long held;
+        long problemCount;
+        final long[] buckets = new long[BUCKETS];
+        final List<String> problems = new ArrayList<>();
+
+        void hold(String customerId, int amount, String docId) {
+            if (amount < 0) {
+                problem("Document " + docId + " has negative balance " + amount);
+            }
+            held += amount;
+            buckets[bucket(customerId)] += amount;
+        }
+
+        void problem(String description) {
+            problemCount ++;
+            if (problems.size() < MAX_PROBLEMS_REPORTED) {
+                problems.add(description);
+            }
+        }
+
+        Tally merge(Tally other) {
+            documents += other.documents;
+            transfers += other.transfers;
+            held += other.held;
+            problemCount += other.problemCount;
+            for (int i = 0; i < BUCKETS; i ++) {
+                buckets[i] += other.buckets[i];
+            }
+            for (String problem : other.problems) {
+                if (problems.size() < MAX_PROBLEMS_REPORTED) {
+                    problems.add(problem);
+                }
+            }
+            return this;
+        }
+    }
+}
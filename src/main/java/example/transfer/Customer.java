@@ -0,0 +1,47 @@
+package example.transfer;
+
+import example.backend.Document;
+import example.codec.LazyJsonObject;
+
+/**
+ * A customer document, holding their balance, or how many shards it is split across.
+ */
+public class Customer {
+    private final LazyJsonObject content;
+
+    private Customer(LazyJsonObject content) {
+        this.content = content;
+    }
+
+    public static Customer decode(Document doc) {
+        return new Customer(LazyJsonObject.of(doc.contentAsBytes()));
+    }
+
+    public int balance() {
+        return content.getInt("balance");
+    }
+
+    public void setBalance(int balance) {
+        content.put("balance", balance);
+    }
+
+    /**
+     * How many shard documents the balance is split across, or 0 if it is held in {@link #balance} - see {@link Account}.
+     */
+    public int shardCount() {
+        return content.has("shards") ? content.getInt("shards") : 0;
+    }
+
+    public void setShardCount(int shards) {
+        content.put("shards", shards);
+    }
+
+    public byte[] encode() {
+        return content.encode();
+    }
+
+    @Override
+    public String toString() {
+        return content.toString();
+    }
+}
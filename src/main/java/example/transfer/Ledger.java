@@ -0,0 +1,261 @@
+package example.transfer;
+
+import com.couchbase.client.java.json.JsonObject;
+import example.backend.Backend;
+import example.backend.BackendCommitAmbiguous;
+import example.backend.BackendContext;
+import example.backend.BackendDocumentNotFound;
+import example.backend.BackendOverloaded;
+import example.backend.BackendTransactionFailed;
+import example.backend.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Transfers money by appending credits to a ledger, rather than updating the payee's balance in place.
+ *
+ * {@link TransferExample#transferMoney} reads and writes both customers, so every transfer to a popular account - a
+ * merchant, say - conflicts with every other transfer to it.  Here, a transfer only writes the payer's document.  The
+ * payee's credit is inserted as a new {@link LedgerEntry} document, and as inserts of fresh keys never conflict, any
+ * number of transfers to the same payee can commit in parallel.
+ *
+ * A customer's balance is then the snapshot on their customer document plus their pending ledger entries.  A
+ * {@link LedgerCompactor} periodically folds pending entries into the snapshot, removing them as it does.
+ *
+ * The payer's balance is still updated in place, and that is what keeps the sufficient-funds check correct.  Reads do
+ * not conflict with each other, so if debits were also just inserts, two concurrent debits could both see enough money
+ * and overdraw the account between them.  Writing the payer's document serialises debits on each account.  If the
+ * payer's snapshot alone is not enough, their pending credits are compacted into it, in a transaction of its own, and
+ * the transfer is tried once more.  Compaction counts each entry it removes, so an entry can never be counted twice.  A
+ * credit that is missed, because it is still being written, only makes the check more cautious.
+ *
+ * Entries are found by listing document ids, which needs the query service, so a ledger needs a backend that can do
+ * that.  The listing is never done inside a transaction, where it would block each attempt and each retry on a query.
+ */
+public class Ledger {
+    private static final Logger logger = LoggerFactory.getLogger(Ledger.class);
+
+    private static final String ENTRY_PREFIX = "ledger::";
+
+    // Keeps each transaction small, however far behind compaction is
+    private static final int MAX_ENTRIES_PER_FOLD = 500;
+
+    private final Backend backend;
+
+    /**
+     * @throws IllegalStateException if the backend cannot list documents, e.g. a {@link
+     * example.backend.CouchbaseBackend} created without a Cluster
+     */
+    public Ledger(Backend backend) {
+        this.backend = backend;
+
+        // Fail now, rather than on the first compaction.  The prefix matches nothing.
+        try {
+            backend.idsStartingWith(entryPrefix(UUID.randomUUID().toString()));
+        } catch (UnsupportedOperationException err) {
+            throw new IllegalStateException("A ledger needs to list its entries: " + err.getMessage(), err);
+        }
+    }
+
+    /**
+     * As {@link TransferExample#transferMoney}, but credits the payee through the ledger.
+     *
+     * @throws InsufficientFunds if customer 1 does not have enough money
+     * @throws CustomerNotFound if either customer does not exist
+     */
+    public TransferStatus transfer(String transferId, String customer1Id, String customer2Id, int amount) {
+        try {
+            return tryTransfer(transferId, customer1Id, customer2Id, amount);
+        } catch (InsufficientFunds err) {
+            // There may be credits that have not been folded into the snapshot yet
+            int folded;
+            try {
+                folded = compact(customer1Id);
+            } catch (BackendOverloaded compactErr) {
+                logger.warn("Transfer {} rejected: {}", transferId, compactErr.getMessage());
+                return TransferStatus.REJECTED;
+            } catch (BackendTransactionFailed compactErr) {
+                // The transfer itself changed nothing, whatever happened to the compaction, so is reported as it was
+                logger.warn("Could not compact the ledger of customer {} for transfer {}", customer1Id, transferId);
+                compactErr.logs().forEach(logger::debug);
+                throw err;
+            }
+
+            if (folded == 0) {
+                throw err;
+            }
+            return tryTransfer(transferId, customer1Id, customer2Id, amount);
+        }
+    }
+
+    private TransferStatus tryTransfer(String transferId, String customer1Id, String customer2Id, int amount) {
+        AtomicReference<TransferStatus> status = new AtomicReference<>();
+
+        try {
+            backend.run(ctx -> {
+                if (ctx.getOptional(transferId).isPresent()) {
+                    logger.info("Transfer {} has already been applied", transferId);
+                    status.set(TransferStatus.ALREADY_APPLIED);
+                    return;
+                }
+
+                Account payer = Account.open(ctx, customer1Id);
+
+                // The payee is only read, to check they exist.  Reads do not conflict, so a busy payee is not a bottleneck.
+                ctx.get(customer2Id);
+
+                if (!payer.debit(amount)) {
+                    logger.info("Customer {} has insufficient balance to transfer {}", customer1Id, amount);
+                    throw new InsufficientFunds();
+                }
+
+                ctx.insert(entryId(customer2Id, transferId), LedgerEntry.create(customer2Id, transferId, amount).encode());
+                ctx.insert(transferId, Transfer.create(customer1Id, customer2Id, amount).encode());
+
+                status.set(TransferStatus.COMMITTED);
+            });
+        } catch (BackendOverloaded err) {
+            logger.warn("Transfer {} rejected: {}", transferId, err.getMessage());
+            status.set(TransferStatus.REJECTED);
+        } catch (BackendCommitAmbiguous err) {
+            logger.warn("Transfer {} possibly committed", transferId);
+            err.logs().forEach(logger::debug);
+            status.set(TransferStatus.AMBIGUOUS);
+        } catch (BackendTransactionFailed err) {
+            if (err.getCause() instanceof InsufficientFunds) {
+                throw (RuntimeException) err.getCause();
+            }
+            else if (err.getCause() instanceof BackendDocumentNotFound) {
+                throw new CustomerNotFound();
+            }
+            else {
+                logger.warn("Transfer {} did not reach commit", transferId);
+                err.logs().forEach(logger::debug);
+                status.set(TransferStatus.FAILED);
+            }
+        }
+
+        return status.get();
+    }
+
+    /**
+     * Folds a customer's pending ledger entries into their balance snapshot.
+     *
+     * @return how many entries were folded
+     */
+    public int compact(String customerId) {
+        // Listed up front, as the query would otherwise be re-run on every retry.  Entries written since are left for
+        // the next compaction.
+        List<String> entryIds = backend.idsStartingWith(entryPrefix(customerId));
+        if (entryIds.isEmpty()) {
+            return 0;
+        }
+
+        AtomicInteger folded = new AtomicInteger();
+
+        backend.run(ctx -> {
+            // The lambda is re-run on retry
+            folded.set(0);
+
+            Account account = Account.open(ctx, customerId);
+            account.credit(fold(ctx, customerId, entryIds, folded));
+        });
+
+        if (folded.get() > 0) {
+            logger.info("Folded {} ledger entries into the balance of customer {}", folded.get(), customerId);
+        }
+        return folded.get();
+    }
+
+    /**
+     * Folds the pending ledger entries of every customer.  A customer with more than one fold's worth of entries is
+     * folded repeatedly, until a fold finds fewer than that.
+     *
+     * @return how many entries were folded
+     */
+    public int compactAll() {
+        // The customer is read from each entry, rather than parsed from its id, as customer ids can contain anything
+        Set<String> customerIds = new LinkedHashSet<>();
+        for (String entryId : backend.idsStartingWith(ENTRY_PREFIX)) {
+            backend.get(entryId)
+                    .map(entry -> entry.getString("account"))
+                    .ifPresent(customerIds::add);
+        }
+
+        int folded = 0;
+        for (String customerId : customerIds) {
+            int last;
+            do {
+                last = compact(customerId);
+                folded += last;
+            } while (last >= MAX_ENTRIES_PER_FOLD);
+        }
+        return folded;
+    }
+
+    /**
+     * A customer's balance: their snapshot, plus their pending ledger entries.  This is read outside a transaction, so
+     * may be momentarily out of date while entries are being folded.
+     */
+    public Optional<Integer> balance(String customerId) {
+        return Account.balance(backend, customerId).map(snapshot -> {
+            int balance = snapshot;
+            for (String entryId : backend.idsStartingWith(entryPrefix(customerId))) {
+                Optional<JsonObject> entry = backend.get(entryId);
+                if (entry.isPresent() && customerId.equals(entry.get().getString("account"))) {
+                    balance += entry.get().getInt("amount");
+                }
+            }
+            return balance;
+        });
+    }
+
+    /**
+     * Removes these of a customer's pending entries in the transaction, and returns their total.  The caller must add
+     * that to the customer's snapshot in the same transaction.
+     */
+    private static int fold(BackendContext ctx, String customerId, List<String> entryIds, AtomicInteger folded) {
+        int total = 0;
+
+        for (String entryId : entryIds) {
+            if (folded.get() >= MAX_ENTRIES_PER_FOLD) {
+                break;
+            }
+
+            // The entry is re-read in the transaction, as it may have been folded since it was listed
+            Optional<Document> entry = ctx.getOptional(entryId);
+            if (!entry.isPresent()) {
+                continue;
+            }
+
+            LedgerEntry content = LedgerEntry.decode(entry.get());
+
+            // Another customer's id can start with this one's, so their entries can share the prefix
+            if (!customerId.equals(content.accountId())) {
+                continue;
+            }
+
+            total += content.amount();
+            ctx.remove(entry.get());
+            folded.incrementAndGet();
+        }
+
+        return total;
+    }
+
+    private static String entryPrefix(String customerId) {
+        return ENTRY_PREFIX + customerId + "::";
+    }
+
+    private static String entryId(String customerId, String transferId) {
+        return entryPrefix(customerId) + transferId;
+    }
+}
@@ -0,0 +1,48 @@
+package example.transfer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically folds pending {@link Ledger} entries into customers' balances, in the background.
+ *
+ * Compaction is not needed for correctness, but it keeps balance reads cheap, and keeps transfers from having to fold
+ * entries themselves when the payer's snapshot runs low.
+ */
+public class LedgerCompactor implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(LedgerCompactor.class);
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    public LedgerCompactor(Ledger ledger, long intervalMillis) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                int folded = ledger.compactAll();
+                if (folded > 0) {
+                    logger.info("Compacted {} ledger entries", folded);
+                }
+            }
+            catch (RuntimeException err) {
+                // Anything missed will be picked up next time.  An exception here would silently stop the schedule.
+                logger.warn("Ledger compaction failed", err);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops compacting, waiting for any compaction in progress to finish.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
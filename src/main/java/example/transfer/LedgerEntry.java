@@ -0,0 +1,48 @@
+package example.transfer;
+
+import example.backend.Document;
+import example.codec.LazyJsonObject;
+
+/**
+ * An immutable credit to a customer's account, not yet folded into their balance - see {@link Ledger}.
+ */
+public class LedgerEntry {
+    private final LazyJsonObject content;
+
+    private LedgerEntry(LazyJsonObject content) {
+        this.content = content;
+    }
+
+    public static LedgerEntry create(String accountId, String transferId, int amount) {
+        return new LedgerEntry(LazyJsonObject.create()
+                .put("account", accountId)
+                .put("transfer", transferId)
+                .put("amount", amount)
+                .put("type", "LedgerEntry"));
+    }
+
+    public static LedgerEntry decode(Document doc) {
+        return new LedgerEntry(LazyJsonObject.of(doc.contentAsBytes()));
+    }
+
+    public String accountId() {
+        return content.getString("account");
+    }
+
+    public String transferId() {
+        return content.getString("transfer");
+    }
+
+    public int amount() {
+        return content.getInt("amount");
+    }
+
+    public byte[] encode() {
+        return content.encode();
+    }
+
+    @Override
+    public String toString() {
+        return content.toString();
+    }
+}
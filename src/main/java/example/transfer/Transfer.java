@@ -0,0 +1,48 @@
+package example.transfer;
+
+import example.backend.Document;
+import example.codec.LazyJsonObject;
+
+/**
+ * The record of a transfer between two customers.
+ */
+public class Transfer {
+    private final LazyJsonObject content;
+
+    private Transfer(LazyJsonObject content) {
+        this.content = content;
+    }
+
+    public static Transfer create(String from, String to, int amount) {
+        return new Transfer(LazyJsonObject.create()
+                .put("from", from)
+                .put("to", to)
+                .put("amount", amount)
+                .put("type", "Transfer"));
+    }
+
+    public static Transfer decode(Document doc) {
+        return new Transfer(LazyJsonObject.of(doc.contentAsBytes()));
+    }
+
+    public String from() {
+        return content.getString("from");
+    }
+
+    public String to() {
+        return content.getString("to");
+    }
+
+    public int amount() {
+        return content.getInt("amount");
+    }
+
+    public byte[] encode() {
+        return content.encode();
+    }
+
+    @Override
+    public String toString() {
+        return content.toString();
+    }
+}
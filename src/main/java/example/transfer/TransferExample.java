@@ -1,18 +1,28 @@
 package example.transfer;
 
+import ch.qos.logback.classic.Level;
 import com.couchbase.client.core.cnc.Event;
-import com.couchbase.client.core.error.DocumentNotFoundException;
 import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.Cluster;
 import com.couchbase.client.java.Collection;
 import com.couchbase.client.java.json.JsonObject;
 import com.couchbase.transactions.TransactionDurabilityLevel;
-import com.couchbase.transactions.TransactionGetResult;
 import com.couchbase.transactions.Transactions;
 import com.couchbase.transactions.config.TransactionConfigBuilder;
-import com.couchbase.transactions.error.TransactionCommitAmbiguous;
-import com.couchbase.transactions.error.TransactionFailed;
-import com.couchbase.transactions.log.TransactionEvent;
+import example.admission.AdaptiveLimit;
+import example.admission.AdmissionControlledBackend;
+import example.backend.Backend;
+import example.backend.BackendCommitAmbiguous;
+import example.backend.BackendDocumentNotFound;
+import example.backend.BackendOverloaded;
+import example.backend.BackendRollback;
+import example.backend.BackendTransactionFailed;
+import example.backend.CouchbaseBackend;
+import example.metrics.MeteredBackend;
+import example.metrics.PrometheusEndpoint;
+import example.metrics.TransactionMetrics;
+import example.trace.TraceRecorder;
+import example.trace.TracingBackend;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -21,14 +31,21 @@ import net.sourceforge.argparse4j.inf.Namespace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.Optional;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicReference;
 
 
-class InsufficientFunds extends RuntimeException {}
-class CustomerNotFound extends RuntimeException {}
+class InsufficientFunds extends BackendRollback {}
+class CustomerNotFound extends BackendRollback {}
 
 
 /**
@@ -56,18 +73,76 @@ public class TransferExample {
                 .help("Specify name of Couchbase bucket");
         parser.addArgument("-d", "--durability")
                 .setDefault("majority")
-                .type(Integer.class)
                 .help("Durability setting to use: majority,none,persist_to_majority,majority_and_persist (default:majority)");
+        parser.addArgument("--metrics-port")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("If non-zero, serves transaction metrics for Prometheus at http://localhost:<port>/metrics");
         parser.addArgument("-v", "--verbose")
                 .setDefault(false)
                 .action(Arguments.storeConst()).setConst(true)
                 .type(Boolean.class)
-                .help("Logs all transaction trace to stdout (very heavy)");
+                .help("Also logs every step of every transaction to stdout (very heavy - the trace file is usually enough)");
+        parser.addArgument("--trace-file")
+                .setDefault("transfer.trace")
+                .help("Records every transaction into this binary ring file, for decoding after an incident with the trace dump.  Empty to disable");
+        parser.addArgument("--trace-mb")
+                .setDefault(64)
+                .type(Integer.class)
+                .help("Size of the trace file.  Once full, the oldest events are overwritten");
         parser.addArgument("-a", "--amount")
                 .setDefault("amount")
                 .setDefault(80)
                 .type(Integer.class)
                 .help("How much to transfer between the two customers");
+        parser.addArgument("--bulk")
+                .help("Instead of the sample transfer, run all the transfers in this CSV or JSON-lines file");
+        parser.addArgument("--results")
+                .help("Where bulk transfer results are appended (default: the bulk file name plus .results.csv)");
+        parser.addArgument("--batch-id")
+                .help("Identifies the bulk batch, and must be the same when resuming it (default: the bulk file name)");
+        parser.addArgument("--parallelism")
+                .setDefault(32)
+                .type(Integer.class)
+                .help("How many bulk transfers to run concurrently");
+        parser.addArgument("--ledger")
+                .setDefault(false)
+                .action(Arguments.storeConst()).setConst(true)
+                .type(Boolean.class)
+                .help("Credit payees by appending to a ledger, rather than updating their balance in place");
+        parser.addArgument("--reshard")
+                .nargs("*")
+                .metavar("CUSTOMER=SHARDS")
+                .help("Splits each customer's balance across this many shard documents, or 0 to unshard it");
+        parser.addArgument("--post-check-rate")
+                .setDefault(1.0)
+                .type(Double.class)
+                .help("The fraction of transfers whose customers and transfer record are read back and logged afterwards");
+        parser.addArgument("--audit")
+                .setDefault(false)
+                .action(Arguments.storeConst()).setConst(true)
+                .type(Boolean.class)
+                .help("Audits that all balances add up before and after the transfers");
+        parser.addArgument("--audit-interval-ms")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("With --audit, also audits in the background this often while transfers run");
+        parser.addArgument("--compact-interval-ms")
+                .setDefault(1000)
+                .type(Integer.class)
+                .help("With --ledger, how often pending ledger entries are folded into balances");
+        parser.addArgument("--admission-limit")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("If non-zero, limits how many transfers run at once, starting at this many and adapting to contention");
+        parser.addArgument("--admission-queue-ms")
+                .setDefault(100)
+                .type(Integer.class)
+                .help("With --admission-limit, how long a transfer over the limit waits before it is rejected");
+        parser.addArgument("--admission-latency-ms")
+                .setDefault(0)
+                .type(Integer.class)
+                .help("With --admission-limit, also lowers the limit when transfers take longer than this on average");
 
         try {
             Namespace ns = parser.parseArgs(args);
@@ -79,27 +154,53 @@ public class TransferExample {
             String durability = ns.getString("durability");
             int amount = ns.getInt("amount");
             boolean verbose = ns.getBoolean("verbose");
+            String traceFile = ns.getString("trace_file");
+            int traceMb = ns.getInt("trace_mb");
+            int metricsPort = ns.getInt("metrics_port");
+            boolean useLedger = ns.getBoolean("ledger");
+            int compactIntervalMillis = ns.getInt("compact_interval_ms");
+            double postCheckRate = ns.getDouble("post_check_rate");
+            boolean audit = ns.getBoolean("audit");
+            int auditIntervalMillis = ns.getInt("audit_interval_ms");
+            AdaptiveLimit admission = ns.getInt("admission_limit") == 0 ? null
+                    : new AdaptiveLimit(ns.getInt("admission_limit"))
+                            .withQueue(1000, Duration.ofMillis(ns.getInt("admission_queue_ms")))
+                            .withLatencyTarget(Duration.ofMillis(ns.getInt("admission_latency_ms")));
+            Map<String, Integer> reshards = new LinkedHashMap<>();
+            List<String> reshardArgs = ns.getList("reshard");
+            if (reshardArgs != null) {
+                for (String reshard : reshardArgs) {
+                    int split = reshard.lastIndexOf('=');
+                    if (split <= 0 || !reshard.substring(split + 1).matches("[0-9]+")) {
+                        System.out.println("Expected CUSTOMER=SHARDS but found " + reshard);
+                        System.exit(-1);
+                    }
+                    reshards.put(reshard.substring(0, split), Integer.parseInt(reshard.substring(split + 1)));
+                }
+            }
+            String bulkFile = ns.getString("bulk");
+            BulkOptions bulk = null;
+            if (bulkFile != null) {
+                Path input = Paths.get(bulkFile);
+                Path results = ns.getString("results") != null
+                        ? Paths.get(ns.getString("results"))
+                        : Paths.get(bulkFile + ".results.csv");
+                String batchId = ns.getString("batch_id") != null
+                        ? ns.getString("batch_id")
+                        : input.getFileName().toString();
+                bulk = new BulkOptions(input, results, batchId, ns.getInt("parallelism"));
+            }
 
             TransactionDurabilityLevel transactionDurabilityLevel = TransactionDurabilityLevel.MAJORITY;
-            switch (durability.toLowerCase()) {
-                case "none":
-                    transactionDurabilityLevel = TransactionDurabilityLevel.NONE;
-                    break;
-                case "majority":
-                    transactionDurabilityLevel = TransactionDurabilityLevel.MAJORITY;
-                    break;
-                case "persist_to_majority":
-                    transactionDurabilityLevel = TransactionDurabilityLevel.PERSIST_TO_MAJORITY;
-                    break;
-                case "majority_and_persist":
-                    transactionDurabilityLevel = TransactionDurabilityLevel.MAJORITY_AND_PERSIST_TO_ACTIVE;
-                    break;
-                default:
-                    System.out.println("Unknown durability setting " + durability);
-                    System.exit(-1);
+            try {
+                transactionDurabilityLevel = CouchbaseBackend.parseDurability(durability);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.exit(-1);
             }
 
-            run(clusterName, username, password, bucketName, transactionDurabilityLevel, verbose, amount);
+            run(clusterName, username, password, bucketName, transactionDurabilityLevel, verbose, traceFile, traceMb,
+                    amount, bulk, metricsPort, useLedger, compactIntervalMillis, reshards, postCheckRate, audit, auditIntervalMillis, admission);
         } catch (ArgumentParserException e) {
             parser.handleError(e);
         }
@@ -111,7 +212,18 @@ public class TransferExample {
                             String bucketName,
                             TransactionDurabilityLevel transactionDurabilityLevel,
                             boolean verbose,
-                            int amount) {
+                            String traceFile,
+                            int traceMb,
+                            int amount,
+                            BulkOptions bulk,
+                            int metricsPort,
+                            boolean useLedger,
+                            int compactIntervalMillis,
+                            Map<String, Integer> reshards,
+                            double postCheckRate,
+                            boolean audit,
+                            int auditIntervalMillis,
+                            AdaptiveLimit admission) {
 
         // Initialize the Couchbase cluster
         Cluster cluster = Cluster.connect(clusterName, username, password);
@@ -125,25 +237,95 @@ public class TransferExample {
 
         if (verbose) {
             config.logDirectly(Event.Severity.VERBOSE);
+            ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("com.couchbase.transactions")).setLevel(Level.TRACE);
         }
 
         // Initialize transactions.  Must only be one Transactions object per app as it creates background resources.
         Transactions transactions = Transactions.create(cluster, config);
 
 
-        // Optional but recommended - subscribe for events
-        cluster.environment().eventBus().subscribe(event -> {
-            if (event instanceof TransactionEvent) {
+        // Optional but recommended - subscribe for events.  The metrics count cleanup activity, and log important events.
+        TransactionMetrics metrics = new TransactionMetrics();
+        metrics.registerMBean("transfer");
+        cluster.environment().eventBus().subscribe(metrics::onEvent);
 
-                TransactionEvent te = (TransactionEvent) event;
+        PrometheusEndpoint metricsEndpoint = PrometheusEndpoint.startIfRequested(metrics, metricsPort);
 
-                if (te.severity().ordinal() >= Event.Severity.WARN.ordinal()) {
-                    // handle important event
-                }
+
+        // The cluster is needed to list ledger entries
+        Backend backend = new MeteredBackend(new CouchbaseBackend(transactions, collection, cluster), metrics);
+
+        // Under contention, transfers over the limit are rejected quickly rather than all retrying until they time out
+        Backend admittedBackend = admission == null ? backend : new AdmissionControlledBackend(backend, admission);
+
+        // Traced outside admission control, so that rejected transfers are recorded too
+        TraceRecorder trace = TraceRecorder.openIfRequested(traceFile, traceMb);
+        Backend transferBackend = trace == null ? admittedBackend : new TracingBackend(admittedBackend, trace);
+
+        Ledger ledger = useLedger ? new Ledger(transferBackend) : null;
+        TransferMethod method = withPostCheck(backend, useLedger
+                ? ledger::transfer
+                : (transferId, customer1Id, customer2Id, transferAmount) ->
+                        transferMoney(transferBackend, transferId, customer1Id, customer2Id, transferAmount),
+                postCheckRate);
+
+        if (bulk == null) {
+            setupSample(backend);
+        }
+        reshard(backend, reshards);
+
+        // The first audit is the baseline that later ones are compared with, so is taken before any transfers
+        ConsistencyAuditor auditor = null;
+        if (audit) {
+            auditor = new ConsistencyAuditor(backend, Runtime.getRuntime().availableProcessors());
+            auditor.audit();
+            if (auditIntervalMillis > 0) {
+                auditor.start(auditIntervalMillis);
             }
-        });
+        }
+
+        LedgerCompactor compactor = useLedger ? new LedgerCompactor(ledger, compactIntervalMillis) : null;
+
+        if (bulk != null) {
+            runBulk(method, bulk);
+        }
+        else {
+            runSample(backend, method, amount, !reshards.isEmpty());
+        }
+
+        if (useLedger) {
+            compactor.close();
+
+            // Leave every balance up to date
+            logger.info("Compacted {} remaining ledger entries", ledger.compactAll());
+            if (bulk == null) {
+                logger.info("Balances: andy={} beth={}", ledger.balance("andy").orElse(null),
+                        ledger.balance("beth").orElse(null));
+            }
+        }
 
+        if (auditor != null) {
+            auditor.close();
+            auditor.audit();
+        }
+
+        metrics.logSummary();
+        if (admission != null) {
+            logger.info("Admission control: {}", admission);
+        }
 
+        // Shutdown resources cleanly
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
+        transactions.close();
+        cluster.disconnect();
+        if (trace != null) {
+            trace.close();
+        }
+    }
+
+    private static void setupSample(Backend backend) {
         // Setup test data
         JsonObject customer1 = JsonObject.create()
                 .put("type", "Customer")
@@ -155,75 +337,162 @@ public class TransferExample {
                 .put("name", "Beth")
                 .put("balance", 100);
 
-        collection.upsert("andy", customer1);
+        backend.upsert("andy", customer1);
 
         logger.info("Upserted sample customer document " + customer1);
 
-        collection.upsert("beth", customer2);
+        backend.upsert("beth", customer2);
 
         logger.info("Upserted sample customer document " + customer2);
+    }
 
+    private static void runSample(Backend backend, TransferMethod method, int amount, boolean sharded) {
         try {
-            transferMoney(transactions, collection, "andy", "beth", amount);
+            method.transfer(UUID.randomUUID().toString(), "andy", "beth", amount);
         }
         catch (RuntimeException err) {
             System.err.println("Transaction failed with: " + err.toString());
         }
+
+        if (sharded) {
+            // A sharded customer document no longer shows the balance
+            logger.info("Total balances: andy={} beth={}", Account.balance(backend, "andy").orElse(null),
+                    Account.balance(backend, "beth").orElse(null));
+        }
+    }
+
+    private static void reshard(Backend backend, Map<String, Integer> reshards) {
+        reshards.forEach((customerId, shards) -> Account.reshard(backend, customerId, shards));
+    }
+
+    private static void runBulk(TransferMethod method, BulkOptions bulk) {
+        // Logging every step of millions of transfers would swamp the console, and the results file records every
+        // outcome anyway
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(TransferExample.class)).setLevel(Level.WARN);
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Ledger.class)).setLevel(Level.WARN);
+
+        Path checkpoint = bulk.results.resolveSibling(bulk.results.getFileName() + ".checkpoint");
+
+        try {
+            new BulkTransfer(method, bulk.batchId, bulk.parallelism).run(bulk.input, bulk.results, checkpoint);
+        }
+        catch (IOException err) {
+            System.err.println("Bulk transfer failed with: " + err.toString());
+        }
+    }
+
+    private static class BulkOptions {
+        final Path input;
+        final Path results;
+        final String batchId;
+        final int parallelism;
+
+        BulkOptions(Path input, Path results, String batchId, int parallelism) {
+            this.input = input;
+            this.results = results;
+            this.batchId = batchId;
+            this.parallelism = parallelism;
+        }
     }
 
 
 
-    private static void transferMoney(Transactions transactions,
-                                      Collection collection,
-                                      String customer1Id,
-                                      String customer2Id,
-                                      int amount) {
+    /**
+     * Reads back the customers and the transfer record after a transfer, and logs them, for a fraction of transfers.
+     * That is three reads on top of each transfer checked, so they are sampled, and skipped entirely when the logging
+     * is off.  They are only for seeing what happened - {@link ConsistencyAuditor} is what checks it was right.
+     */
+    static TransferMethod withPostCheck(Backend backend, TransferMethod method, double rate) {
+        if (rate <= 0) {
+            return method;
+        }
+
+        return (transferId, customer1Id, customer2Id, amount) -> {
+            TransferStatus status = method.transfer(transferId, customer1Id, customer2Id, amount);
+
+            if (logger.isInfoEnabled() && ThreadLocalRandom.current().nextDouble() < rate) {
+                postCheck(backend, status, transferId, customer1Id, customer2Id);
+            }
+            return status;
+        };
+    }
+
+    private static void postCheck(Backend backend,
+                                  TransferStatus status,
+                                  String transferId,
+                                  String customer1Id,
+                                  String customer2Id) {
+        // Post-transaction, see the results:
+        JsonObject customer1 = backend.get(customer1Id).orElse(null);
+        JsonObject customer2 = backend.get(customer2Id).orElse(null);
+
+        logger.info("After transaction - got customer 1's details: " + customer1);
+        logger.info("After transaction - got customer 2's details: " + customer2);
+
+        if (status == TransferStatus.COMMITTED) {
+            JsonObject transferRecord = backend.get(transferId).orElse(null);
+
+            logger.info("After transaction - transfer record: " + transferRecord);
+        }
+    }
+
+    // Package-private so it can be benchmarked in isolation
+    static TransferStatus transferMoney(Backend backend,
+                                        String customer1Id,
+                                        String customer2Id,
+                                        int amount) {
+        return transferMoney(backend, UUID.randomUUID().toString(), customer1Id, customer2Id, amount);
+    }
+
+    /**
+     * Transfers money, recording the transfer under the given id.  If a transfer record with that id already exists,
+     * the transfer has already been applied and is not applied again - so a caller that chooses deterministic ids (as
+     * {@link BulkTransfer} does) can safely retry.
+     *
+     * Public so that tools outside this package, such as {@link example.bench.DurabilitySweep}, can drive it.
+     *
+     * @throws InsufficientFunds if customer 1 does not have enough money
+     * @throws CustomerNotFound if either customer does not exist
+     */
+    public static TransferStatus transferMoney(Backend backend,
+                                               String transferId,
+                                               String customer1Id,
+                                               String customer2Id,
+                                               int amount) {
         // This shows how to pass values from the transaction lambda
-        AtomicReference<String> transferId = new AtomicReference<>();
+        AtomicReference<TransferStatus> status = new AtomicReference<>();
 
         try {
 
             // Supply transactional logic inside a lambda - any required retries are handled for you
-            transactions.run(ctx -> {
+            backend.run(ctx -> {
 
-                // getOrError means "fail the transaction if that key does not exist"
-                TransactionGetResult customer1 = ctx.get(collection, customer1Id);
-                TransactionGetResult customer2 = ctx.get(collection, customer2Id);
-                // Optional<TransactionJsonDocument> customer2Opt = ctx.get(collection, customer2Id);
-
-                JsonObject customer1Content = customer1.contentAsObject();
-                JsonObject customer2Content = customer2.contentAsObject();
+                if (ctx.getOptional(transferId).isPresent()) {
+                    logger.info("In transaction - transfer " + transferId + " has already been applied");
+                    status.set(TransferStatus.ALREADY_APPLIED);
+                    return;
+                }
 
-                logger.info("In transaction - got customer 1's details: " + customer1Content);
-                logger.info("In transaction - got customer 2's details: " + customer2Content);
+                // get means "fail the transaction if that key does not exist".  An account reads the customer, and
+                // only decodes what it needs, however much else is stored on them.
+                Account account1 = Account.open(ctx, customer1Id);
+                Account account2 = Account.open(ctx, customer2Id);
 
-                int customer1Balance = customer1Content.getInt("balance");
-                int customer2Balance = customer2Content.getInt("balance");
+                logger.info("In transaction - got customer 1's details: {}", account1);
+                logger.info("In transaction - got customer 2's details: {}", account2);
 
                 // Create a record of the transfer
-                JsonObject transferRecord = JsonObject.create()
-                        .put("from", customer1Id)
-                        .put("to", customer2Id)
-                        .put("amount", amount)
-                        .put("type", "Transfer");
-                // We want this value outside the transaction lambda, so pass it in an AtomicReference
-                transferId.set(UUID.randomUUID().toString());
+                Transfer transferRecord = Transfer.create(customer1Id, customer2Id, amount);
 
-                ctx.insert(collection, transferId.get(), transferRecord);
+                ctx.insert(transferId, transferRecord.encode());
 
-                logger.info("In transaction - creating record of transfer with UUID: " + transferId.get());
+                logger.info("In transaction - creating record of transfer with UUID: " + transferId);
 
-                if (customer1Balance >= amount) {
+                // If either customer's balance is sharded, only the shards involved are written
+                if (account1.debit(amount)) {
                     logger.info("In transaction - customer 1 has sufficient balance, transferring " + amount);
 
-                    customer1Content.put("balance", customer1Balance - amount);
-                    customer2Content.put("balance", customer2Balance + amount);
-
-                    logger.info("In transaction - changing customer 1's balance to: " + customer1Content.getInt("balance"));
-                    logger.info("In transaction - changing customer 2's balance to: " + customer2Content.getInt("balance"));
-
-                    ctx.replace(customer1, customer1Content);
-                    ctx.replace(customer2, customer2Content);
+                    account2.credit(amount);
                 }
                 else {
                     logger.info("In transaction - customer 1 has insufficient balance to transfer " + amount);
@@ -235,41 +504,39 @@ public class TransferExample {
 
                 // If we reach here, commit is automatic.
                 logger.info("In transaction - about to commit");
+                // We want this value outside the transaction lambda, so pass it in an AtomicReference
+                status.set(TransferStatus.COMMITTED);
                 // ctx.commit(); // can also, and optionally, explicitly commit
             });
-        } catch (TransactionCommitAmbiguous err) {
-            System.err.println("Transaction " + err.result().transactionId() + " possibly committed:");
-            err.result().log().logs().forEach(System.err::println);
-        } catch (TransactionFailed err) {
+        } catch (BackendOverloaded err) {
+            // Not started, so the caller can simply try again later
+            logger.warn("Transfer {} rejected: {}", transferId, err.getMessage());
+            status.set(TransferStatus.REJECTED);
+        } catch (BackendCommitAmbiguous err) {
+            // What the transaction did is in the trace file, so its log is only wanted when debugging
+            logger.warn("Transaction {} possibly committed, after {} attempts", err.result().transactionId(),
+                    err.result().attempts());
+            err.logs().forEach(logger::debug);
+            status.set(TransferStatus.AMBIGUOUS);
+        } catch (BackendTransactionFailed err) {
 
             if (err.getCause() instanceof InsufficientFunds) {
                 throw (RuntimeException) err.getCause(); // propagate up
             }
-            // ctx.getOrError can raise a DocumentNotFoundException
-            else if (err.getCause() instanceof DocumentNotFoundException) {
+            // ctx.get can raise a BackendDocumentNotFound
+            else if (err.getCause() instanceof BackendDocumentNotFound) {
                 throw new CustomerNotFound();
             }
             else {
-                // Unexpected error - log for human review
-                // This per-txn log allows the app to only log failures
-                System.err.println("Transaction " + err.result().transactionId() + " did not reach commit:");
-
-                err.result().log().logs().forEach(System.err::println);
+                // Unexpected error - log for human review.  The trace file records what the transaction did, and its
+                // per-txn log can be had at debug level
+                logger.warn("Transaction {} did not reach commit, after {} attempts", err.result().transactionId(),
+                        err.result().attempts());
+                err.logs().forEach(logger::debug);
+                status.set(TransferStatus.FAILED);
             }
         }
 
-
-        // Post-transaction, see the results:
-        JsonObject customer1 = collection.get(customer1Id).contentAsObject();
-        JsonObject customer2 = collection.get(customer2Id).contentAsObject();
-
-        logger.info("After transaction - got customer 1's details: " + customer1);
-        logger.info("After transaction - got customer 2's details: " + customer2);
-
-        if (transferId.get() != null) {
-            JsonObject transferRecord = collection.get(transferId.get()).contentAsObject();
-
-            logger.info("After transaction - transfer record: " + transferRecord);
-        }
+        return status.get();
     }
 }
@@ -0,0 +1,17 @@
+package example.transfer;
+
+/**
+ * A way of moving money between two customers: either {@link TransferExample#transferMoney}, which updates both
+ * balances in place, or a {@link Ledger}.
+ */
+@FunctionalInterface
+public interface TransferMethod {
+    /**
+     * Transfers money, recording the transfer under the given id.  A transfer that has already been recorded under
+     * that id is not applied again.
+     *
+     * @throws InsufficientFunds if customer 1 does not have enough money
+     * @throws CustomerNotFound if either customer does not exist
+     */
+    TransferStatus transfer(String transferId, String customer1Id, String customer2Id, int amount);
+}
@@ -0,0 +1,89 @@
+package example.transfer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs transfers concurrently, except that transfers sharing an account are run one after another.
+ *
+ * Two concurrent transactions that write the same customer document conflict, and one of them burns retries until the
+ * other is done.  Where both are coming from this application, that conflict is predictable, so it is cheaper to avoid
+ * it by queueing locally.  Accounts are hashed onto a fixed number of stripes, and each transfer waits for the previous
+ * transfer on each of its two stripes to complete before it starts.  Transfers on unrelated stripes run in parallel.
+ *
+ * No thread blocks while waiting: a transfer is simply chained onto its predecessors.  When submitting, the two
+ * stripes are always locked in the same (index) order, so two submissions can never deadlock.
+ */
+public class TransferScheduler implements AutoCloseable {
+    private final TransferMethod method;
+    private final ExecutorService executor;
+    private final Object[] stripeLocks;
+
+    // The most recently submitted transfer on each stripe
+    private final CompletableFuture<?>[] tails;
+
+    /**
+     * @param stripes more stripes means fewer unrelated transfers queued behind each other because their accounts
+     *                happen to hash to the same stripe
+     * @param threads how many transfers can run concurrently
+     */
+    public TransferScheduler(TransferMethod method, int stripes, int threads) {
+        this.method = method;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.stripeLocks = new Object[stripes];
+        this.tails = new CompletableFuture<?>[stripes];
+
+        for (int i = 0; i < stripes; i ++) {
+            stripeLocks[i] = new Object();
+            tails[i] = CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Queues a transfer, to be run through the {@link TransferMethod}.  The returned future completes with the status, or
+     * exceptionally with {@link InsufficientFunds} or {@link CustomerNotFound}.
+     */
+    public CompletableFuture<TransferStatus> submit(String transferId, String customer1Id, String customer2Id, int amount) {
+        int first = Math.min(stripe(customer1Id), stripe(customer2Id));
+        int second = Math.max(stripe(customer1Id), stripe(customer2Id));
+
+        synchronized (stripeLocks[first]) {
+            synchronized (stripeLocks[second]) {
+                CompletableFuture<?> predecessors = first == second
+                        ? tails[first]
+                        : CompletableFuture.allOf(tails[first], tails[second]);
+
+                // Runs however the predecessors completed - a failed transfer must not block the ones behind it
+                CompletableFuture<TransferStatus> transfer = predecessors.handleAsync((ignored, err) ->
+                        method.transfer(transferId, customer1Id, customer2Id, amount), executor);
+
+                tails[first] = transfer;
+                tails[second] = transfer;
+                return transfer;
+            }
+        }
+    }
+
+    private int stripe(String customerId) {
+        // Spread the hash bits, as HashMap does, before reducing to a stripe
+        int h = customerId.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h, stripeLocks.length);
+    }
+
+    /**
+     * Waits for all queued transfers to complete, then stops.
+     */
+    @Override
+    public void close() {
+        CompletableFuture.allOf(tails).handle((ignored, err) -> null).join();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
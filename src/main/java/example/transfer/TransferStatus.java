@@ -0,0 +1,30 @@
+package example.transfer;
+
+/**
+ * The outcome of a single transfer.
+ */
+public enum TransferStatus {
+    /** The transfer was applied. */
+    COMMITTED,
+
+    /** A transfer with the same id had already been applied, so it was not applied again. */
+    ALREADY_APPLIED,
+
+    /** The transaction possibly committed - the transfer may or may not have been applied. */
+    AMBIGUOUS,
+
+    /** The transaction did not reach commit, so nothing was changed. */
+    FAILED,
+
+    /** The payer did not have enough money.  Nothing was changed. */
+    INSUFFICIENT_FUNDS,
+
+    /** One of the customers does not exist.  Nothing was changed. */
+    CUSTOMER_NOT_FOUND,
+
+    /** The transfer instruction could not be parsed.  Only used by {@link BulkTransfer}. */
+    INVALID,
+
+    /** Too many transfers were already running, so this one was not started.  Nothing was changed. */
+    REJECTED
+}
@@ -0,0 +1,178 @@
+package example.codec;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LazyJsonObjectTest {
+    private static LazyJsonObject of(String json) {
+        return LazyJsonObject.of(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String encode(LazyJsonObject obj) {
+        return new String(obj.encode(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void unchangedObjectIsReturnedAsIs() {
+        byte[] json = "{ \"a\" : 1 }".getBytes(StandardCharsets.UTF_8);
+        LazyJsonObject obj = LazyJsonObject.of(json);
+        obj.getInt("a");
+        assertSame(json, obj.encode());
+    }
+
+    @Test
+    void readsFieldsPastNestedValues() {
+        LazyJsonObject obj = of("{\"nested\":{\"a\":[1,{\"b\":\"}]\"}],\"c\":{}},\"list\":[[],[[]]],\"after\":7}");
+        assertEquals(7, obj.getInt("after"));
+        assertTrue(obj.has("nested"));
+        assertFalse(obj.has("a"));
+    }
+
+    @Test
+    void toleratesWhitespace() {
+        LazyJsonObject obj = of(" \n{ \"a\" :\t-12 ,\r\n \"b\" : \"x\" } ");
+        assertEquals(-12, obj.getInt("a"));
+        assertEquals("x", obj.getString("b"));
+    }
+
+    @Test
+    void readsNumbers() {
+        LazyJsonObject obj = of("{\"zero\":0,\"neg\":-0,\"max\":2147483647,\"min\":-2147483648,"
+                + "\"big\":9223372036854775807,\"frac\":1.5,\"exp\":-2.5e3}");
+        assertEquals(0, obj.getInt("zero"));
+        assertEquals(0, obj.getInt("neg"));
+        assertEquals(Integer.MAX_VALUE, obj.getInt("max"));
+        assertEquals(Integer.MIN_VALUE, obj.getInt("min"));
+        assertEquals(Long.MAX_VALUE, obj.getLong("big"));
+        assertEquals(1.5, obj.getDouble("frac"));
+        assertEquals(-2500.0, obj.getDouble("exp"));
+        assertEquals(2147483647.0, obj.getDouble("max"));
+    }
+
+    @Test
+    void rejectsNonIntegers() {
+        LazyJsonObject obj = of("{\"frac\":1.5,\"exp\":1e3,\"str\":\"1\",\"big\":2147483648,\"empty\":-}");
+        assertThrows(IllegalArgumentException.class, () -> obj.getInt("frac"));
+        assertThrows(IllegalArgumentException.class, () -> obj.getInt("exp"));
+        assertThrows(IllegalArgumentException.class, () -> obj.getInt("str"));
+        assertThrows(IllegalArgumentException.class, () -> obj.getInt("big"));
+        assertThrows(IllegalArgumentException.class, () -> obj.getInt("empty"));
+        assertThrows(IllegalArgumentException.class, () -> obj.getInt("missing"));
+    }
+
+    @Test
+    void rejectsLongOverflow() {
+        LazyJsonObject obj = of("{\"min\":-9223372036854775808,\"over\":9223372036854775808,"
+                + "\"under\":-9223372036854775809,\"huge\":99999999999999999999}");
+        assertEquals(Long.MIN_VALUE, obj.getLong("min"));
+        assertThrows(IllegalArgumentException.class, () -> obj.getLong("over"));
+        assertThrows(IllegalArgumentException.class, () -> obj.getLong("under"));
+        assertThrows(IllegalArgumentException.class, () -> obj.getLong("huge"));
+    }
+
+    @Test
+    void decodesStringEscapes() {
+        LazyJsonObject obj = of("{\"s\":\"q\\\"b\\\\s\\/n\\nt\\tu\\u00e9\",\"pair\":\"\\ud83d\\ude00\",\"null\":null}");
+        assertEquals("q\"b\\s/n\nt\tu\u00e9", obj.getString("s"));
+        assertEquals("\ud83d\ude00", obj.getString("pair"));
+        assertNull(obj.getString("null"));
+        assertNull(obj.getString("missing"));
+    }
+
+    @Test
+    void readsUnicode() {
+        LazyJsonObject obj = of("{\"caf\u00e9\":\"\u65e5\u672c\",\"plain\":1}");
+        assertEquals("\u65e5\u672c", obj.getString("caf\u00e9"));
+        assertEquals(1, obj.getInt("plain"));
+    }
+
+    @Test
+    void matchesEscapedKeys() {
+        LazyJsonObject obj = of("{\"a\\\"b\":1,\"\\u0063\":2}");
+        assertEquals(1, obj.getInt("a\"b"));
+        assertEquals(2, obj.getInt("c"));
+    }
+
+    @Test
+    void keyInsideStringValueIsNotAField() {
+        LazyJsonObject obj = of("{\"a\":\"\\\"b\\\":1\",\"b\":2}");
+        assertEquals(2, obj.getInt("b"));
+    }
+
+    @Test
+    void replacesFieldsInPlace() {
+        LazyJsonObject obj = of("{\"a\":1, \"b\":{\"x\":[1,2]}, \"c\":\"old\"}");
+        obj.put("c", "new").put("a", 100);
+        assertEquals("{\"a\":100, \"b\":{\"x\":[1,2]}, \"c\":\"new\"}", encode(obj));
+        assertEquals(100, obj.getInt("a"));
+    }
+
+    @Test
+    void appendsNewFields() {
+        assertEquals("{\"a\":1}", encode(LazyJsonObject.create().put("a", 1)));
+        assertEquals("{ \"b\":2}", encode(of("{ }").put("b", 2)));
+        assertEquals("{\"a\":1,\"b\":\"x\",\"c\":3}", encode(of("{\"a\":1}").put("b", "x").put("c", 3L)));
+    }
+
+    @Test
+    void escapesWrittenStrings() {
+        LazyJsonObject obj = LazyJsonObject.create().put("s", "q\"b\\\n\u0001\u00e9").put("n", (String) null);
+        assertEquals("{\"s\":\"q\\\"b\\\\\\u000a\\u0001\u00e9\",\"n\":null}", encode(obj));
+
+        LazyJsonObject read = LazyJsonObject.of(obj.encode());
+        assertEquals("q\"b\\\n\u0001\u00e9", read.getString("s"));
+        assertNull(read.getString("n"));
+    }
+
+    @Test
+    void appendsToArraysKeepingTheNewest() {
+        LazyJsonObject obj = of("{\"actions\":[ \"a\" , \"b\" ,\"c\" ]}");
+        obj.appendToArray("actions", "d", 3);
+        assertEquals("{\"actions\":[\"b\" ,\"c\",\"d\"]}", encode(obj));
+        assertFalse(obj.arrayContains("actions", "a"));
+        assertTrue(obj.arrayContains("actions", "d"));
+
+        obj.appendToArray("actions", "e", 1);
+        assertEquals("{\"actions\":[\"e\"]}", encode(obj));
+    }
+
+    @Test
+    void appendCreatesArrays() {
+        assertEquals("{\"a\":[\"x\"]}", encode(LazyJsonObject.create().appendToArray("a", "x", 10)));
+        assertEquals("{\"a\":[\"x\"]}", encode(of("{\"a\":[]}").appendToArray("a", "x", 10)));
+        assertEquals("{\"a\":[\"x\"]}", encode(of("{\"a\":5}").appendToArray("a", "x", 10)));
+    }
+
+    @Test
+    void arrayContainsComparesDecodedStrings() {
+        LazyJsonObject obj = of("{\"a\":[1,{\"x\":\"y\"},\"\\u0079\",\"caf\u00e9\"],\"b\":\"y\"}");
+        assertTrue(obj.arrayContains("a", "y"));
+        assertTrue(obj.arrayContains("a", "caf\u00e9"));
+        assertFalse(obj.arrayContains("a", "x"));
+        assertFalse(obj.arrayContains("b", "y"));
+        assertFalse(obj.arrayContains("missing", "y"));
+    }
+
+    @Test
+    void rejectsNonObjects() {
+        assertThrows(IllegalArgumentException.class, () -> of("[1]").has("a"));
+        assertThrows(IllegalArgumentException.class, () -> of("").has("a"));
+    }
+
+    @Test
+    void encodedOutputRoundTrips() {
+        LazyJsonObject obj = of("{\"a\":{\"b\":[1,\"}\"]},\"c\":\"\\\"\"}");
+        obj.put("a", 1).put("d", "e");
+        assertArrayEquals(obj.encode(), LazyJsonObject.of(obj.encode()).encode());
+        assertEquals("\"", LazyJsonObject.of(obj.encode()).getString("c"));
+    }
+}